@@ -27,6 +27,9 @@ import java.util.stream.Collectors;
 
 public class AtlassianGuardConfiguration extends AbstractConfiguration {
 
+    public static final String GROUP_SCAN = "GROUP_SCAN";
+    public static final String USER_RESOURCE = "USER_RESOURCE";
+
     private String baseURL;
     private GuardedString token;
     private String httpProxyHost;
@@ -39,6 +42,32 @@ public class AtlassianGuardConfiguration extends AbstractConfiguration {
     private int writeTimeoutInMilliseconds = 10000;
     private Set<String> ignoreGroup = new HashSet<>();
     private boolean uniqueCheckGroupDisplayNameEnabled = true;
+    private int maxIdleConnections = 5;
+    private int keepAliveDurationInMilliseconds = 300000;
+    private int maxRequests = 64;
+    private int maxRequestsPerHost = 5;
+    private String[] httpProtocols = new String[]{"h2", "http/1.1"};
+    private int retryCount = 2;
+    private int retryInitialBackoffInMilliseconds = 500;
+    private int retryMaxBackoffInMilliseconds = 10000;
+    private int retryMaxElapsedTimeInMilliseconds = 60000;
+    private String[] retryMethods = new String[]{"GET"};
+    private int rateLimitRetryCount = 5;
+    private boolean circuitBreakerEnabled = false;
+    private int circuitBreakerFailureThreshold = 5;
+    private int circuitBreakerOpenDurationInMilliseconds = 30000;
+    private boolean gzipEnabled = true;
+    private int prefetchPages = 0;
+    private int scanParallelism = 1;
+    private boolean scanOrdered = true;
+    private boolean scanPastTotal = false;
+    private int lookupBatchSize = 50;
+    private int groupMembershipIndexTtlInMilliseconds = 0;
+    private String groupMembershipStrategy = GROUP_SCAN;
+    private int membershipPatchChunkSize = 1000;
+    private int membershipPatchParallelism = 1;
+    private int patchCoalescingWindowInMilliseconds = 0;
+    private boolean skipUnchangedUpdatesEnabled = false;
 
     @ConfigurationProperty(
             order = 1,
@@ -221,6 +250,376 @@ public class AtlassianGuardConfiguration extends AbstractConfiguration {
         this.uniqueCheckGroupDisplayNameEnabled = uniqueCheckGroupDisplayNameEnabled;
     }
 
+    @ConfigurationProperty(
+            order = 13,
+            displayMessageKey = "Max Idle Connections",
+            helpMessageKey = "Maximum number of idle connections kept in the connection pool. The pool is shared by the connector instances with the same connection settings. (Default: 5)",
+            required = false,
+            confidential = false)
+    public int getMaxIdleConnections() {
+        return maxIdleConnections;
+    }
+
+    public void setMaxIdleConnections(int maxIdleConnections) {
+        this.maxIdleConnections = maxIdleConnections;
+    }
+
+    @ConfigurationProperty(
+            order = 14,
+            displayMessageKey = "Keep Alive Duration (in milliseconds)",
+            helpMessageKey = "Time to keep an idle connection in the connection pool. (Default: 300000)",
+            required = false,
+            confidential = false)
+    public int getKeepAliveDurationInMilliseconds() {
+        return keepAliveDurationInMilliseconds;
+    }
+
+    public void setKeepAliveDurationInMilliseconds(int keepAliveDurationInMilliseconds) {
+        this.keepAliveDurationInMilliseconds = keepAliveDurationInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 15,
+            displayMessageKey = "Max Requests",
+            helpMessageKey = "Maximum number of requests to execute concurrently. (Default: 64)",
+            required = false,
+            confidential = false)
+    public int getMaxRequests() {
+        return maxRequests;
+    }
+
+    public void setMaxRequests(int maxRequests) {
+        this.maxRequests = maxRequests;
+    }
+
+    @ConfigurationProperty(
+            order = 16,
+            displayMessageKey = "Max Requests Per Host",
+            helpMessageKey = "Maximum number of requests for Atlassian Guard to execute concurrently. With HTTP/2, they are multiplexed over a few connections. (Default: 5)",
+            required = false,
+            confidential = false)
+    public int getMaxRequestsPerHost() {
+        return maxRequestsPerHost;
+    }
+
+    public void setMaxRequestsPerHost(int maxRequestsPerHost) {
+        this.maxRequestsPerHost = maxRequestsPerHost;
+    }
+
+    @ConfigurationProperty(
+            order = 17,
+            displayMessageKey = "HTTP Protocols",
+            helpMessageKey = "Preferred HTTP protocols to negotiate with Atlassian Guard. Supported values are \"h2\" and \"http/1.1\". \"http/1.1\" must be contained. (Default: h2, http/1.1)",
+            required = false,
+            confidential = false)
+    public String[] getHttpProtocols() {
+        return httpProtocols;
+    }
+
+    public void setHttpProtocols(String[] httpProtocols) {
+        this.httpProtocols = httpProtocols;
+    }
+
+    @ConfigurationProperty(
+            order = 18,
+            displayMessageKey = "Retry Count",
+            helpMessageKey = "Max number of retries when an IO error or a server error (5xx) occurs. 0 disables retrying. (Default: 2)",
+            required = false,
+            confidential = false)
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    public void setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+    }
+
+    @ConfigurationProperty(
+            order = 19,
+            displayMessageKey = "Retry Initial Backoff (in milliseconds)",
+            helpMessageKey = "Base of the exponential backoff between retries. Actual wait time is randomized. (Default: 500)",
+            required = false,
+            confidential = false)
+    public int getRetryInitialBackoffInMilliseconds() {
+        return retryInitialBackoffInMilliseconds;
+    }
+
+    public void setRetryInitialBackoffInMilliseconds(int retryInitialBackoffInMilliseconds) {
+        this.retryInitialBackoffInMilliseconds = retryInitialBackoffInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 20,
+            displayMessageKey = "Retry Max Backoff (in milliseconds)",
+            helpMessageKey = "Upper limit of the wait time between retries. (Default: 10000)",
+            required = false,
+            confidential = false)
+    public int getRetryMaxBackoffInMilliseconds() {
+        return retryMaxBackoffInMilliseconds;
+    }
+
+    public void setRetryMaxBackoffInMilliseconds(int retryMaxBackoffInMilliseconds) {
+        this.retryMaxBackoffInMilliseconds = retryMaxBackoffInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 21,
+            displayMessageKey = "Retry Max Elapsed Time (in milliseconds)",
+            helpMessageKey = "Give up retrying when the total time of a request would exceed this value. 0 means no limit. (Default: 60000)",
+            required = false,
+            confidential = false)
+    public int getRetryMaxElapsedTimeInMilliseconds() {
+        return retryMaxElapsedTimeInMilliseconds;
+    }
+
+    public void setRetryMaxElapsedTimeInMilliseconds(int retryMaxElapsedTimeInMilliseconds) {
+        this.retryMaxElapsedTimeInMilliseconds = retryMaxElapsedTimeInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 22,
+            displayMessageKey = "Retry Methods",
+            helpMessageKey = "HTTP methods to be retried. Supported values are \"GET\", \"PUT\", \"PATCH\" and \"DELETE\". POST is never retried because it may create a duplicate. (Default: GET)",
+            required = false,
+            confidential = false)
+    public String[] getRetryMethods() {
+        return retryMethods;
+    }
+
+    public void setRetryMethods(String[] retryMethods) {
+        this.retryMethods = retryMethods;
+    }
+
+    @ConfigurationProperty(
+            order = 23,
+            displayMessageKey = "Rate Limit Retry Count",
+            helpMessageKey = "Max number of retries when Atlassian Guard returns 429 Too Many Requests. The wait time follows Retry-After and the rate limit headers, and all requests for the same Base URL are slowed down. (Default: 5)",
+            required = false,
+            confidential = false)
+    public int getRateLimitRetryCount() {
+        return rateLimitRetryCount;
+    }
+
+    public void setRateLimitRetryCount(int rateLimitRetryCount) {
+        this.rateLimitRetryCount = rateLimitRetryCount;
+    }
+
+    @ConfigurationProperty(
+            order = 24,
+            displayMessageKey = "Enable Circuit Breaker",
+            helpMessageKey = "If true, requests fail fast while Atlassian Guard is unavailable, instead of waiting for the timeout. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isCircuitBreakerEnabled() {
+        return circuitBreakerEnabled;
+    }
+
+    public void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+        this.circuitBreakerEnabled = circuitBreakerEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 25,
+            displayMessageKey = "Circuit Breaker Failure Threshold",
+            helpMessageKey = "Number of consecutive server errors (5xx) or IO errors (e.g. timeout) to open the circuit breaker. (Default: 5)",
+            required = false,
+            confidential = false)
+    public int getCircuitBreakerFailureThreshold() {
+        return circuitBreakerFailureThreshold;
+    }
+
+    public void setCircuitBreakerFailureThreshold(int circuitBreakerFailureThreshold) {
+        this.circuitBreakerFailureThreshold = circuitBreakerFailureThreshold;
+    }
+
+    @ConfigurationProperty(
+            order = 26,
+            displayMessageKey = "Circuit Breaker Open Duration (in milliseconds)",
+            helpMessageKey = "Time to fail fast after the circuit breaker is opened. After that, a probe request is sent to check the recovery. (Default: 30000)",
+            required = false,
+            confidential = false)
+    public int getCircuitBreakerOpenDurationInMilliseconds() {
+        return circuitBreakerOpenDurationInMilliseconds;
+    }
+
+    public void setCircuitBreakerOpenDurationInMilliseconds(int circuitBreakerOpenDurationInMilliseconds) {
+        this.circuitBreakerOpenDurationInMilliseconds = circuitBreakerOpenDurationInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 27,
+            displayMessageKey = "Enable Gzip Compression",
+            helpMessageKey = "If true, request gzip compressed responses from Atlassian Guard. The compressed and uncompressed bytes are logged as the client metrics when the connector instance is disposed. (Default: true)",
+            required = false,
+            confidential = false)
+    public boolean isGzipEnabled() {
+        return gzipEnabled;
+    }
+
+    public void setGzipEnabled(boolean gzipEnabled) {
+        this.gzipEnabled = gzipEnabled;
+    }
+
+    @ConfigurationProperty(
+            order = 28,
+            displayMessageKey = "Prefetch Pages",
+            helpMessageKey = "Number of the pages to be requested ahead while processing the current page in the full search. 0 disables prefetching. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getPrefetchPages() {
+        return prefetchPages;
+    }
+
+    public void setPrefetchPages(int prefetchPages) {
+        this.prefetchPages = prefetchPages;
+    }
+
+    @ConfigurationProperty(
+            order = 29,
+            displayMessageKey = "Scan Parallelism",
+            helpMessageKey = "Number of the pages to be fetched concurrently in the full search after the total is known from the first page. 1 disables parallel fetching. The concurrency is also limited by Max Requests Per Host. (Default: 1)",
+            required = false,
+            confidential = false)
+    public int getScanParallelism() {
+        return scanParallelism;
+    }
+
+    public void setScanParallelism(int scanParallelism) {
+        this.scanParallelism = scanParallelism;
+    }
+
+    @ConfigurationProperty(
+            order = 30,
+            displayMessageKey = "Scan Ordered",
+            helpMessageKey = "If true, the results of the parallel full search are returned in the page order. Otherwise, they are returned in the order the pages arrive. (Default: true)",
+            required = false,
+            confidential = false)
+    public boolean isScanOrdered() {
+        return scanOrdered;
+    }
+
+    public void setScanOrdered(boolean scanOrdered) {
+        this.scanOrdered = scanOrdered;
+    }
+
+    @ConfigurationProperty(
+            order = 31,
+            displayMessageKey = "Scan Past Total",
+            helpMessageKey = "If true, the full search requests one more page when the last page is full, " +
+                    "to return the resources created during the search. Otherwise, it trusts the total of the first page. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isScanPastTotal() {
+        return scanPastTotal;
+    }
+
+    public void setScanPastTotal(boolean scanPastTotal) {
+        this.scanPastTotal = scanPastTotal;
+    }
+
+    @ConfigurationProperty(
+            order = 32,
+            displayMessageKey = "Lookup Batch Size",
+            helpMessageKey = "Number of values combined into one OR filter when searching by multiple ids, userNames or displayNames. (Default: 50)",
+            required = false,
+            confidential = false)
+    public int getLookupBatchSize() {
+        return lookupBatchSize;
+    }
+
+    public void setLookupBatchSize(int lookupBatchSize) {
+        this.lookupBatchSize = lookupBatchSize;
+    }
+
+    @ConfigurationProperty(
+            order = 33,
+            displayMessageKey = "Group Membership Index TTL (in milliseconds)",
+            helpMessageKey = "Time to live of the in-memory index from user id to groups, which is used for searching groups by members. " +
+                    "It's rebuilt by scanning all groups after it expires. 0 disables the index. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getGroupMembershipIndexTtlInMilliseconds() {
+        return groupMembershipIndexTtlInMilliseconds;
+    }
+
+    public void setGroupMembershipIndexTtlInMilliseconds(int groupMembershipIndexTtlInMilliseconds) {
+        this.groupMembershipIndexTtlInMilliseconds = groupMembershipIndexTtlInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 34,
+            displayMessageKey = "Group Membership Strategy",
+            helpMessageKey = "How to search groups by members. \"GROUP_SCAN\" scans all groups (or uses the group membership index if it's enabled). " +
+                    "\"USER_RESOURCE\" reads the groups attribute of each member user and fetches the referenced groups only. (Default: GROUP_SCAN)",
+            required = false,
+            confidential = false)
+    public String getGroupMembershipStrategy() {
+        return groupMembershipStrategy;
+    }
+
+    public void setGroupMembershipStrategy(String groupMembershipStrategy) {
+        this.groupMembershipStrategy = groupMembershipStrategy;
+    }
+
+    @ConfigurationProperty(
+            order = 35,
+            displayMessageKey = "Membership Patch Chunk Size",
+            helpMessageKey = "Max number of members added or removed by one PATCH request. Larger membership changes are split into multiple requests. (Default: 1000)",
+            required = false,
+            confidential = false)
+    public int getMembershipPatchChunkSize() {
+        return membershipPatchChunkSize;
+    }
+
+    public void setMembershipPatchChunkSize(int membershipPatchChunkSize) {
+        this.membershipPatchChunkSize = membershipPatchChunkSize;
+    }
+
+    @ConfigurationProperty(
+            order = 36,
+            displayMessageKey = "Membership Patch Parallelism",
+            helpMessageKey = "Number of the split membership PATCH requests sent concurrently. 1 sends them sequentially. (Default: 1)",
+            required = false,
+            confidential = false)
+    public int getMembershipPatchParallelism() {
+        return membershipPatchParallelism;
+    }
+
+    public void setMembershipPatchParallelism(int membershipPatchParallelism) {
+        this.membershipPatchParallelism = membershipPatchParallelism;
+    }
+
+    @ConfigurationProperty(
+            order = 37,
+            displayMessageKey = "Patch Coalescing Window (in milliseconds)",
+            helpMessageKey = "If greater than 0, the updates of the same user or group within the window are merged and sent as one PATCH request after the window. " +
+                    "The failure of the delayed request is only logged. The updates processed by different pooled connector instances aren't merged. " +
+                    "0 sends each update immediately. (Default: 0)",
+            required = false,
+            confidential = false)
+    public int getPatchCoalescingWindowInMilliseconds() {
+        return patchCoalescingWindowInMilliseconds;
+    }
+
+    public void setPatchCoalescingWindowInMilliseconds(int patchCoalescingWindowInMilliseconds) {
+        this.patchCoalescingWindowInMilliseconds = patchCoalescingWindowInMilliseconds;
+    }
+
+    @ConfigurationProperty(
+            order = 38,
+            displayMessageKey = "Skip Unchanged Updates",
+            helpMessageKey = "If true, the current user or group is read before PATCH and the operations which don't change it are dropped. " +
+                    "The PATCH request is skipped if nothing changes. (Default: false)",
+            required = false,
+            confidential = false)
+    public boolean isSkipUnchangedUpdatesEnabled() {
+        return skipUnchangedUpdatesEnabled;
+    }
+
+    public void setSkipUnchangedUpdatesEnabled(boolean skipUnchangedUpdatesEnabled) {
+        this.skipUnchangedUpdatesEnabled = skipUnchangedUpdatesEnabled;
+    }
+
     @Override
     public void validate() {
         if (baseURL == null) {
@@ -229,5 +628,68 @@ public class AtlassianGuardConfiguration extends AbstractConfiguration {
         if (token == null) {
             throw new ConfigurationException("Atlassian Guard token is required");
         }
+        if (maxIdleConnections < 0) {
+            throw new ConfigurationException("Max idle connections must be 0 or greater");
+        }
+        if (keepAliveDurationInMilliseconds <= 0) {
+            throw new ConfigurationException("Keep alive duration must be greater than 0");
+        }
+        if (maxRequests < 1 || maxRequestsPerHost < 1) {
+            throw new ConfigurationException("Max requests and max requests per host must be 1 or greater");
+        }
+        if (httpProtocols != null && httpProtocols.length > 0) {
+            Set<String> protocols = Arrays.stream(httpProtocols).map(String::toLowerCase).collect(Collectors.toSet());
+            if (!protocols.contains("http/1.1")) {
+                throw new ConfigurationException("HTTP protocols must contain \"http/1.1\": " + Arrays.toString(httpProtocols));
+            }
+            protocols.remove("http/1.1");
+            protocols.remove("h2");
+            if (!protocols.isEmpty()) {
+                throw new ConfigurationException("Unsupported HTTP protocols: " + protocols);
+            }
+        }
+        if (retryCount < 0) {
+            throw new ConfigurationException("Retry count must be 0 or greater");
+        }
+        if (prefetchPages < 0 || prefetchPages > 10) {
+            throw new ConfigurationException("Prefetch pages must be between 0 and 10");
+        }
+        if (scanParallelism < 1 || scanParallelism > 32) {
+            throw new ConfigurationException("Scan parallelism must be between 1 and 32");
+        }
+        if (lookupBatchSize < 1 || lookupBatchSize > 100) {
+            throw new ConfigurationException("Lookup batch size must be between 1 and 100");
+        }
+        if (groupMembershipIndexTtlInMilliseconds < 0) {
+            throw new ConfigurationException("Group membership index TTL must be 0 or greater");
+        }
+        if (groupMembershipStrategy != null && !groupMembershipStrategy.equals(GROUP_SCAN) && !groupMembershipStrategy.equals(USER_RESOURCE)) {
+            throw new ConfigurationException("Unsupported group membership strategy: " + groupMembershipStrategy);
+        }
+        if (membershipPatchChunkSize < 1) {
+            throw new ConfigurationException("Membership patch chunk size must be 1 or greater");
+        }
+        if (membershipPatchParallelism < 1 || membershipPatchParallelism > 16) {
+            throw new ConfigurationException("Membership patch parallelism must be between 1 and 16");
+        }
+        if (patchCoalescingWindowInMilliseconds < 0) {
+            throw new ConfigurationException("Patch coalescing window must be 0 or greater");
+        }
+        if (rateLimitRetryCount < 0) {
+            throw new ConfigurationException("Rate limit retry count must be 0 or greater");
+        }
+        if (circuitBreakerEnabled && (circuitBreakerFailureThreshold < 1 || circuitBreakerOpenDurationInMilliseconds < 1)) {
+            throw new ConfigurationException("Circuit breaker failure threshold and open duration must be 1 or greater");
+        }
+        if (retryInitialBackoffInMilliseconds < 0 || retryMaxBackoffInMilliseconds < 0 || retryMaxElapsedTimeInMilliseconds < 0) {
+            throw new ConfigurationException("Retry backoff and max elapsed time must be 0 or greater");
+        }
+        if (retryMethods != null) {
+            Set<String> methods = Arrays.stream(retryMethods).map(String::toUpperCase).collect(Collectors.toSet());
+            methods.removeAll(Arrays.asList("GET", "PUT", "PATCH", "DELETE"));
+            if (!methods.isEmpty()) {
+                throw new ConfigurationException("Unsupported retry methods: " + methods);
+            }
+        }
     }
 }
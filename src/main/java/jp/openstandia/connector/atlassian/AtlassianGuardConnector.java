@@ -15,8 +15,12 @@
  */
 package jp.openstandia.connector.atlassian;
 
+import jp.openstandia.connector.util.GzipResponseInterceptor;
 import jp.openstandia.connector.util.ObjectHandler;
 import jp.openstandia.connector.util.SchemaDefinition;
+import jp.openstandia.connector.util.SchemaDefinition.ProjectionPlan;
+import jp.openstandia.connector.util.SharedHttpClientRegistry;
+import jp.openstandia.connector.util.SharedRegistry;
 import jp.openstandia.connector.util.Utils;
 import okhttp3.*;
 import org.identityconnectors.common.StringUtil;
@@ -31,9 +35,7 @@ import org.identityconnectors.framework.spi.operations.*;
 import java.io.IOException;
 import java.net.InetSocketAddress;
 import java.net.Proxy;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 
@@ -47,6 +49,7 @@ public class AtlassianGuardConnector implements PoolableConnector, CreateOp, Upd
 
     private AtlassianGuardSchema cachedSchema;
     private String instanceName;
+    private SharedRegistry.Lease<OkHttpClient> httpClientLease;
 
     @Override
     public Configuration getConfiguration() {
@@ -67,18 +70,21 @@ public class AtlassianGuardConnector implements PoolableConnector, CreateOp, Upd
     }
 
     protected void authenticateResource() {
-        OkHttpClient.Builder okHttpBuilder = new OkHttpClient.Builder();
-        okHttpBuilder.connectTimeout(configuration.getConnectionTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
-        okHttpBuilder.readTimeout(configuration.getReadTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
-        okHttpBuilder.writeTimeout(configuration.getWriteTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
-        okHttpBuilder.addInterceptor(getInterceptor(configuration.getToken()));
+        // Share the connection pool and the dispatcher between the pooled connector instances
+        httpClientLease = SharedHttpClientRegistry.acquire(createHttpClientKey(), this::createSharedHttpClient);
 
-        // Setup http proxy aware httpClient
-        if (StringUtil.isNotEmpty(configuration.getHttpProxyHost())) {
-            okHttpBuilder.proxy(new Proxy(Proxy.Type.HTTP,
-                    new InetSocketAddress(configuration.getHttpProxyHost(), configuration.getHttpProxyPort())));
+        try {
+            // Per-instance settings are added to the derived client which still shares them
+            client = new AtlassianGuardRESTClient();
 
-            if (StringUtil.isNotEmpty(configuration.getHttpProxyUser()) && configuration.getHttpProxyPassword() != null) {
+            OkHttpClient.Builder okHttpBuilder = httpClientLease.get().newBuilder();
+            okHttpBuilder.addInterceptor(getInterceptor(configuration.getToken()));
+            if (configuration.isGzipEnabled()) {
+                okHttpBuilder.addInterceptor(new GzipResponseInterceptor(client.getMetrics()));
+            }
+
+            if (StringUtil.isNotEmpty(configuration.getHttpProxyHost()) &&
+                    StringUtil.isNotEmpty(configuration.getHttpProxyUser()) && configuration.getHttpProxyPassword() != null) {
                 configuration.getHttpProxyPassword().access(c -> {
                     okHttpBuilder.proxyAuthenticator((Route route, Response response) -> {
                         String credential = Credentials.basic(configuration.getHttpProxyUser(), String.valueOf(c));
@@ -88,15 +94,91 @@ public class AtlassianGuardConnector implements PoolableConnector, CreateOp, Upd
                     });
                 });
             }
+
+            OkHttpClient httpClient = okHttpBuilder.build();
+
+            client.init(instanceName, configuration, httpClient);
+
+            // Verify we can access the Atlassian Guard API
+            client.test();
+
+        } catch (RuntimeException e) {
+            // Don't leak the leases, otherwise the shared http client is never closed
+            if (client != null) {
+                client.close();
+                client = null;
+            }
+            releaseHttpClient();
+            throw e;
         }
+    }
 
-        OkHttpClient httpClient = okHttpBuilder.build();
+    protected SharedHttpClientRegistry.Key createHttpClientKey() {
+        return SharedHttpClientRegistry.Key.of(
+                configuration.getBaseURL(),
+                configuration.getHttpProxyHost(),
+                configuration.getHttpProxyPort(),
+                configuration.getConnectionTimeoutInMilliseconds(),
+                configuration.getReadTimeoutInMilliseconds(),
+                configuration.getWriteTimeoutInMilliseconds(),
+                configuration.getMaxIdleConnections(),
+                configuration.getKeepAliveDurationInMilliseconds(),
+                configuration.getMaxRequests(),
+                configuration.getMaxRequestsPerHost(),
+                resolveProtocols()
+        );
+    }
+
+    protected OkHttpClient createSharedHttpClient() {
+        OkHttpClient.Builder okHttpBuilder = new OkHttpClient.Builder();
+        okHttpBuilder.connectTimeout(configuration.getConnectionTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
+        okHttpBuilder.readTimeout(configuration.getReadTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
+        okHttpBuilder.writeTimeout(configuration.getWriteTimeoutInMilliseconds(), TimeUnit.MILLISECONDS);
 
-        client = new AtlassianGuardRESTClient();
-        client.init(instanceName, configuration, httpClient);
+        // Tune the connection pool and the dispatcher.
+        // With HTTP/2, concurrent requests are multiplexed over a few connections.
+        okHttpBuilder.connectionPool(new ConnectionPool(configuration.getMaxIdleConnections(),
+                configuration.getKeepAliveDurationInMilliseconds(), TimeUnit.MILLISECONDS));
 
-        // Verify we can access the Atlassian Guard API
-        client.test();
+        Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(configuration.getMaxRequests());
+        dispatcher.setMaxRequestsPerHost(configuration.getMaxRequestsPerHost());
+        okHttpBuilder.dispatcher(dispatcher);
+
+        List<Protocol> protocols = resolveProtocols();
+        if (!protocols.isEmpty()) {
+            okHttpBuilder.protocols(protocols);
+        }
+
+        // Setup http proxy aware httpClient
+        if (StringUtil.isNotEmpty(configuration.getHttpProxyHost())) {
+            okHttpBuilder.proxy(new Proxy(Proxy.Type.HTTP,
+                    new InetSocketAddress(configuration.getHttpProxyHost(), configuration.getHttpProxyPort())));
+        }
+
+        return okHttpBuilder.build();
+    }
+
+    private List<Protocol> resolveProtocols() {
+        List<Protocol> protocols = new ArrayList<>();
+        if (configuration.getHttpProtocols() == null) {
+            return protocols;
+        }
+        for (String p : configuration.getHttpProtocols()) {
+            try {
+                protocols.add(Protocol.get(p.toLowerCase()));
+            } catch (IOException e) {
+                throw new ConfigurationException("Unsupported HTTP protocol: " + p, e);
+            }
+        }
+        return protocols;
+    }
+
+    private void releaseHttpClient() {
+        if (httpClientLease != null) {
+            httpClientLease.release();
+            httpClientLease = null;
+        }
     }
 
     private Interceptor getInterceptor(GuardedString accessToken) {
@@ -195,11 +277,20 @@ public class AtlassianGuardConnector implements PoolableConnector, CreateOp, Upd
 
     @Override
     public FilterTranslator<AtlassianGuardFilter> createFilterTranslator(ObjectClass objectClass, OperationOptions options) {
-        return new AtlassianGuardFilterTranslator(objectClass, options);
+        SchemaDefinition schema = null;
+        try {
+            schema = getSchemaHandler(objectClass).getSchema();
+        } catch (InvalidAttributeValueException e) {
+            // Unsupported object class
+        }
+        return new AtlassianGuardFilterTranslator(objectClass, schema, client::isFilterSupported, options);
     }
 
     @Override
     public void executeQuery(ObjectClass objectClass, AtlassianGuardFilter filter, ResultsHandler resultsHandler, OperationOptions options) {
+        // The pending updates must be visible to the search
+        client.flushPatches();
+
         ObjectHandler schemaHandler = getSchemaHandler(objectClass);
         SchemaDefinition schema = schemaHandler.getSchema();
 
@@ -213,6 +304,8 @@ public class AtlassianGuardConnector implements PoolableConnector, CreateOp, Upd
         Set<String> fetchFieldSet = new HashSet<>(attributesToGet.values());
 
         boolean allowPartialAttributeValues = Utils.shouldAllowPartialAttributeValues(options);
+        // Compile the projection once, the objects in this query are converted with it
+        ProjectionPlan plan = schema.compileProjectionPlan(returnAttributesSet, allowPartialAttributeValues);
 
         int total = 0;
         AtomicInteger fetchedCount = new AtomicInteger();
@@ -224,22 +317,36 @@ public class AtlassianGuardConnector implements PoolableConnector, CreateOp, Upd
         if (filter != null) {
             if (filter.isByUid()) {
                 total = schemaHandler.getByUid((Uid) filter.attributeValue, countableResultHandler, options,
-                        returnAttributesSet, fetchFieldSet,
-                        allowPartialAttributeValues, pageSize, pageOffset);
+                        plan, fetchFieldSet,
+                        pageSize, pageOffset);
             } else if (filter.isByName()) {
                 total = schemaHandler.getByName((Name) filter.attributeValue, countableResultHandler, options,
-                        returnAttributesSet, fetchFieldSet,
-                        allowPartialAttributeValues, pageSize, pageOffset);
+                        plan, fetchFieldSet,
+                        pageSize, pageOffset);
             } else if (filter.isByMembers()) {
                 total = schemaHandler.getByMembers(filter.attributeValue, countableResultHandler, options,
-                        returnAttributesSet, fetchFieldSet,
-                        allowPartialAttributeValues, pageSize, pageOffset);
+                        plan, fetchFieldSet,
+                        pageSize, pageOffset);
+            } else if (filter.isByGroups()) {
+                total = schemaHandler.getByGroups(filter.attributeValue, countableResultHandler, options,
+                        plan, fetchFieldSet,
+                        pageSize, pageOffset);
+            } else if (filter.isByExpression()) {
+                total = schemaHandler.getByFilter(filter.expression, filter.filterAttributes, filter.filter,
+                        countableResultHandler, options,
+                        plan, fetchFieldSet,
+                        pageSize, pageOffset);
+            } else if (filter.isByAnyMatch()) {
+                total = schemaHandler.getByAnyMatch(filter.attributeValue, filter.expression, filter.filterAttributes, filter.filter,
+                        countableResultHandler, options,
+                        plan, fetchFieldSet,
+                        pageSize, pageOffset);
             }
             // No result
         } else {
             total = schemaHandler.getAll(countableResultHandler, options,
-                    returnAttributesSet, fetchFieldSet,
-                    allowPartialAttributeValues, pageSize, pageOffset);
+                    plan, fetchFieldSet,
+                    pageSize, pageOffset);
         }
 
         if (resultsHandler instanceof SearchResultsHandler &&
@@ -255,19 +362,34 @@ public class AtlassianGuardConnector implements PoolableConnector, CreateOp, Upd
 
     @Override
     public void test() {
+        // Keep holding the shared http client during re-authentication not to throw away the warm connections
+        SharedRegistry.Lease<OkHttpClient> previousLease = httpClientLease;
+        httpClientLease = null;
         try {
             dispose();
             authenticateResource();
         } catch (RuntimeException e) {
             throw processRuntimeException(e);
+        } finally {
+            if (previousLease != null) {
+                previousLease.release();
+            }
         }
     }
 
     @Override
     public void dispose() {
-        client.close();
+        if (client != null) {
+            try {
+                client.flushPatches();
+            } catch (RuntimeException e) {
+                LOG.error(e, "Failed to send the pending updates when disposing. instanceName={0}", instanceName);
+            }
+            client.close();
+        }
         this.client = null;
         this.cachedSchema = null;
+        releaseHttpClient();
     }
 
     @Override
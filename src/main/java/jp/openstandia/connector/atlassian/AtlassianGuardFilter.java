@@ -18,32 +18,69 @@ package jp.openstandia.connector.atlassian;
 import org.identityconnectors.framework.common.objects.Attribute;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.Uid;
+import org.identityconnectors.framework.common.objects.filter.Filter;
+
+import java.util.Collections;
+import java.util.Map;
 
 public class AtlassianGuardFilter {
     final String attributeName;
     final FilterType filterType;
     final Attribute attributeValue;
+    // SCIM filter expression, null if it can't be pushed down
+    final String expression;
+    // Key: attribute name (for connector), Value: SCIM attribute path used in the expression
+    final Map<String, String> filterAttributes;
+    // Original filter to be evaluated in the connector when Atlassian Guard rejects the expression
+    final Filter filter;
 
     public AtlassianGuardFilter(String attributeName, FilterType filterType, Attribute attributeValue) {
+        this(attributeName, filterType, attributeValue, null, Collections.emptyMap(), null);
+    }
+
+    public AtlassianGuardFilter(String attributeName, FilterType filterType, Attribute attributeValue,
+                                String expression, Map<String, String> filterAttributes, Filter filter) {
         this.attributeName = attributeName;
         this.filterType = filterType;
         this.attributeValue = attributeValue;
+        this.expression = expression;
+        this.filterAttributes = filterAttributes;
+        this.filter = filter;
+    }
+
+    public static AtlassianGuardFilter expression(String expression, Map<String, String> filterAttributes, Filter filter) {
+        return new AtlassianGuardFilter(null, FilterType.EXPRESSION, null, expression, filterAttributes, filter);
     }
 
     public boolean isByName() {
-        return attributeName.equals(Name.NAME) && filterType == FilterType.EXACT_MATCH;
+        return Name.NAME.equals(attributeName) && filterType == FilterType.EXACT_MATCH;
     }
 
     public boolean isByUid() {
-        return attributeName.equals(Uid.NAME) && filterType == FilterType.EXACT_MATCH;
+        return Uid.NAME.equals(attributeName) && filterType == FilterType.EXACT_MATCH;
     }
 
     public boolean isByMembers() {
-        return attributeName.equals("members.User.value") && filterType == FilterType.EXACT_MATCH;
+        return "members.User.value".equals(attributeName) && filterType == FilterType.EXACT_MATCH;
+    }
+
+    public boolean isByGroups() {
+        return "groups".equals(attributeName) && filterType == FilterType.EXACT_MATCH;
+    }
+
+    public boolean isByExpression() {
+        return filterType == FilterType.EXPRESSION;
+    }
+
+    public boolean isByAnyMatch() {
+        return filterType == FilterType.ANY_MATCH;
     }
 
     public enum FilterType {
-        EXACT_MATCH
+        EXACT_MATCH,
+        EXPRESSION,
+        // OR of equality on one attribute, the attribute value holds all the values
+        ANY_MATCH
     }
 
     @Override
@@ -52,6 +89,7 @@ public class AtlassianGuardFilter {
                 "attributeName='" + attributeName + '\'' +
                 ", filterType=" + filterType +
                 ", attributeValue='" + attributeValue + '\'' +
+                ", expression='" + expression + '\'' +
                 '}';
     }
 }
@@ -15,21 +15,43 @@
  */
 package jp.openstandia.connector.atlassian;
 
+import jp.openstandia.connector.util.SchemaDefinition;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.objects.*;
-import org.identityconnectors.framework.common.objects.filter.AbstractFilterTranslator;
-import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
-import org.identityconnectors.framework.common.objects.filter.EqualsFilter;
+import org.identityconnectors.framework.common.objects.filter.*;
+
+import java.util.*;
+import java.util.function.Predicate;
 
 public class AtlassianGuardFilterTranslator extends AbstractFilterTranslator<AtlassianGuardFilter> {
 
     private static final Log LOG = Log.getLog(AtlassianGuardFilterTranslator.class);
 
+    // Multi-valued complex attributes are filtered by the value sub-attribute
+    private static final Map<String, String> FILTER_PATHS = new HashMap<>();
+
+    // Attributes which can be looked up by multiple values in one request
+    private static final Set<String> ANY_MATCH_PATHS = new HashSet<>(Arrays.asList("id", "userName", "displayName"));
+
+    static {
+        FILTER_PATHS.put("emails", "emails.value");
+        FILTER_PATHS.put("phoneNumbers", "phoneNumbers.value");
+    }
+
     private final OperationOptions options;
     private final ObjectClass objectClass;
+    private final SchemaDefinition schema;
+    private final Predicate<String> isFilterSupported;
 
     public AtlassianGuardFilterTranslator(ObjectClass objectClass, OperationOptions options) {
+        this(objectClass, null, (path) -> true, options);
+    }
+
+    public AtlassianGuardFilterTranslator(ObjectClass objectClass, SchemaDefinition schema,
+                                          Predicate<String> isFilterSupported, OperationOptions options) {
         this.objectClass = objectClass;
+        this.schema = schema;
+        this.isFilterSupported = isFilterSupported;
         this.options = options;
     }
 
@@ -40,23 +62,132 @@ public class AtlassianGuardFilterTranslator extends AbstractFilterTranslator<Atl
         }
         Attribute attr = filter.getAttribute();
 
+        String expression = toExpression(attr, "eq", false);
+        Map<String, String> filterAttributes = toFilterAttributes(attr, expression);
+
         if (attr instanceof Uid) {
             Uid uid = (Uid) attr;
             AtlassianGuardFilter uidFilter = new AtlassianGuardFilter(uid.getName(),
                     AtlassianGuardFilter.FilterType.EXACT_MATCH,
-                    uid);
+                    uid, expression, filterAttributes, filter);
             return uidFilter;
         }
         if (attr instanceof Name) {
             Name name = (Name) attr;
             AtlassianGuardFilter nameFilter = new AtlassianGuardFilter(name.getName(),
                     AtlassianGuardFilter.FilterType.EXACT_MATCH,
-                    name);
+                    name, expression, filterAttributes, filter);
             return nameFilter;
         }
 
-        // Not supported searching by other attributes
-        return null;
+        // Equality of the multi-valued groups is the same as ContainsAllValuesFilter for the single value,
+        // i.e. the users who belong to the group. Equality of the multiple values isn't supported.
+        if (isUserGroups(attr) && attr.getValue().size() == 1) {
+            return new AtlassianGuardFilter(attr.getName(),
+                    AtlassianGuardFilter.FilterType.EXACT_MATCH,
+                    attr);
+        }
+
+        if (expression == null) {
+            // Not supported searching by the attribute
+            return null;
+        }
+        return AtlassianGuardFilter.expression(expression, filterAttributes, filter);
+    }
+
+    @Override
+    protected AtlassianGuardFilter createStartsWithExpression(StartsWithFilter filter, boolean not) {
+        return createStringExpression(filter, "sw", not);
+    }
+
+    @Override
+    protected AtlassianGuardFilter createContainsExpression(ContainsFilter filter, boolean not) {
+        return createStringExpression(filter, "co", not);
+    }
+
+    private AtlassianGuardFilter createStringExpression(AttributeFilter filter, String operator, boolean not) {
+        if (not) {
+            return null;
+        }
+        Attribute attr = filter.getAttribute();
+
+        String expression = toExpression(attr, operator, true);
+        if (expression == null) {
+            // Not supported searching by the attribute
+            return null;
+        }
+        return AtlassianGuardFilter.expression(expression, toFilterAttributes(attr, expression), filter);
+    }
+
+    @Override
+    protected AtlassianGuardFilter createAndExpression(AtlassianGuardFilter leftExpression, AtlassianGuardFilter rightExpression) {
+        return createLogicalExpression(leftExpression, rightExpression, "and");
+    }
+
+    @Override
+    protected AtlassianGuardFilter createOrExpression(AtlassianGuardFilter leftExpression, AtlassianGuardFilter rightExpression) {
+        AtlassianGuardFilter anyMatch = createAnyMatchExpression(leftExpression, rightExpression);
+        if (anyMatch != null) {
+            return anyMatch;
+        }
+        return createLogicalExpression(leftExpression, rightExpression, "or");
+    }
+
+    /**
+     * Merge OR of equality on the same id, userName or displayName into one filter,
+     * so that the handler can look them up by chunked requests instead of one request per value.
+     *
+     * @param left
+     * @param right
+     * @return the merged filter, or null if they can't be merged
+     */
+    private AtlassianGuardFilter createAnyMatchExpression(AtlassianGuardFilter left, AtlassianGuardFilter right) {
+        Attribute leftAttr = getAnyMatchAttribute(left);
+        Attribute rightAttr = getAnyMatchAttribute(right);
+        if (leftAttr == null || rightAttr == null || !leftAttr.getName().equals(rightAttr.getName())) {
+            return null;
+        }
+
+        Set<Object> values = new LinkedHashSet<>(leftAttr.getValue());
+        values.addAll(rightAttr.getValue());
+
+        Attribute attr = AttributeBuilder.build(leftAttr.getName(), values);
+        String expression = "(" + left.expression + ") or (" + right.expression + ")";
+        Filter filter = FilterBuilder.or(left.filter, right.filter);
+
+        return new AtlassianGuardFilter(attr.getName(), AtlassianGuardFilter.FilterType.ANY_MATCH,
+                attr, expression, left.filterAttributes, filter);
+    }
+
+    private Attribute getAnyMatchAttribute(AtlassianGuardFilter filter) {
+        if (filter.expression == null) {
+            return null;
+        }
+        if (filter.isByAnyMatch()) {
+            return filter.attributeValue;
+        }
+        if (!(filter.filter instanceof EqualsFilter)) {
+            return null;
+        }
+        Attribute attr = ((EqualsFilter) filter.filter).getAttribute();
+        if (!ANY_MATCH_PATHS.contains(filter.filterAttributes.get(attr.getName()))
+                || !(attr.getValue().get(0) instanceof String)) {
+            return null;
+        }
+        return attr;
+    }
+
+    private AtlassianGuardFilter createLogicalExpression(AtlassianGuardFilter left, AtlassianGuardFilter right, String operator) {
+        if (left.expression == null || right.expression == null) {
+            // The framework filters the results instead
+            return null;
+        }
+        Filter filter = operator.equals("and") ? FilterBuilder.and(left.filter, right.filter) : FilterBuilder.or(left.filter, right.filter);
+        Map<String, String> filterAttributes = new HashMap<>(left.filterAttributes);
+        filterAttributes.putAll(right.filterAttributes);
+
+        String expression = "(" + left.expression + ") " + operator + " (" + right.expression + ")";
+        return AtlassianGuardFilter.expression(expression, filterAttributes, filter);
     }
 
     @Override
@@ -76,7 +207,85 @@ public class AtlassianGuardFilterTranslator extends AbstractFilterTranslator<Atl
             return filterGroupByMember;
         }
 
+        // Atlassian Guard doesn't support filter by groups in User schema too.
+        // The members of the group are resolved by reading the group instead.
+        if (isUserGroups(attr)) {
+            AtlassianGuardFilter filterUserByGroup = new AtlassianGuardFilter(attr.getName(),
+                    AtlassianGuardFilter.FilterType.EXACT_MATCH,
+                    attr);
+            return filterUserByGroup;
+        }
+
         // Not supported searching by other attributes
         return null;
     }
+
+    private boolean isUserGroups(Attribute attr) {
+        return objectClass.equals(AtlassianGuardUserHandler.USER_OBJECT_CLASS) &&
+                attr.getName().equals("groups") &&
+                attr.getValue() != null && !attr.getValue().isEmpty();
+    }
+
+    /**
+     * Resolve the SCIM attribute path for filtering by the native name in the schema.
+     *
+     * @param attrName
+     * @return the path, or null if it can't be used in the filter
+     */
+    private String toFilterPath(String attrName) {
+        if (attrName.equals(Uid.NAME)) {
+            return "id";
+        }
+        if (schema == null) {
+            return null;
+        }
+        String fetchField = schema.getFetchField(attrName);
+        if (fetchField == null || fetchField.equals("groups") || fetchField.equals("members")) {
+            return null;
+        }
+        String path = FILTER_PATHS.getOrDefault(fetchField, fetchField);
+        if (!isFilterSupported.test(path)) {
+            LOG.ok("Atlassian Guard doesn't support filtering by {0}, the framework filters it instead", path);
+            return null;
+        }
+        return path;
+    }
+
+    private String toExpression(Attribute attr, String operator, boolean stringOnly) {
+        if (attr.getValue() == null || attr.getValue().size() != 1) {
+            return null;
+        }
+        String path = toFilterPath(attr.getName());
+        if (path == null) {
+            return null;
+        }
+
+        Object value = attr.getValue().get(0);
+        if (value instanceof String) {
+            return path + " " + operator + " \"" + escape((String) value) + "\"";
+        }
+        if (value instanceof Boolean && !stringOnly) {
+            return path + " " + operator + " " + value;
+        }
+        // Not supported value type
+        return null;
+    }
+
+    private Map<String, String> toFilterAttributes(Attribute attr, String expression) {
+        if (expression == null) {
+            return Collections.emptyMap();
+        }
+        return Collections.singletonMap(attr.getName(), toFilterPath(attr.getName()));
+    }
+
+    /**
+     * Escape the value to be put in the double quoted string of the SCIM filter.
+     * The backslash is escaped first, so the escape of the double quote is kept.
+     *
+     * @param value
+     * @return
+     */
+    static String escape(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"");
+    }
 }
@@ -15,19 +15,29 @@
  */
 package jp.openstandia.connector.atlassian;
 
+import jp.openstandia.connector.util.MembershipIndex;
 import jp.openstandia.connector.util.ObjectHandler;
+import jp.openstandia.connector.util.ResourceBinder;
 import jp.openstandia.connector.util.SchemaDefinition;
+import jp.openstandia.connector.util.SchemaDefinition.ProjectionPlan;
 import org.identityconnectors.common.StringUtil;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.Filter;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
+import static jp.openstandia.connector.util.ResourceBinder.readMultiValues;
 import static jp.openstandia.connector.util.Utils.toZoneDateTimeForISO8601OffsetDateTime;
 import static org.identityconnectors.framework.common.objects.AttributeInfo.Flags.*;
 
@@ -40,12 +50,14 @@ public class AtlassianGuardGroupHandler implements ObjectHandler {
     private final AtlassianGuardConfiguration configuration;
     private final AtlassianGuardRESTClient client;
     private final SchemaDefinition schema;
+    private final ResourceBinder binder;
 
     public AtlassianGuardGroupHandler(AtlassianGuardConfiguration configuration, AtlassianGuardRESTClient client,
-                                      SchemaDefinition schema) {
+                                      SchemaDefinition schema, ResourceBinder binder) {
         this.configuration = configuration;
         this.client = client;
         this.schema = schema;
+        this.binder = binder;
     }
 
     public static SchemaDefinition.Builder createSchema(AtlassianGuardConfiguration configuration, AtlassianGuardRESTClient client) {
@@ -90,7 +102,7 @@ public class AtlassianGuardGroupHandler implements ObjectHandler {
                 (add, dest) -> dest.addMembers(add),
                 (remove, dest) -> dest.removeMembers(remove),
                 (source) -> source.members != null ? source.members.stream().filter(x -> x.type != null && x.type.equals("User")).map(x -> x.value) : null,
-                null
+                "members"
         );
 
         // Metadata (readonly)
@@ -113,6 +125,24 @@ public class AtlassianGuardGroupHandler implements ObjectHandler {
         return sb;
     }
 
+    /**
+     * Create the binder of the group schema for the searches. The members and the name are read from the JSON
+     * in the same way as the read functions of the schema.
+     *
+     * @param schema
+     * @return
+     */
+    public static ResourceBinder createBinder(SchemaDefinition schema) {
+        return ResourceBinder.newBuilder(schema)
+                .reader("members.User.value", (parser) -> readMultiValues(parser).stream()
+                        .filter(x -> x.type != null && x.type.equals("User"))
+                        .map(x -> x.value)
+                        .collect(Collectors.toList()))
+                // displayName is optional in Atlassian Guard
+                .fallback(Name.NAME, Uid.NAME)
+                .build();
+    }
+
     private static Stream<String> filterGroups(AtlassianGuardConfiguration configuration, Stream<String> groups) {
         Set<String> ignoreGroup = configuration.getIgnoreGroupSet();
         return groups.filter(g -> !ignoreGroup.contains(g));
@@ -148,25 +178,50 @@ public class AtlassianGuardGroupHandler implements ObjectHandler {
         schema.applyDelta(modifications, dest);
 
         if (dest.hasAttributesChange()) {
-            client.patchGroup(uid, dest);
+            client.submitPatch(GROUP_OBJECT_CLASS, uid, dest, (u, operations) -> patchGroup(u, operations, options));
         }
 
         return null;
     }
 
+    private void patchGroup(Uid uid, PatchOperationsModel dest, OperationOptions options) {
+        // Compact before splitting, so that each member is sent once with its last change
+        if (!dest.compact().hasAttributesChange()) {
+            return;
+        }
+        if (configuration.isSkipUnchangedUpdatesEnabled()) {
+            AtlassianGuardGroupModel current = client.getGroup(uid, options, dest.getAttributeNames());
+            if (current != null) {
+                client.removeUnchangedOperations(dest, current);
+                if (!dest.hasAttributesChange()) {
+                    LOGGER.ok("Skip updating the group because nothing is changed. uid={0}", uid.getUidValue());
+                    return;
+                }
+            }
+        }
+        // Split large membership changes to keep each request body small
+        List<PatchOperationsModel> chunks = dest.splitMembers(configuration.getMembershipPatchChunkSize());
+        if (chunks.size() == 1) {
+            client.patchGroup(uid, chunks.get(0));
+        } else {
+            client.patchGroup(uid, chunks, configuration.getMembershipPatchParallelism());
+        }
+    }
+
     @Override
     public void delete(Uid uid, OperationOptions options) {
+        client.flushPatches(GROUP_OBJECT_CLASS, uid);
         client.deleteGroup(uid);
     }
 
     @Override
     public int getByUid(Uid uid, ResultsHandler resultsHandler, OperationOptions options,
-                        Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                        boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+                        ProjectionPlan plan, Set<String> fetchFieldsSet,
+                        int pageSize, int pageOffset) {
         AtlassianGuardGroupModel group = client.getGroup(uid, options, fetchFieldsSet);
 
         if (group != null) {
-            resultsHandler.handle(toConnectorObject(schema, group, returnAttributesSet, allowPartialAttributeValues));
+            resultsHandler.handle(toConnectorObject(schema, group, plan));
             return 1;
         }
         return 0;
@@ -174,12 +229,12 @@ public class AtlassianGuardGroupHandler implements ObjectHandler {
 
     @Override
     public int getByName(Name name, ResultsHandler resultsHandler, OperationOptions options,
-                         Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                         boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+                         ProjectionPlan plan, Set<String> fetchFieldsSet,
+                         int pageSize, int pageOffset) {
         AtlassianGuardGroupModel group = client.getGroup(name, options, fetchFieldsSet);
 
         if (group != null) {
-            resultsHandler.handle(toConnectorObject(schema, group, returnAttributesSet, allowPartialAttributeValues));
+            resultsHandler.handle(toConnectorObject(schema, group, plan));
             return 1;
         }
         return 0;
@@ -187,10 +242,24 @@ public class AtlassianGuardGroupHandler implements ObjectHandler {
 
     @Override
     public int getByMembers(Attribute attribute, ResultsHandler resultsHandler, OperationOptions options,
-                            Set<String> returnAttributesSet, Set<String> fetchFieldSet, boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+                            ProjectionPlan plan, Set<String> fetchFieldSet, int pageSize, int pageOffset) {
         // Unfortunately, Atlassian Guard doesn't support filter by member (It supports displayName filter only).
         // So, we need to fetch all groups.
+        if (AtlassianGuardConfiguration.USER_RESOURCE.equals(configuration.getGroupMembershipStrategy())) {
+            return getByMembersFromUsers(attribute, resultsHandler, options,
+                    plan, fetchFieldSet, pageSize, pageOffset);
+        }
+        if (client.isGroupMembershipIndexEnabled()) {
+            return getByMembersFromIndex(attribute, resultsHandler, options,
+                    plan, fetchFieldSet, pageSize, pageOffset);
+        }
+
         Set<Object> memberIds = new HashSet<>(attribute.getValue());
+
+        // Members are needed for filtering even if they aren't requested to return
+        Set<String> fetchFieldSetWithMembers = new HashSet<>(fetchFieldSet);
+        fetchFieldSetWithMembers.add("members");
+
         return client.getGroups((g) -> {
             // Ignored group
             Set<String> ignoreGroupSet = configuration.getIgnoreGroupSet();
@@ -200,23 +269,151 @@ public class AtlassianGuardGroupHandler implements ObjectHandler {
             }
 
             // Filter by member's value
+            if (g.members == null) {
+                return true;
+            }
             boolean contains = g.members.stream()
                     .map(m -> m.value)
                     .collect(Collectors.toSet())
                     .containsAll(memberIds);
             if (contains) {
-                return resultsHandler.handle(toConnectorObject(schema, g, returnAttributesSet, allowPartialAttributeValues));
+                return resultsHandler.handle(toConnectorObject(schema, g, plan));
             }
 
             return true;
-        }, options, fetchFieldSet, pageSize, pageOffset);
+        }, options, fetchFieldSetWithMembers, pageSize, pageOffset);
+    }
+
+    /**
+     * Answer the groups which have the members by reading the groups attribute of the member users.
+     * It costs one request per member plus the batch requests for the found groups.
+     */
+    private int getByMembersFromUsers(Attribute attribute, ResultsHandler resultsHandler, OperationOptions options,
+                                      ProjectionPlan plan, Set<String> fetchFieldSet, int pageSize, int pageOffset) {
+        Set<String> groupIds = null;
+        for (Object memberId : new LinkedHashSet<>(attribute.getValue())) {
+            AtlassianGuardUserModel user = client.getUser(new Uid(memberId.toString()), options, Collections.singleton("groups"));
+            if (user == null || user.groups == null) {
+                return 0;
+            }
+            Set<String> userGroupIds = user.groups.stream()
+                    .filter(x -> x.type == null || x.type.equals("Group"))
+                    .map(x -> x.value)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+
+            if (groupIds == null) {
+                groupIds = userGroupIds;
+            } else {
+                groupIds.retainAll(userGroupIds);
+            }
+            if (groupIds.isEmpty()) {
+                return 0;
+            }
+        }
+        if (groupIds == null) {
+            return 0;
+        }
+
+        // The found groups are fetched to check the ignored groups and return the attributes
+        Set<String> fetchFieldSetWithName = new HashSet<>(fetchFieldSet);
+        fetchFieldSetWithName.add("displayName");
+        Set<String> ignoreGroupSet = configuration.getIgnoreGroupSet();
+
+        List<AtlassianGuardGroupModel> groups = new ArrayList<>();
+        client.getGroupsByAnyMatch((g) -> {
+            // Ignored group
+            // displayName is case-insensitive
+            if (g.displayName == null || !ignoreGroupSet.contains(g.displayName.toLowerCase())) {
+                groups.add(g);
+            }
+            return true;
+        }, options, fetchFieldSetWithName, "id", new ArrayList<>(groupIds), pageSize);
+
+        List<AtlassianGuardGroupModel> page = groups;
+        if (pageOffset > 0) {
+            int from = Math.min(pageOffset - 1, groups.size());
+            page = groups.subList(from, Math.min(from + pageSize, groups.size()));
+        }
+        for (AtlassianGuardGroupModel group : page) {
+            if (!resultsHandler.handle(toConnectorObject(schema, group, plan))) {
+                break;
+            }
+        }
+        return groups.size();
+    }
+
+    /**
+     * Answer the groups which have the members from the membership index instead of scanning all groups.
+     * Only the found groups are fetched if attributes other than id and displayName are requested.
+     */
+    private int getByMembersFromIndex(Attribute attribute, ResultsHandler resultsHandler, OperationOptions options,
+                                      ProjectionPlan plan, Set<String> fetchFieldSet, int pageSize, int pageOffset) {
+        MembershipIndex.Snapshot index = client.getGroupMembershipIndex(options, pageSize);
+        Set<String> ignoreGroupSet = configuration.getIgnoreGroupSet();
+
+        List<AtlassianGuardGroupModel> groups = new ArrayList<>();
+        for (int found : index.findGroups(attribute.getValue())) {
+            AtlassianGuardGroupModel group = new AtlassianGuardGroupModel();
+            group.id = index.getGroupId(found);
+            group.displayName = index.getGroupName(found);
+
+            // Ignored group
+            // displayName is case-insensitive
+            if (group.displayName != null && ignoreGroupSet.contains(group.displayName.toLowerCase())) {
+                continue;
+            }
+            groups.add(group);
+        }
+        int total = groups.size();
+
+        if (pageOffset > 0) {
+            int from = Math.min(pageOffset - 1, groups.size());
+            groups = groups.subList(from, Math.min(from + pageSize, groups.size()));
+        }
+
+        Set<String> otherFields = new HashSet<>(fetchFieldSet);
+        otherFields.removeAll(Arrays.asList("id", "displayName"));
+        if (otherFields.isEmpty()) {
+            for (AtlassianGuardGroupModel group : groups) {
+                if (!resultsHandler.handle(toConnectorObject(schema, group, plan))) {
+                    break;
+                }
+            }
+            return total;
+        }
+
+        List<String> ids = groups.stream().map(g -> g.id).collect(Collectors.toList());
+        client.getGroupObjectsByAnyMatch(binder.compile(plan), resultsHandler::handle,
+                options, fetchFieldSet, "id", ids, pageSize);
+        return total;
+    }
+
+    @Override
+    public int getByFilter(String expression, Map<String, String> filterAttributes, Filter filter,
+                           ResultsHandler resultsHandler, OperationOptions options,
+                           ProjectionPlan plan, Set<String> fetchFieldsSet,
+                           int pageSize, int pageOffset) {
+        return searchByFilter(expression, filterAttributes, filter, resultsHandler, options,
+                plan, fetchFieldsSet, pageSize, pageOffset,
+                (h, p, fetchFields) -> client.getGroupObjects(binder.compile(p), h::handle, options, fetchFields, expression, pageSize, pageOffset),
+                () -> client.markFilterUnsupported(filterAttributes.values()));
+    }
+
+    @Override
+    public int getByAnyMatch(Attribute attribute, String expression, Map<String, String> filterAttributes, Filter filter,
+                             ResultsHandler resultsHandler, OperationOptions options,
+                             ProjectionPlan plan, Set<String> fetchFieldsSet,
+                             int pageSize, int pageOffset) {
+        return searchByAnyMatch(attribute, expression, filterAttributes, filter, resultsHandler, options,
+                plan, fetchFieldsSet, pageSize, pageOffset,
+                (h, p, fetchFields, path, values) -> client.getGroupObjectsByAnyMatch(binder.compile(p), h::handle, options, fetchFields, path, values, pageSize));
     }
 
     @Override
     public int getAll(ResultsHandler resultsHandler, OperationOptions options,
-                      Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                      boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
-        return client.getGroups((g) -> resultsHandler.handle(toConnectorObject(schema, g, returnAttributesSet, allowPartialAttributeValues)),
-                options, fetchFieldsSet, pageSize, pageOffset);
+                      ProjectionPlan plan, Set<String> fetchFieldsSet,
+                      int pageSize, int pageOffset) {
+        return client.getGroupObjects(binder.compile(plan), resultsHandler::handle,
+                options, fetchFieldsSet, null, pageSize, pageOffset);
     }
 }
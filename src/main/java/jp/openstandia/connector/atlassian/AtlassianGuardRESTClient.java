@@ -17,21 +17,46 @@ package jp.openstandia.connector.atlassian;
 
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.JsonNode;
 import jp.openstandia.connector.util.AbstractRESTClient;
+import jp.openstandia.connector.util.CircuitBreaker;
+import jp.openstandia.connector.util.MembershipIndex;
 import jp.openstandia.connector.util.QueryHandler;
+import jp.openstandia.connector.util.RequestPacer;
+import jp.openstandia.connector.util.ResourceBinder;
+import jp.openstandia.connector.util.RetryPolicy;
 import okhttp3.OkHttpClient;
+import okhttp3.Request;
 import okhttp3.Response;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
 import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.Uid;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.BooleanSupplier;
+import java.util.function.Function;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
 
 import static jp.openstandia.connector.atlassian.AtlassianGuardGroupHandler.GROUP_OBJECT_CLASS;
 import static jp.openstandia.connector.atlassian.AtlassianGuardUserHandler.USER_OBJECT_CLASS;
@@ -43,6 +68,15 @@ public class AtlassianGuardRESTClient extends AbstractRESTClient<AtlassianGuardC
     private String testEndpoint;
     private String userEndpoint;
     private String groupEndpoint;
+    private volatile boolean projectionEnabled = true;
+    private static final Pattern PROJECTION_ERROR = Pattern.compile("\\b(excludedAttributes|attributes)\\b");
+    // Attribute name or sub-attribute name without the value filter and the schema URN (RFC 7644 3.10)
+    private static final Pattern PLAIN_PATH = Pattern.compile("[A-Za-z][\\w-]*(\\.[A-Za-z][\\w-]*)?");
+    private static final Set<String> ALWAYS_FILTERABLE_PATHS = new HashSet<>(Arrays.asList("id", "userName", "displayName"));
+    private final Set<String> unsupportedFilterPaths = ConcurrentHashMap.newKeySet();
+    private int lookupBatchSize = 50;
+    private MembershipIndex groupMembershipIndex = MembershipIndex.disabled();
+    private PatchCoalescer patchCoalescer = PatchCoalescer.disabled();
 
     @JsonIgnoreProperties(ignoreUnknown = true)
     static class UserListBody {
@@ -96,6 +130,11 @@ public class AtlassianGuardRESTClient extends AbstractRESTClient<AtlassianGuardC
         public boolean isServerError(Response response) {
             return response.code() >= 500 && response.code() <= 599;
         }
+
+        @Override
+        public boolean isTooManyRequests(Response response) {
+            return response.code() == 429;
+        }
     }
 
     public void init(String instanceName, AtlassianGuardConfiguration configuration, OkHttpClient httpClient) {
@@ -103,6 +142,64 @@ public class AtlassianGuardRESTClient extends AbstractRESTClient<AtlassianGuardC
         this.testEndpoint = configuration.getBaseURL() + "/ServiceProviderConfig";
         this.userEndpoint = configuration.getBaseURL() + "/Users";
         this.groupEndpoint = configuration.getBaseURL() + "/Groups";
+
+        setRetryPolicy(new RetryPolicy(configuration.getRetryCount(),
+                configuration.getRetryInitialBackoffInMilliseconds(),
+                configuration.getRetryMaxBackoffInMilliseconds(),
+                configuration.getRetryMaxElapsedTimeInMilliseconds(),
+                configuration.getRetryMethods() != null ? new HashSet<>(Arrays.asList(configuration.getRetryMethods())) : Collections.emptySet()));
+        setRequestPacer(hold(RequestPacer.acquire(configuration.getBaseURL())), configuration.getRateLimitRetryCount());
+        setScanOptions(configuration.getPrefetchPages(), configuration.getScanParallelism(), configuration.isScanOrdered(),
+                configuration.isScanPastTotal());
+        this.lookupBatchSize = configuration.getLookupBatchSize();
+        if (configuration.getGroupMembershipIndexTtlInMilliseconds() > 0) {
+            // Shared with the other pooled instances, so the group changes by any of them invalidate it
+            this.groupMembershipIndex = hold(MembershipIndex.acquire(sharedIndexKey(configuration),
+                    configuration.getGroupMembershipIndexTtlInMilliseconds()));
+        }
+        this.patchCoalescer = new PatchCoalescer(configuration.getPatchCoalescingWindowInMilliseconds(), getMetrics());
+        if (configuration.isCircuitBreakerEnabled()) {
+            setCircuitBreaker(hold(CircuitBreaker.acquire(configuration.getBaseURL(),
+                    configuration.getCircuitBreakerFailureThreshold(),
+                    configuration.getCircuitBreakerOpenDurationInMilliseconds())));
+        }
+    }
+
+    /**
+     * Returns the key of the membership index shared by the connector instances which see the same groups.
+     * The token is included as the digest because the visible groups depend on it.
+     *
+     * @param configuration
+     * @return
+     */
+    private static String sharedIndexKey(AtlassianGuardConfiguration configuration) {
+        StringBuilder key = new StringBuilder(configuration.getBaseURL());
+        if (configuration.getToken() != null) {
+            configuration.getToken().access(c -> {
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    byte[] hash = digest.digest(String.valueOf(c).getBytes(StandardCharsets.UTF_8));
+                    key.append('|').append(Base64.getEncoder().encodeToString(hash));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new ConnectorException("SHA-256 is not available", e);
+                }
+            });
+        }
+        return key.toString();
+    }
+
+    @Override
+    public void close() {
+        patchCoalescer.close();
+        super.close();
+    }
+
+    @Override
+    protected Request createProbeRequest() {
+        return new Request.Builder()
+                .url(testEndpoint)
+                .get()
+                .build();
     }
 
     public void test() {
@@ -137,43 +234,137 @@ public class AtlassianGuardRESTClient extends AbstractRESTClient<AtlassianGuardC
     }
 
     public AtlassianGuardUserModel getUser(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
-        try (Response response = callRead(USER_OBJECT_CLASS, userEndpoint, uid)) {
-            if (response == null) {
-                return null;
-            }
-            AtlassianGuardUserModel user = MAPPER.readValue(response.body().byteStream(), AtlassianGuardUserModel.class);
-            return user;
+        return withProjection(userProjection(fetchFieldsSet), () -> true, (projection) -> {
+            try (Response response = callRead(USER_OBJECT_CLASS, userEndpoint, uid, projection)) {
+                if (response == null) {
+                    return null;
+                }
+                AtlassianGuardUserModel user = MAPPER.readValue(response.body().byteStream(), AtlassianGuardUserModel.class);
+                return user;
 
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
-        }
+            } catch (IOException e) {
+                throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+            }
+        });
     }
 
     public AtlassianGuardUserModel getUser(Name name, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
-        Map<String, String> params = new HashMap<>();
-        params.put("filter", formatFilter("userName eq \"%s\"", name.getNameValue()));
-
-        try (Response response = callSearch(USER_OBJECT_CLASS, userEndpoint, params)) {
-            UserListBody list = MAPPER.readValue(response.body().byteStream(), UserListBody.class);
-            if (list.resources == null || list.resources.size() != 1) {
-                LOG.info("The {0} user is not found. userName={1}", instanceName, name.getNameValue());
-                return null;
-            }
-            return list.resources.get(0);
+        return withProjection(userProjection(fetchFieldsSet), () -> true, (projection) -> {
+            Map<String, String> params = new HashMap<>(projection);
+            params.put("filter", formatFilter("userName eq \"%s\"", name.getNameValue()));
+
+            try (Response response = callSearch(USER_OBJECT_CLASS, userEndpoint, params)) {
+                UserListBody list = MAPPER.readValue(response.body().byteStream(), UserListBody.class);
+                if (list.resources == null || list.resources.size() != 1) {
+                    LOG.info("The {0} user is not found. userName={1}", instanceName, name.getNameValue());
+                    return null;
+                }
+                return list.resources.get(0);
 
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
-        }
+            } catch (IOException e) {
+                throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+            }
+        });
     }
 
     private String formatFilter(String filter, String... values) {
         Object[] escaped = Arrays.stream(values)
-                .map(v -> v.replace("\"", "\\\""))
+                .map(AtlassianGuardFilterTranslator::escape)
                 .toArray();
         return String.format(filter, escaped);
     }
 
+    /**
+     * Submit the PATCH operations for the object. They are merged with the other operations for the same object
+     * within the coalescing window if it's enabled, otherwise sent by the sender immediately.
+     *
+     * @param objectClass
+     * @param uid
+     * @param operations
+     * @param sender
+     */
+    public void submitPatch(ObjectClass objectClass, Uid uid, PatchOperationsModel operations,
+                            BiConsumer<Uid, PatchOperationsModel> sender) {
+        patchCoalescer.submit(objectClass, uid, operations, sender);
+    }
+
+    public void flushPatches(ObjectClass objectClass, Uid uid) {
+        patchCoalescer.flush(objectClass, uid);
+    }
+
+    /**
+     * Send all pending PATCH operations.
+     */
+    public void flushPatches() {
+        patchCoalescer.flush(null);
+    }
+
+    /**
+     * Drop the operations which don't change the current state of the resource.
+     * A replace is dropped if the value equals the current value (an empty string equals an absent value),
+     * and a member is dropped if it's already added or removed.
+     * Only the replace of a plain path ({@code attr} or {@code attr.sub}) is checked, the value filter path
+     * (e.g. {@code emails[type eq "work"].value}) and the extension attribute path are always sent.
+     *
+     * @param operations
+     * @param current    current state of the resource
+     */
+    public void removeUnchangedOperations(PatchOperationsModel operations, Object current) {
+        JsonNode currentNode = MAPPER.valueToTree(current);
+        int before = operations.operations.size();
+        List<PatchOperationsModel.Operation> changed = new ArrayList<>();
+        int skipped = 0;
+
+        for (PatchOperationsModel.Operation op : operations.operations) {
+            if ("members".equals(op.path) && op.value instanceof List) {
+                Set<String> currentMembers = new HashSet<>();
+                currentNode.path("members").forEach(m -> currentMembers.add(m.path("value").asText()));
+
+                boolean add = op.op.equals("add");
+                List<Object> remaining = ((List<?>) op.value).stream()
+                        .filter(m -> currentMembers.contains(((PatchOperationsModel.Member) m).value) != add)
+                        .collect(Collectors.toList());
+                skipped += ((List<?>) op.value).size() - remaining.size();
+                if (!remaining.isEmpty()) {
+                    op.value = remaining;
+                    changed.add(op);
+                }
+                continue;
+            }
+            if ("replace".equals(op.op) && op.path != null && PLAIN_PATH.matcher(op.path).matches()
+                    && isUnchanged(currentNode, op)) {
+                skipped++;
+                continue;
+            }
+            changed.add(op);
+        }
+        operations.operations = changed;
+
+        if (skipped > 0) {
+            getMetrics().add("patch.operations.skipped", skipped);
+        }
+        if (before > 0 && changed.isEmpty()) {
+            getMetrics().increment("patch.skipped");
+        }
+    }
+
+    private boolean isUnchanged(JsonNode current, PatchOperationsModel.Operation op) {
+        JsonNode node = current;
+        for (String name : op.path.split("\\.")) {
+            node = node.path(name);
+        }
+        JsonNode value = MAPPER.valueToTree(op.value);
+        if (node.isMissingNode() || node.isNull()) {
+            return value.isNull() || (value.isTextual() && value.asText().isEmpty())
+                    || (value.isArray() && value.size() == 0);
+        }
+        return node.equals(value);
+    }
+
     public void patchUser(Uid uid, PatchOperationsModel operations) {
+        if (!operations.compact().hasAttributesChange()) {
+            return;
+        }
         callPatch(USER_OBJECT_CLASS, userEndpoint + "/" + uid.getUidValue(), uid, operations);
     }
 
@@ -182,43 +373,86 @@ public class AtlassianGuardRESTClient extends AbstractRESTClient<AtlassianGuardC
     }
 
     public int getUsers(QueryHandler<AtlassianGuardUserModel> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
-        // ConnId starts from 1, 0 means no offset (requested all data)
-        if (pageOffset < 1) {
-            return getAll(handler, pageSize, (start, size) -> {
-                Map<String, String> params = new HashMap<>();
-                params.put(offsetKey, String.valueOf(start));
-                params.put(countKey, String.valueOf(size));
-
-                try (Response response = callSearch(USER_OBJECT_CLASS, userEndpoint, params)) {
-                    UserListBody list = MAPPER.readValue(response.body().byteStream(), UserListBody.class);
-                    return list.resources;
-
-                } catch (IOException e) {
-                    throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
-                }
-            });
-        }
+        return getUsers(handler, options, fetchFieldsSet, null, pageSize, pageOffset);
+    }
 
-        // Pagination
-        // Notion(SCIM v2.0) starts from 1
-        int start = resolveOffset(pageOffset);
+    public int getUsers(QueryHandler<AtlassianGuardUserModel> handler, OperationOptions options, Set<String> fetchFieldsSet, String filter, int pageSize, int pageOffset) {
+        return searchUsers((parser) -> MAPPER.readValue(parser, AtlassianGuardUserModel.class), handler, fetchFieldsSet, filter, pageSize, pageOffset);
+    }
 
-        Map<String, String> params = new HashMap<>();
-        params.put(offsetKey, String.valueOf(start));
-        params.put(countKey, String.valueOf(pageSize));
+    /**
+     * Search the users and bind them to the connector objects by the binding, without the user model.
+     *
+     * @param binding
+     * @param handler
+     * @param options
+     * @param fetchFieldsSet
+     * @param filter
+     * @param pageSize
+     * @param pageOffset
+     * @return
+     */
+    public int getUserObjects(ResourceBinder.Binding binding, QueryHandler<ConnectorObject> handler, OperationOptions options, Set<String> fetchFieldsSet,
+                              String filter, int pageSize, int pageOffset) {
+        return searchUsers(binding, handler, fetchFieldsSet, filter, pageSize, pageOffset);
+    }
 
-        try (Response response = callSearch(USER_OBJECT_CLASS, userEndpoint, params)) {
-            UserListBody list = MAPPER.readValue(response.body().byteStream(), UserListBody.class);
-            for (AtlassianGuardUserModel user : list.resources) {
-                if (!handler.handle(user)) {
-                    break;
-                }
+    private <T> int searchUsers(ResourceBinder.ValueReader<T> reader, QueryHandler<T> handler, Set<String> fetchFieldsSet, String filter, int pageSize, int pageOffset) {
+        // Retry without the projection only if nothing is passed to the handler yet
+        AtomicBoolean handled = new AtomicBoolean();
+        QueryHandler<T> wrapped = (user) -> {
+            handled.set(true);
+            return handler.handle(user);
+        };
+
+        return withProjection(userProjection(fetchFieldsSet), () -> !handled.get(), (projection) -> {
+            // ConnId starts from 1, 0 means no offset (requested all data)
+            if (pageOffset < 1) {
+                return getAll(wrapped, pageSize,
+                        (start, size) -> {
+                            Map<String, String> params = new HashMap<>(projection);
+                            if (filter != null) {
+                                params.put("filter", filter);
+                            }
+                            params.put(offsetKey, String.valueOf(start));
+                            params.put(countKey, String.valueOf(size));
+
+                            return callSearchAsync(USER_OBJECT_CLASS, userEndpoint, params);
+                        },
+                        (response, h) -> readListBody(response, reader, h));
             }
-            return list.totalResults;
 
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
-        }
+            // Pagination
+            // Notion(SCIM v2.0) starts from 1
+            int start = resolveOffset(pageOffset);
+
+            Map<String, String> params = new HashMap<>(projection);
+            if (filter != null) {
+                params.put("filter", filter);
+            }
+            params.put(offsetKey, String.valueOf(start));
+            params.put(countKey, String.valueOf(pageSize));
+
+            try (Response response = callSearch(USER_OBJECT_CLASS, userEndpoint, params)) {
+                Page page = readListBody(response, reader, wrapped);
+                return Math.max(page.totalResults, 0);
+
+            } catch (IOException e) {
+                throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+            }
+        });
+    }
+
+    public int getUsersByAnyMatch(QueryHandler<AtlassianGuardUserModel> handler, OperationOptions options, Set<String> fetchFieldsSet,
+                                  String path, List<String> values, int pageSize) {
+        return getByAnyMatch(handler, path, values,
+                (h, filter) -> getUsers(h, options, fetchFieldsSet, filter, pageSize, 0));
+    }
+
+    public int getUserObjectsByAnyMatch(ResourceBinder.Binding binding, QueryHandler<ConnectorObject> handler, OperationOptions options,
+                                        Set<String> fetchFieldsSet, String path, List<String> values, int pageSize) {
+        return getByAnyMatch(handler, path, values,
+                (h, filter) -> getUserObjects(binding, h, options, fetchFieldsSet, filter, pageSize, 0));
     }
 
     // Group
@@ -232,83 +466,426 @@ public class AtlassianGuardRESTClient extends AbstractRESTClient<AtlassianGuardC
             }
         });
 
+        groupMembershipIndex.invalidate();
+
         return new Uid(created.id, newGroup.displayName);
     }
 
     public void patchGroup(Uid uid, PatchOperationsModel operations) {
-        callPatch(GROUP_OBJECT_CLASS, groupEndpoint + "/" + uid.getUidValue(), uid, operations);
+        if (!operations.compact().hasAttributesChange()) {
+            return;
+        }
+        try {
+            callPatch(GROUP_OBJECT_CLASS, groupEndpoint + "/" + uid.getUidValue(), uid, operations);
+        } finally {
+            groupMembershipIndex.invalidate();
+        }
     }
 
-    public AtlassianGuardGroupModel getGroup(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
-        try (Response response = callRead(GROUP_OBJECT_CLASS, groupEndpoint, uid)) {
-            if (response == null) {
-                return null;
+    public CompletableFuture<Void> patchGroupAsync(Uid uid, PatchOperationsModel operations) {
+        return callPatchAsync(GROUP_OBJECT_CLASS, groupEndpoint + "/" + uid.getUidValue(), uid, operations)
+                .whenComplete((r, e) -> groupMembershipIndex.invalidate());
+    }
+
+    /**
+     * Send the split PATCH requests to the group, sequentially or concurrently up to the parallelism.
+     * If a request fails, the remaining requests aren't sent and the exception tells the applied chunks.
+     *
+     * @param uid
+     * @param chunks
+     * @param parallelism
+     */
+    public void patchGroup(Uid uid, List<PatchOperationsModel> chunks, int parallelism) {
+        Set<Integer> applied = new TreeSet<>();
+        Set<Integer> failed = new TreeSet<>();
+        ConnectorException failure = null;
+
+        for (int i = 0; i < chunks.size() && failure == null; i += parallelism) {
+            int end = Math.min(i + parallelism, chunks.size());
+
+            if (parallelism == 1) {
+                try {
+                    patchGroup(uid, chunks.get(i));
+                    applied.add(i + 1);
+                } catch (ConnectorException e) {
+                    failed.add(i + 1);
+                    failure = e;
+                }
+            } else {
+                List<CompletableFuture<Void>> futures = new ArrayList<>();
+                for (int j = i; j < end; j++) {
+                    futures.add(patchGroupAsync(uid, chunks.get(j)));
+                }
+                for (int j = i; j < end; j++) {
+                    try {
+                        await(futures.get(j - i));
+                        applied.add(j + 1);
+                    } catch (ConnectorException e) {
+                        failed.add(j + 1);
+                        if (failure == null) {
+                            failure = e;
+                        }
+                    }
+                }
             }
-            AtlassianGuardGroupModel group = MAPPER.readValue(response.body().byteStream(), AtlassianGuardGroupModel.class);
-            return group;
+            LOG.info("Patched {0} group members. uid={1}, chunks={2}/{3}", instanceName, uid.getUidValue(), applied.size(), chunks.size());
+        }
 
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+        if (failure != null) {
+            if (applied.isEmpty()) {
+                throw failure;
+            }
+            int notSent = chunks.size() - applied.size() - failed.size();
+            throw new ConnectorException(String.format("Partially updated %s group members. uid=%s, applied chunks=%s, failed chunks=%s, not sent chunks=%d, total chunks=%d",
+                    instanceName, uid.getUidValue(), applied, failed, notSent, chunks.size()), failure);
         }
     }
 
+    public AtlassianGuardGroupModel getGroup(Uid uid, OperationOptions options, Set<String> fetchFieldsSet) throws UnknownUidException {
+        return withProjection(groupProjection(fetchFieldsSet), () -> true, (projection) -> {
+            try (Response response = callRead(GROUP_OBJECT_CLASS, groupEndpoint, uid, projection)) {
+                if (response == null) {
+                    return null;
+                }
+                AtlassianGuardGroupModel group = MAPPER.readValue(response.body().byteStream(), AtlassianGuardGroupModel.class);
+                return group;
+
+            } catch (IOException e) {
+                throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+            }
+        });
+    }
+
     public AtlassianGuardGroupModel getGroup(Name name, OperationOptions options, Set<String> fetchFieldsSet) {
-        Map<String, String> params = new HashMap<>();
-        params.put("filter", formatFilter("displayName eq \"%s\"", name.getNameValue()));
-
-        try (Response response = callSearch(GROUP_OBJECT_CLASS, groupEndpoint, params)) {
-            GroupListBody list = MAPPER.readValue(response.body().byteStream(), GroupListBody.class);
-            if (list.resources == null || list.resources.size() != 1) {
-                LOG.info("The {0} group is not found. displayName={1}", instanceName, name.getNameValue());
-                return null;
+        return withProjection(groupProjection(fetchFieldsSet), () -> true, (projection) -> {
+            Map<String, String> params = new HashMap<>(projection);
+            params.put("filter", formatFilter("displayName eq \"%s\"", name.getNameValue()));
+
+            try (Response response = callSearch(GROUP_OBJECT_CLASS, groupEndpoint, params)) {
+                GroupListBody list = MAPPER.readValue(response.body().byteStream(), GroupListBody.class);
+                if (list.resources == null || list.resources.size() != 1) {
+                    LOG.info("The {0} group is not found. displayName={1}", instanceName, name.getNameValue());
+                    return null;
+                }
+                return list.resources.get(0);
+
+            } catch (IOException e) {
+                throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
             }
-            return list.resources.get(0);
+        });
+    }
 
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+    public int getGroups(QueryHandler<AtlassianGuardGroupModel> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        return getGroups(handler, options, fetchFieldsSet, null, pageSize, pageOffset);
+    }
+
+    public int getGroups(QueryHandler<AtlassianGuardGroupModel> handler, OperationOptions options, Set<String> fetchFieldsSet, String filter, int pageSize, int pageOffset) {
+        return searchGroups((parser) -> MAPPER.readValue(parser, AtlassianGuardGroupModel.class), handler, fetchFieldsSet, filter, pageSize, pageOffset);
+    }
+
+    /**
+     * Search the groups and bind them to the connector objects by the binding, without the group model.
+     *
+     * @param binding
+     * @param handler
+     * @param options
+     * @param fetchFieldsSet
+     * @param filter
+     * @param pageSize
+     * @param pageOffset
+     * @return
+     */
+    public int getGroupObjects(ResourceBinder.Binding binding, QueryHandler<ConnectorObject> handler, OperationOptions options, Set<String> fetchFieldsSet,
+                              String filter, int pageSize, int pageOffset) {
+        return searchGroups(binding, handler, fetchFieldsSet, filter, pageSize, pageOffset);
+    }
+
+    private <T> int searchGroups(ResourceBinder.ValueReader<T> reader, QueryHandler<T> handler, Set<String> fetchFieldsSet, String filter, int pageSize, int pageOffset) {
+        // Retry without the projection only if nothing is passed to the handler yet
+        AtomicBoolean handled = new AtomicBoolean();
+        QueryHandler<T> wrapped = (group) -> {
+            handled.set(true);
+            return handler.handle(group);
+        };
+
+        return withProjection(groupProjection(fetchFieldsSet), () -> !handled.get(), (projection) -> {
+            // ConnId starts from 1, 0 means no offset (requested all data)
+            if (pageOffset < 1) {
+                return getAll(wrapped, pageSize,
+                        (start, size) -> {
+                            Map<String, String> params = new HashMap<>(projection);
+                            if (filter != null) {
+                                params.put("filter", filter);
+                            }
+                            params.put(offsetKey, String.valueOf(start));
+                            params.put(countKey, String.valueOf(size));
+
+                            return callSearchAsync(GROUP_OBJECT_CLASS, groupEndpoint, params);
+                        },
+                        (response, h) -> readListBody(response, reader, h));
+            }
+
+            // Pagination
+            int start = resolveOffset(pageOffset);
+
+            Map<String, String> params = new HashMap<>(projection);
+            if (filter != null) {
+                params.put("filter", filter);
+            }
+            params.put(offsetKey, String.valueOf(start));
+            params.put(countKey, String.valueOf(pageSize));
+
+            try (Response response = callSearch(GROUP_OBJECT_CLASS, groupEndpoint, params)) {
+                Page page = readListBody(response, reader, wrapped);
+                return Math.max(page.totalResults, 0);
+
+            } catch (IOException e) {
+                throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+            }
+        });
+    }
+
+    public int getGroupsByAnyMatch(QueryHandler<AtlassianGuardGroupModel> handler, OperationOptions options, Set<String> fetchFieldsSet,
+                                   String path, List<String> values, int pageSize) {
+        return getByAnyMatch(handler, path, values,
+                (h, filter) -> getGroups(h, options, fetchFieldsSet, filter, pageSize, 0));
+    }
+
+    public int getGroupObjectsByAnyMatch(ResourceBinder.Binding binding, QueryHandler<ConnectorObject> handler, OperationOptions options,
+                                         Set<String> fetchFieldsSet, String path, List<String> values, int pageSize) {
+        return getByAnyMatch(handler, path, values,
+                (h, filter) -> getGroupObjects(binding, h, options, fetchFieldsSet, filter, pageSize, 0));
+    }
+
+    public boolean isGroupMembershipIndexEnabled() {
+        return groupMembershipIndex.isEnabled();
+    }
+
+    /**
+     * Returns the index from member id to groups. It's built by scanning all groups if it's absent or expired.
+     * It's shared with the other pooled instances, and the group changes by any of them invalidate it.
+     *
+     * @param options
+     * @param pageSize
+     * @return
+     */
+    public MembershipIndex.Snapshot getGroupMembershipIndex(OperationOptions options, int pageSize) {
+        return groupMembershipIndex.get((builder) -> {
+            getGroups((g) -> {
+                builder.add(g.id, g.displayName,
+                        g.members != null ? g.members.stream().map(m -> m.value).collect(Collectors.toList()) : null);
+                return true;
+            }, options, new HashSet<>(Arrays.asList("displayName", "members")), pageSize, 0);
+        });
+    }
+
+    // Projection
+
+    /**
+     * Translate the fetch fields into the SCIM "attributes" parameter. The id and userName are always requested.
+     * If the fetch fields are empty, all attributes are requested.
+     *
+     * @param fetchFieldsSet
+     * @return
+     */
+    protected Map<String, String> userProjection(Set<String> fetchFieldsSet) {
+        if (!projectionEnabled || fetchFieldsSet == null || fetchFieldsSet.isEmpty()) {
+            return Collections.emptyMap();
         }
+        Set<String> attributes = new TreeSet<>(fetchFieldsSet);
+        attributes.add("id");
+        attributes.add("userName");
+        return Collections.singletonMap("attributes", String.join(",", attributes));
     }
 
-    public int getGroups(QueryHandler<AtlassianGuardGroupModel> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
-        // ConnId starts from 1, 0 means no offset (requested all data)
-        if (pageOffset < 1) {
-            return getAll(handler, pageSize, (start, size) -> {
-                Map<String, String> params = new HashMap<>();
-                params.put(offsetKey, String.valueOf(start));
-                params.put(countKey, String.valueOf(size));
-
-                try (Response response = callSearch(GROUP_OBJECT_CLASS, groupEndpoint, params)) {
-                    GroupListBody list = MAPPER.readValue(response.body().byteStream(), GroupListBody.class);
-                    return list.resources;
-
-                } catch (IOException e) {
-                    throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
-                }
-            });
+    /**
+     * Group has only a few attributes except members, so it excludes members if they aren't requested.
+     *
+     * @param fetchFieldsSet
+     * @return
+     */
+    protected Map<String, String> groupProjection(Set<String> fetchFieldsSet) {
+        if (!projectionEnabled || fetchFieldsSet == null || fetchFieldsSet.isEmpty() || fetchFieldsSet.contains("members")) {
+            return Collections.emptyMap();
+        }
+        return Collections.singletonMap("excludedAttributes", "members");
+    }
+
+    /**
+     * Search the resources whose attribute equals to any of the values.
+     * The values are combined into "or" filters of {@code lookupBatchSize} values, one search per chunk.
+     *
+     * @param handler
+     * @param path    SCIM attribute path
+     * @param values
+     * @param search  search function which takes the handler and the filter
+     * @return the number of found resources
+     */
+    private <T> int getByAnyMatch(QueryHandler<T> handler, String path, List<String> values,
+                                  BiFunction<QueryHandler<T>, String, Integer> search) {
+        AtomicBoolean stopped = new AtomicBoolean();
+        QueryHandler<T> wrapped = (resource) -> {
+            if (!handler.handle(resource)) {
+                stopped.set(true);
+                return false;
+            }
+            return true;
+        };
+
+        int total = 0;
+        for (int i = 0; i < values.size() && !stopped.get(); i += lookupBatchSize) {
+            String filter = values.subList(i, Math.min(i + lookupBatchSize, values.size())).stream()
+                    .map(v -> path + " eq \"" + AtlassianGuardFilterTranslator.escape(v) + "\"")
+                    .collect(Collectors.joining(" or "));
+            total += search.apply(wrapped, filter);
+        }
+        return total;
+    }
+
+    /**
+     * Call the API with the projection parameters. If Atlassian Guard rejects them (400 Bad Request which names
+     * "attributes" or "excludedAttributes"), the projection is disabled for this client and it's called again without them.
+     * The other errors (e.g. the rejected filter) are thrown as is, so the projection is kept.
+     * When the server just ignores them, the full resources are returned and nothing is needed.
+     *
+     * @param projection
+     * @param retryable
+     * @param call
+     * @return
+     */
+    private <T> T withProjection(Map<String, String> projection, BooleanSupplier retryable, Function<Map<String, String>, T> call) {
+        try {
+            return call.apply(projection);
+        } catch (InvalidAttributeValueException e) {
+            if (projection.isEmpty() || !retryable.getAsBoolean() || !isProjectionRejected(e)) {
+                throw e;
+            }
+            LOG.warn("{0} rejected the attribute projection {1}. Disabled it. {2}", instanceName, projection, e.getMessage());
+            projectionEnabled = false;
+            return call.apply(Collections.emptyMap());
         }
+    }
 
-        // Pagination
-        int start = resolveOffset(pageOffset);
+    /**
+     * Returns true if the error response is the rejection of the attributes parameter. The filter rejection is
+     * distinguished by the scimType (invalidFilter), the projection is rejected as invalidValue or invalidSyntax
+     * with the detail about the attributes.
+     *
+     * @param e
+     * @return
+     */
+    private static boolean isProjectionRejected(InvalidAttributeValueException e) {
+        String message = e.getMessage();
+        if (message == null) {
+            return false;
+        }
+        // The response body is at the end of the message
+        int body = message.lastIndexOf("response: ");
+        if (body < 0) {
+            return false;
+        }
+        JsonNode error;
+        try {
+            error = MAPPER.readTree(message.substring(body + "response: ".length()));
+        } catch (IOException ignore) {
+            return false;
+        }
+        String scimType = error.path("scimType").asText();
+        if (!scimType.equals("invalidValue") && !scimType.equals("invalidSyntax")) {
+            return false;
+        }
+        return PROJECTION_ERROR.matcher(error.path("detail").asText()).find();
+    }
 
-        Map<String, String> params = new HashMap<>();
-        params.put(offsetKey, String.valueOf(start));
-        params.put(countKey, String.valueOf(pageSize));
+    // Filter
 
-        try (Response response = callSearch(GROUP_OBJECT_CLASS, groupEndpoint, params)) {
-            GroupListBody list = MAPPER.readValue(response.body().byteStream(), GroupListBody.class);
-            for (AtlassianGuardGroupModel group : list.resources) {
-                if (!handler.handle(group)) {
-                    break;
+    /**
+     * Returns false if Atlassian Guard rejected the filter by the SCIM attribute path before.
+     *
+     * @param path
+     * @return
+     */
+    public boolean isFilterSupported(String path) {
+        return !unsupportedFilterPaths.contains(path);
+    }
+
+    /**
+     * Remember the SCIM attribute paths in the rejected filter not to push down them again.
+     * The id and the name attributes are always supported.
+     *
+     * @param paths
+     */
+    public void markFilterUnsupported(Collection<String> paths) {
+        paths.stream()
+                .filter(p -> !ALWAYS_FILTERABLE_PATHS.contains(p))
+                .forEach(p -> {
+                    if (unsupportedFilterPaths.add(p)) {
+                        LOG.info("{0} doesn't support filtering by {1}", instanceName, p);
+                    }
+                });
+    }
+
+    /**
+     * Parse the SCIM list response as a stream. Each element of "Resources" is bound to the model and passed
+     * to the handler as soon as it's parsed. After the handler returns false, the rest of the response isn't read.
+     *
+     * @param response
+     * @param type
+     * @param handler
+     * @return
+     * @throws IOException
+     */
+    protected <T> Page readListBody(Response response, Class<T> type, QueryHandler<T> handler) throws IOException {
+        return readListBody(response, (parser) -> MAPPER.readValue(parser, type), handler);
+    }
+
+    /**
+     * Parse the SCIM list response as a stream, reading each element of "Resources" by the reader.
+     *
+     * @param response
+     * @param reader   reads the resource at START_OBJECT (e.g. the binding to the connector object)
+     * @param handler
+     * @return
+     * @throws IOException
+     */
+    protected <T> Page readListBody(Response response, ResourceBinder.ValueReader<T> reader, QueryHandler<T> handler) throws IOException {
+        Page page = new Page();
+
+        try (JsonParser parser = MAPPER.getFactory().createParser(response.body().byteStream())) {
+            if (parser.nextToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected list response: " + parser.currentToken());
+            }
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                if (field.equals("totalResults") && token == JsonToken.VALUE_NUMBER_INT) {
+                    page.totalResults = parser.getIntValue();
+
+                } else if (field.equals("Resources") && token == JsonToken.START_ARRAY) {
+                    while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+                        page.count++;
+                        T resource = reader.read(parser);
+                        page.handled++;
+                        if (!handler.handle(resource)) {
+                            // Don't read the rest, the caller closes the response
+                            page.stopped = true;
+                            return page;
+                        }
+                    }
+                } else {
+                    parser.skipChildren();
                 }
             }
-            return list.totalResults;
-
-        } catch (IOException e) {
-            throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
         }
+        return page;
     }
 
     public void deleteGroup(Uid uid) {
-        callDelete(GROUP_OBJECT_CLASS, groupEndpoint + "/" + uid.getUidValue(), uid, null);
+        try {
+            callDelete(GROUP_OBJECT_CLASS, groupEndpoint + "/" + uid.getUidValue(), uid, null);
+        } finally {
+            groupMembershipIndex.invalidate();
+        }
     }
 }
@@ -16,6 +16,7 @@
 package jp.openstandia.connector.atlassian;
 
 import jp.openstandia.connector.util.ObjectHandler;
+import jp.openstandia.connector.util.ResourceBinder;
 import jp.openstandia.connector.util.SchemaDefinition;
 import org.identityconnectors.framework.common.objects.ObjectClass;
 import org.identityconnectors.framework.common.objects.OperationOptionInfoBuilder;
@@ -23,8 +24,11 @@ import org.identityconnectors.framework.common.objects.Schema;
 import org.identityconnectors.framework.common.objects.SchemaBuilder;
 import org.identityconnectors.framework.spi.operations.SearchOp;
 
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 
 /**
@@ -34,6 +38,9 @@ import java.util.function.Function;
  */
 public class AtlassianGuardSchema {
 
+    // Key: the configuration values which affect the schema, Value: the immutable schema definitions
+    private static final Map<List<Object>, Definitions> CACHE = new ConcurrentHashMap<>();
+
     private final AtlassianGuardConfiguration configuration;
     private final AtlassianGuardRESTClient client;
 
@@ -46,25 +53,27 @@ public class AtlassianGuardSchema {
         this.client = client;
         this.schemaHandlerMap = new HashMap<>();
 
-        SchemaBuilder schemaBuilder = new SchemaBuilder(AtlassianGuardConnector.class);
-
-        buildSchema(schemaBuilder, AtlassianGuardUserHandler.createSchema(configuration, client).build(),
-                (schema) -> new AtlassianGuardUserHandler(configuration, client, schema));
-        buildSchema(schemaBuilder, AtlassianGuardGroupHandler.createSchema(configuration, client).build(),
-                (schema) -> new AtlassianGuardGroupHandler(configuration, client, schema));
+        // The schema definitions are shared by the connector instances, only the handlers are bound to this instance
+        Definitions definitions = CACHE.computeIfAbsent(toCacheKey(configuration), k -> new Definitions(configuration, client));
 
-        // Define operation options
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class);
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
-        schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+        bindHandler(definitions.user, (schema) -> new AtlassianGuardUserHandler(configuration, client, schema, definitions.userBinder));
+        bindHandler(definitions.group, (schema) -> new AtlassianGuardGroupHandler(configuration, client, schema, definitions.groupBinder));
 
-        this.schema = schemaBuilder.build();
+        this.schema = definitions.schema;
+    }
 
+    /**
+     * Returns the cache key of the schema. Nothing in the configuration changes the schema for now,
+     * so add the values to the key when the schema depends on them.
+     *
+     * @param configuration
+     * @return
+     */
+    private static List<Object> toCacheKey(AtlassianGuardConfiguration configuration) {
+        return Collections.singletonList(AtlassianGuardSchema.class.getName());
     }
 
-    private void buildSchema(SchemaBuilder builder, SchemaDefinition schemaDefinition, Function<SchemaDefinition, ObjectHandler> callback) {
-        builder.defineObjectClass(schemaDefinition.getObjectClassInfo());
+    private void bindHandler(SchemaDefinition schemaDefinition, Function<SchemaDefinition, ObjectHandler> callback) {
         ObjectHandler handler = callback.apply(schemaDefinition);
         this.schemaHandlerMap.put(schemaDefinition.getType(), handler);
     }
@@ -72,4 +81,35 @@ public class AtlassianGuardSchema {
     public ObjectHandler getSchemaHandler(ObjectClass objectClass) {
         return schemaHandlerMap.get(objectClass.getObjectClassValue());
     }
-}
\ No newline at end of file
+
+    /**
+     * Immutable schema definitions. The attribute mappers must not capture the client or the configuration
+     * of the instance which builds them because they are shared.
+     */
+    private static class Definitions {
+        final SchemaDefinition user;
+        final SchemaDefinition group;
+        final ResourceBinder userBinder;
+        final ResourceBinder groupBinder;
+        final Schema schema;
+
+        Definitions(AtlassianGuardConfiguration configuration, AtlassianGuardRESTClient client) {
+            SchemaBuilder schemaBuilder = new SchemaBuilder(AtlassianGuardConnector.class);
+
+            this.user = AtlassianGuardUserHandler.createSchema(configuration, client).build();
+            this.group = AtlassianGuardGroupHandler.createSchema(configuration, client).build();
+            this.userBinder = AtlassianGuardUserHandler.createBinder(user);
+            this.groupBinder = AtlassianGuardGroupHandler.createBinder(group);
+            schemaBuilder.defineObjectClass(user.getObjectClassInfo());
+            schemaBuilder.defineObjectClass(group.getObjectClassInfo());
+
+            // Define operation options
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildAttributesToGet(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildReturnDefaultAttributes(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPageSize(), SearchOp.class);
+            schemaBuilder.defineOperationOption(OperationOptionInfoBuilder.buildPagedResultsOffset(), SearchOp.class);
+
+            this.schema = schemaBuilder.build();
+        }
+    }
+}
@@ -16,14 +16,23 @@
 package jp.openstandia.connector.atlassian;
 
 import jp.openstandia.connector.util.ObjectHandler;
+import jp.openstandia.connector.util.ResourceBinder;
 import jp.openstandia.connector.util.SchemaDefinition;
+import jp.openstandia.connector.util.SchemaDefinition.ProjectionPlan;
 import org.identityconnectors.common.logging.Log;
 import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.Filter;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.stream.Collectors;
 
+import static jp.openstandia.connector.util.ResourceBinder.readMultiValues;
 import static jp.openstandia.connector.util.Utils.toZoneDateTimeForISO8601OffsetDateTime;
 import static org.identityconnectors.framework.common.objects.AttributeInfo.Flags.*;
 
@@ -36,12 +45,14 @@ public class AtlassianGuardUserHandler implements ObjectHandler {
     protected final AtlassianGuardConfiguration configuration;
     protected final AtlassianGuardRESTClient client;
     protected final SchemaDefinition schema;
+    protected final ResourceBinder binder;
 
     public AtlassianGuardUserHandler(AtlassianGuardConfiguration configuration, AtlassianGuardRESTClient client,
-                                     SchemaDefinition schema) {
+                                     SchemaDefinition schema, ResourceBinder binder) {
         this.configuration = configuration;
         this.client = client;
         this.schema = schema;
+        this.binder = binder;
     }
 
     public static SchemaDefinition.Builder createSchema(AtlassianGuardConfiguration configuration, AtlassianGuardRESTClient client) {
@@ -331,6 +342,32 @@ public class AtlassianGuardUserHandler implements ObjectHandler {
         return sb;
     }
 
+    /**
+     * Create the binder of the user schema for the searches. The complex attributes are read from the JSON
+     * in the same way as the read functions of the schema.
+     *
+     * @param schema
+     * @return
+     */
+    public static ResourceBinder createBinder(SchemaDefinition schema) {
+        return ResourceBinder.newBuilder(schema)
+                .reader("primaryEmail", (parser) -> readMultiValues(parser).stream()
+                        .filter(x -> x.primary)
+                        .findFirst()
+                        .map(x -> x.value)
+                        .orElse(null))
+                .reader("primaryPhoneNumber", (parser) -> readMultiValues(parser).stream()
+                        .filter(x -> x.primary)
+                        .findFirst()
+                        .map(x -> x.value + "/" + x.type)
+                        .orElse(null))
+                .reader("groups", (parser) -> readMultiValues(parser).stream()
+                        .filter(x -> x.type != null && x.type.equals("Group"))
+                        .map(x -> x.value)
+                        .collect(Collectors.toList()))
+                .build();
+    }
+
     @Override
     public SchemaDefinition getSchema() {
         return schema;
@@ -353,25 +390,40 @@ public class AtlassianGuardUserHandler implements ObjectHandler {
         schema.applyDelta(modifications, dest);
 
         if (dest.hasAttributesChange()) {
-            client.patchUser(uid, dest);
+            client.submitPatch(USER_OBJECT_CLASS, uid, dest, (u, operations) -> patchUser(u, operations, options));
         }
 
         return null;
     }
 
+    private void patchUser(Uid uid, PatchOperationsModel dest, OperationOptions options) {
+        if (configuration.isSkipUnchangedUpdatesEnabled()) {
+            AtlassianGuardUserModel current = client.getUser(uid, options, dest.getAttributeNames());
+            if (current != null) {
+                client.removeUnchangedOperations(dest, current);
+                if (!dest.hasAttributesChange()) {
+                    LOGGER.ok("Skip updating the user because nothing is changed. uid={0}", uid.getUidValue());
+                    return;
+                }
+            }
+        }
+        client.patchUser(uid, dest);
+    }
+
     @Override
     public void delete(Uid uid, OperationOptions options) {
+        client.flushPatches(USER_OBJECT_CLASS, uid);
         client.deleteUser(uid);
     }
 
     @Override
     public int getByUid(Uid uid, ResultsHandler resultsHandler, OperationOptions options,
-                        Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                        boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+                        ProjectionPlan plan, Set<String> fetchFieldsSet,
+                        int pageSize, int pageOffset) {
         AtlassianGuardUserModel user = client.getUser(uid, options, fetchFieldsSet);
 
         if (user != null) {
-            resultsHandler.handle(toConnectorObject(schema, user, returnAttributesSet, allowPartialAttributeValues));
+            resultsHandler.handle(toConnectorObject(schema, user, plan));
             return 1;
         }
         return 0;
@@ -379,22 +431,84 @@ public class AtlassianGuardUserHandler implements ObjectHandler {
 
     @Override
     public int getByName(Name name, ResultsHandler resultsHandler, OperationOptions options,
-                         Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                         boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+                         ProjectionPlan plan, Set<String> fetchFieldsSet,
+                         int pageSize, int pageOffset) {
         AtlassianGuardUserModel user = client.getUser(name, options, fetchFieldsSet);
 
         if (user != null) {
-            resultsHandler.handle(toConnectorObject(schema, user, returnAttributesSet, allowPartialAttributeValues));
+            resultsHandler.handle(toConnectorObject(schema, user, plan));
             return 1;
         }
         return 0;
     }
 
+    @Override
+    public int getByGroups(Attribute attribute, ResultsHandler resultsHandler, OperationOptions options,
+                           ProjectionPlan plan, Set<String> fetchFieldSet, int pageSize, int pageOffset) {
+        // Atlassian Guard doesn't support filter by groups, read the members of the groups instead
+        Set<String> userIds = null;
+        for (Object groupId : new LinkedHashSet<>(attribute.getValue())) {
+            AtlassianGuardGroupModel group = client.getGroup(new Uid(groupId.toString()), options, Collections.singleton("members"));
+            if (group == null || group.members == null) {
+                return 0;
+            }
+            Set<String> memberIds = group.members.stream()
+                    .filter(x -> x.type == null || x.type.equals("User"))
+                    .map(x -> x.value)
+                    .collect(Collectors.toCollection(LinkedHashSet::new));
+
+            if (userIds == null) {
+                userIds = memberIds;
+            } else {
+                userIds.retainAll(memberIds);
+            }
+            if (userIds.isEmpty()) {
+                return 0;
+            }
+        }
+        if (userIds == null) {
+            return 0;
+        }
+
+        List<String> ids = new ArrayList<>(userIds);
+        int total = ids.size();
+        if (pageOffset > 0) {
+            int from = Math.min(pageOffset - 1, ids.size());
+            ids = ids.subList(from, Math.min(from + pageSize, ids.size()));
+        }
+
+        // The membership is already resolved by the groups, so the users are returned with the requested attributes only
+        client.getUserObjectsByAnyMatch(binder.compile(plan), resultsHandler::handle,
+                options, fetchFieldSet, "id", ids, pageSize);
+        return total;
+    }
+
+    @Override
+    public int getByFilter(String expression, Map<String, String> filterAttributes, Filter filter,
+                           ResultsHandler resultsHandler, OperationOptions options,
+                           ProjectionPlan plan, Set<String> fetchFieldsSet,
+                           int pageSize, int pageOffset) {
+        return searchByFilter(expression, filterAttributes, filter, resultsHandler, options,
+                plan, fetchFieldsSet, pageSize, pageOffset,
+                (h, p, fetchFields) -> client.getUserObjects(binder.compile(p), h::handle, options, fetchFields, expression, pageSize, pageOffset),
+                () -> client.markFilterUnsupported(filterAttributes.values()));
+    }
+
+    @Override
+    public int getByAnyMatch(Attribute attribute, String expression, Map<String, String> filterAttributes, Filter filter,
+                             ResultsHandler resultsHandler, OperationOptions options,
+                             ProjectionPlan plan, Set<String> fetchFieldsSet,
+                             int pageSize, int pageOffset) {
+        return searchByAnyMatch(attribute, expression, filterAttributes, filter, resultsHandler, options,
+                plan, fetchFieldsSet, pageSize, pageOffset,
+                (h, p, fetchFields, path, values) -> client.getUserObjectsByAnyMatch(binder.compile(p), h::handle, options, fetchFields, path, values, pageSize));
+    }
+
     @Override
     public int getAll(ResultsHandler resultsHandler, OperationOptions options,
-                      Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                      boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
-        return client.getUsers((u) -> resultsHandler.handle(toConnectorObject(schema, u, returnAttributesSet, allowPartialAttributeValues)),
-                options, fetchFieldsSet, pageSize, pageOffset);
+                      ProjectionPlan plan, Set<String> fetchFieldsSet,
+                      int pageSize, int pageOffset) {
+        return client.getUserObjects(binder.compile(plan), resultsHandler::handle,
+                options, fetchFieldsSet, null, pageSize, pageOffset);
     }
 }
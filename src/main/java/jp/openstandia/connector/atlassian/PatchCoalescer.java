@@ -0,0 +1,257 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.atlassian;
+
+import jp.openstandia.connector.util.Metrics;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.ConnectorException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+
+/**
+ * Write-behind buffer of PATCH operations. The operations for the same object submitted within the window
+ * are merged and sent as one PATCH request when the window elapses or it's flushed explicitly.
+ * <p>
+ * The failure of the PATCH sent after the window can't be returned to the caller of updateDelta,
+ * so it's logged. The failure of the explicit flush is thrown.
+ * <p>
+ * The PATCH requests of the same object are sent one by one in the submission order, and the explicit flush
+ * waits for the request which is being sent after the window. The delayed requests are sent by the threads
+ * of this buffer, so a slow request doesn't delay the other connector instances.
+ * <p>
+ * The buffer belongs to one connector instance. The updates of the same object which are processed by
+ * different pooled instances aren't merged.
+ *
+ * @author Hiroyuki Wada
+ */
+public class PatchCoalescer {
+
+    private static final Log LOG = Log.getLog(PatchCoalescer.class);
+
+    // Only fires the timers, the requests are sent by the executor of each buffer
+    private static final ScheduledExecutorService SCHEDULER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread t = new Thread(r, "AtlassianGuard-PatchCoalescer-Timer");
+        t.setDaemon(true);
+        return t;
+    });
+
+    private final long windowMillis;
+    private final Metrics metrics;
+    private final ExecutorService executor;
+    private final Map<String, Pending> pending = new LinkedHashMap<>();
+    // The last request being sent for each object, completed when it's done regardless of the result
+    private final Map<String, CompletableFuture<Void>> inFlight = new HashMap<>();
+
+    public PatchCoalescer(long windowMillis, Metrics metrics) {
+        this.windowMillis = windowMillis;
+        this.metrics = metrics;
+        this.executor = windowMillis > 0 ? Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "AtlassianGuard-PatchCoalescer");
+            t.setDaemon(true);
+            return t;
+        }) : null;
+    }
+
+    public static PatchCoalescer disabled() {
+        return new PatchCoalescer(0, null);
+    }
+
+    public boolean isEnabled() {
+        return windowMillis > 0;
+    }
+
+    /**
+     * Submit the operations. They are sent by the sender immediately if coalescing is disabled.
+     *
+     * @param objectClass
+     * @param uid
+     * @param operations
+     * @param sender      sends the merged operations
+     */
+    public void submit(ObjectClass objectClass, Uid uid, PatchOperationsModel operations,
+                       BiConsumer<Uid, PatchOperationsModel> sender) {
+        if (!isEnabled()) {
+            sender.accept(uid, operations);
+            return;
+        }
+
+        String key = toKey(objectClass, uid);
+        synchronized (pending) {
+            Pending current = pending.get(key);
+            if (current != null) {
+                current.operations.merge(operations);
+                metrics.increment("patch.coalesced");
+                return;
+            }
+            current = new Pending(uid, operations, sender);
+            pending.put(key, current);
+            current.timer = SCHEDULER.schedule(() -> flushInBackground(key), windowMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Send the pending operations of the object now. It also waits for the request of the object
+     * which is being sent after the window.
+     *
+     * @param objectClass
+     * @param uid
+     */
+    public void flush(ObjectClass objectClass, Uid uid) {
+        if (!isEnabled()) {
+            return;
+        }
+        send(toKey(objectClass, uid));
+    }
+
+    /**
+     * Send all pending operations of the object class now, or all of them if the object class is null.
+     * It also waits for the requests which are being sent after the window.
+     *
+     * @param objectClass
+     */
+    public void flush(ObjectClass objectClass) {
+        if (!isEnabled()) {
+            return;
+        }
+        Set<String> keys = new LinkedHashSet<>();
+        synchronized (pending) {
+            keys.addAll(pending.keySet());
+            keys.addAll(inFlight.keySet());
+        }
+        if (objectClass != null) {
+            keys.removeIf(key -> !key.startsWith(objectClass.getObjectClassValue() + "/"));
+        }
+
+        // Try to send all, then throw the first failure
+        ConnectorException failure = null;
+        for (String key : keys) {
+            try {
+                send(key);
+            } catch (ConnectorException e) {
+                if (failure == null) {
+                    failure = e;
+                }
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Stop the threads of this buffer. The pending operations should be flushed before closing.
+     */
+    public void close() {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (pending) {
+            pending.values().forEach(p -> p.timer.cancel(false));
+            if (!pending.isEmpty()) {
+                LOG.warn("Discard the pending PATCH operations. objects={0}", pending.size());
+            }
+            pending.clear();
+        }
+        executor.shutdown();
+    }
+
+    private void flushInBackground(String key) {
+        try {
+            executor.execute(() -> {
+                try {
+                    send(key);
+                } catch (RuntimeException e) {
+                    metrics.increment("patch.coalesced.failed");
+                    LOG.error(e, "Failed to send the coalesced PATCH. key={0}", key);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            LOG.warn("Discard the coalesced PATCH because the connector is closed. key={0}", key);
+        }
+    }
+
+    /**
+     * Send the pending operations of the object after the previous request of the object is done.
+     *
+     * @param key
+     */
+    private void send(String key) {
+        Pending target;
+        CompletableFuture<Void> previous;
+        CompletableFuture<Void> current = null;
+        synchronized (pending) {
+            target = pending.remove(key);
+            previous = inFlight.get(key);
+            if (target != null) {
+                current = new CompletableFuture<>();
+                inFlight.put(key, current);
+            }
+        }
+
+        if (previous != null) {
+            // It's always completed normally, the failure has been handled by the sender
+            previous.join();
+        }
+        if (target == null) {
+            return;
+        }
+
+        try {
+            target.timer.cancel(false);
+            if (target.operations.hasAttributesChange()) {
+                target.sender.accept(target.uid, target.operations);
+            }
+        } finally {
+            synchronized (pending) {
+                inFlight.remove(key, current);
+            }
+            current.complete(null);
+        }
+    }
+
+    private static String toKey(ObjectClass objectClass, Uid uid) {
+        return objectClass.getObjectClassValue() + "/" + uid.getUidValue();
+    }
+
+    private static class Pending {
+        final Uid uid;
+        final PatchOperationsModel operations;
+        final BiConsumer<Uid, PatchOperationsModel> sender;
+        ScheduledFuture<?> timer;
+
+        Pending(Uid uid, PatchOperationsModel operations, BiConsumer<Uid, PatchOperationsModel> sender) {
+            this.uid = uid;
+            this.operations = operations;
+            this.sender = sender;
+        }
+    }
+}
@@ -4,14 +4,30 @@ import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.fasterxml.jackson.annotation.JsonProperty;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @JsonIgnoreProperties(ignoreUnknown = true)
 public class PatchOperationsModel {
     private static final String PATCH_OP = "urn:ietf:params:scim:api:messages:2.0:PatchOp";
 
+    // All sub-attributes of the complex attributes. The replace of a complex attribute clears the sub-attributes
+    // which aren't in the value (RFC 7644 3.5.2.3), so only the replaces of all of them are merged.
+    private static final Map<String, Set<String>> SUB_ATTRIBUTES = new HashMap<>();
+
+    static {
+        SUB_ATTRIBUTES.put("name", new HashSet<>(Arrays.asList(
+                "formatted", "familyName", "givenName", "middleName", "honorificPrefix", "honorificSuffix")));
+    }
+
     public List<String> schemas = Collections.singletonList(PATCH_OP);
 
     @JsonProperty("Operations")
@@ -119,4 +135,208 @@ public class PatchOperationsModel {
     public boolean hasAttributesChange() {
         return !operations.isEmpty();
     }
+
+    /**
+     * Returns the top-level attribute names changed by the operations (e.g. "name" for "name.givenName").
+     *
+     * @return
+     */
+    public Set<String> getAttributeNames() {
+        return operations.stream()
+                .filter(op -> op.path != null)
+                .map(op -> op.path.split("[.\\[]", 2)[0])
+                .collect(Collectors.toCollection(LinkedHashSet::new));
+    }
+
+    /**
+     * Compact the operations before sending. The operations are kept in the submission order because SCIM PATCH
+     * applies them in order (RFC 7644 3.5.2).
+     * <ul>
+     *     <li>The replace operations of the same path are collapsed into the last one</li>
+     *     <li>The replace operations of all sub-attributes of the same complex attribute (e.g. name.givenName,
+     *     name.familyName and so on) are merged into one replace of the complex attribute. The replaces of some of
+     *     them are kept as they are not to clear the others</li>
+     *     <li>The last add or remove of the same member wins (e.g. add then remove of a member is sent as remove only)</li>
+     * </ul>
+     *
+     * @return this
+     */
+    public PatchOperationsModel compact() {
+        // The last operation for each target, in the order of the last change
+        Map<String, Operation> latest = new LinkedHashMap<>();
+        int index = 0;
+
+        for (Operation op : operations) {
+            if ("members".equals(op.path) && op.value instanceof List) {
+                for (Object value : (List<?>) op.value) {
+                    Member member = (Member) value;
+                    Operation single = new Operation();
+                    single.op = op.op;
+                    single.path = op.path;
+                    single.value = member;
+
+                    String key = "member:" + member.value;
+                    latest.remove(key);
+                    latest.put(key, single);
+                }
+            } else if ("replace".equals(op.op) && op.path != null) {
+                String key = "replace:" + op.path;
+                latest.remove(key);
+                latest.put(key, op);
+            } else {
+                latest.put("other:" + index, op);
+            }
+            index++;
+        }
+
+        // Group the sub-attributes by the parent complex attribute which isn't replaced as a whole
+        Map<String, Map<String, Object>> subAttributes = new LinkedHashMap<>();
+        Set<Operation> mergeable = new HashSet<>();
+        for (Operation op : latest.values()) {
+            if (!"replace".equals(op.op) || op.path == null) {
+                continue;
+            }
+            int dot = op.path.indexOf('.');
+            boolean isSubAttribute = dot > 0 && op.path.indexOf('.', dot + 1) < 0 && op.path.indexOf('[') < 0 && op.path.indexOf(':') < 0
+                    && (op.value instanceof String || op.value instanceof Boolean);
+            if (isSubAttribute && !latest.containsKey("replace:" + op.path.substring(0, dot))) {
+                subAttributes.computeIfAbsent(op.path.substring(0, dot), k -> new LinkedHashMap<>())
+                        .put(op.path.substring(dot + 1), op.value);
+                mergeable.add(op);
+            }
+        }
+        subAttributes.entrySet().removeIf(e -> !e.getValue().keySet().equals(SUB_ATTRIBUTES.get(e.getKey())));
+        mergeable.removeIf(op -> !subAttributes.containsKey(op.path.substring(0, op.path.indexOf('.'))));
+
+        List<Operation> compacted = new ArrayList<>();
+        Operation lastMembers = null;
+        List<Member> lastMembersValue = null;
+        for (Operation op : latest.values()) {
+            if (op.value instanceof Member) {
+                // Join the consecutive changes of the members with the same operation
+                if (lastMembers == null || !lastMembers.op.equals(op.op)) {
+                    lastMembersValue = new ArrayList<>();
+                    lastMembers = new Operation();
+                    lastMembers.op = op.op;
+                    lastMembers.path = op.path;
+                    lastMembers.value = lastMembersValue;
+                    compacted.add(lastMembers);
+                }
+                lastMembersValue.add((Member) op.value);
+                continue;
+            }
+            lastMembers = null;
+
+            if (!mergeable.contains(op)) {
+                compacted.add(op);
+                continue;
+            }
+            int dot = op.path.indexOf('.');
+            Map<String, Object> value = subAttributes.remove(op.path.substring(0, dot));
+            if (value == null) {
+                // Already merged
+                continue;
+            }
+            Operation merged = new Operation();
+            merged.op = "replace";
+            merged.path = op.path.substring(0, dot);
+            merged.value = value;
+            compacted.add(merged);
+        }
+
+        operations = compacted;
+        return this;
+    }
+
+    /**
+     * Merge the later operations into this. The later replace of the same path wins, and the later add/remove
+     * of the same member wins (e.g. add then remove of a member is sent as remove only).
+     *
+     * @param later
+     */
+    public void merge(PatchOperationsModel later) {
+        Map<String, Operation> others = new LinkedHashMap<>();
+        Map<String, Boolean> members = new LinkedHashMap<>();
+
+        List<Operation> all = new ArrayList<>(operations);
+        all.addAll(later.operations);
+
+        for (Operation op : all) {
+            if ("members".equals(op.path) && op.value instanceof List) {
+                for (Object value : (List<?>) op.value) {
+                    String member = ((Member) value).value;
+                    // Keep the order of the last change
+                    members.remove(member);
+                    members.put(member, op.op.equals("add"));
+                }
+            } else {
+                others.remove(op.path);
+                others.put(op.path, op);
+            }
+        }
+
+        operations = new ArrayList<>(others.values());
+        List<String> add = members.entrySet().stream().filter(Map.Entry::getValue).map(Map.Entry::getKey).collect(Collectors.toList());
+        List<String> remove = members.entrySet().stream().filter(e -> !e.getValue()).map(Map.Entry::getKey).collect(Collectors.toList());
+        if (!add.isEmpty()) {
+            addMembers(add);
+        }
+        if (!remove.isEmpty()) {
+            removeMembers(remove);
+        }
+    }
+
+    /**
+     * Split the operations so that each PATCH request has members values up to the chunk size.
+     * The duplicated members in the same operation are removed. The other operations are put into the first request.
+     *
+     * @param chunkSize
+     * @return the split operations in the order to be sent
+     */
+    public List<PatchOperationsModel> splitMembers(int chunkSize) {
+        List<PatchOperationsModel> chunks = new ArrayList<>();
+        PatchOperationsModel current = new PatchOperationsModel();
+        int currentSize = 0;
+
+        for (Operation op : operations) {
+            if (!"members".equals(op.path) || !(op.value instanceof List)) {
+                current.operations.add(op);
+            }
+        }
+
+        for (Operation op : operations) {
+            if (!"members".equals(op.path) || !(op.value instanceof List)) {
+                continue;
+            }
+            Map<String, Member> unique = new LinkedHashMap<>();
+            for (Object value : (List<?>) op.value) {
+                Member member = (Member) value;
+                unique.putIfAbsent(member.value, member);
+            }
+            List<Member> members = new ArrayList<>(unique.values());
+
+            int from = 0;
+            while (from < members.size()) {
+                if (currentSize == chunkSize) {
+                    chunks.add(current);
+                    current = new PatchOperationsModel();
+                    currentSize = 0;
+                }
+                int to = Math.min(from + chunkSize - currentSize, members.size());
+
+                Operation chunk = new Operation();
+                chunk.op = op.op;
+                chunk.path = op.path;
+                chunk.value = new ArrayList<>(members.subList(from, to));
+                current.operations.add(chunk);
+
+                currentSize += to - from;
+                from = to;
+            }
+        }
+        if (current.hasAttributesChange()) {
+            chunks.add(current);
+        }
+        return chunks;
+    }
 }
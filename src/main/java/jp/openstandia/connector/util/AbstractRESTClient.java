@@ -26,10 +26,24 @@ import org.identityconnectors.framework.common.objects.Uid;
 import org.identityconnectors.framework.spi.Configuration;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.function.BiFunction;
 import java.util.function.Function;
+import java.util.function.Supplier;
 
 public abstract class AbstractRESTClient<C extends Configuration> {
 
@@ -45,6 +59,17 @@ public abstract class AbstractRESTClient<C extends Configuration> {
     protected String offsetKey;
     protected String countKey;
     protected int retryCount = 2;
+    protected RetryPolicy retryPolicy = RetryPolicy.none();
+    protected RequestPacer requestPacer = new RequestPacer();
+    protected int rateLimitRetryCount = 0;
+    protected CircuitBreaker circuitBreaker = CircuitBreaker.disabled();
+    protected int prefetchPages = 0;
+    protected int scanParallelism = 1;
+    protected boolean scanOrdered = true;
+    protected boolean scanPastTotal = false;
+    protected final Metrics metrics = new Metrics();
+    // Leases of the objects shared with the other connector instances, released by close()
+    private final List<SharedRegistry.Lease<?>> sharedLeases = new ArrayList<>();
 
 
     public interface ErrorHandler {
@@ -59,6 +84,8 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         boolean isOk(Response response);
 
         boolean isServerError(Response response);
+
+        boolean isTooManyRequests(Response response);
     }
 
     public void init(String instanceName, C configuration, OkHttpClient httpClient, ErrorHandler errorHandler,
@@ -72,12 +99,110 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         this.countKey = countKey;
     }
 
+    /**
+     * Set the retry policy. The max retry count of the policy is used as {@link #retryCount}.
+     *
+     * @param retryPolicy
+     */
+    protected void setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        this.retryCount = retryPolicy.getMaxRetries();
+    }
+
+    /**
+     * Set the request pacer which is usually shared per base URL, and the max number of retries for 429 response.
+     * Rate limit responses are retried for all HTTP methods because the server didn't process the request.
+     *
+     * @param requestPacer
+     * @param rateLimitRetryCount
+     */
+    protected void setRequestPacer(RequestPacer requestPacer, int rateLimitRetryCount) {
+        this.requestPacer = requestPacer;
+        this.rateLimitRetryCount = rateLimitRetryCount;
+    }
+
+    /**
+     * Set the circuit breaker which is usually shared per base URL.
+     *
+     * @param circuitBreaker
+     */
+    protected void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     * Set the options of the full search by {@link #getAll(QueryHandler, int, PageRequest, PageParser)}.
+     *
+     * @param prefetchPages   number of the pages to be requested ahead
+     * @param scanParallelism number of the pages to be fetched concurrently after the total is known
+     * @param scanOrdered     if true, the resources are delivered in the page order
+     */
+    protected void setScanOptions(int prefetchPages, int scanParallelism, boolean scanOrdered) {
+        setScanOptions(prefetchPages, scanParallelism, scanOrdered, false);
+    }
+
+    /**
+     * Set the options of the full search by {@link #getAll(QueryHandler, int, PageRequest, PageParser)}.
+     *
+     * @param prefetchPages   number of the pages to be requested ahead
+     * @param scanParallelism number of the pages to be fetched concurrently after the total is known
+     * @param scanOrdered     if true, the resources are delivered in the page order
+     * @param scanPastTotal   if true, the next page is requested when the last page is full
+     *                        (e.g. the resources are created during the scan)
+     */
+    protected void setScanOptions(int prefetchPages, int scanParallelism, boolean scanOrdered, boolean scanPastTotal) {
+        this.prefetchPages = prefetchPages;
+        this.scanParallelism = scanParallelism;
+        this.scanOrdered = scanOrdered;
+        this.scanPastTotal = scanPastTotal;
+    }
+
+    /**
+     * Create the request which is sent as a probe when the circuit breaker is half-open.
+     * It should be a lightweight and side-effect free request. If it returns null, the first request
+     * after the open duration is used as the probe.
+     *
+     * @return
+     */
+    protected Request createProbeRequest() {
+        return null;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Hold the lease of the shared object until this client is closed.
+     *
+     * @param lease
+     * @return the shared object
+     */
+    protected <T> T hold(SharedRegistry.Lease<T> lease) {
+        synchronized (sharedLeases) {
+            sharedLeases.add(lease);
+        }
+        return lease.get();
+    }
+
     public abstract void test();
 
     public void close() {
+        synchronized (sharedLeases) {
+            sharedLeases.forEach(SharedRegistry.Lease::release);
+            sharedLeases.clear();
+        }
+        if (httpClient == null) {
+            // Not initialized
+            return;
+        }
+        // Don't evict the connection pool here because it may be shared with other connector instances.
+        // It's closed by SharedHttpClientRegistry when the last instance releases it.
         LOG.info("Close {0} connection, current: {1}, idle: {2}",
                 instanceName, httpClient.connectionPool().connectionCount(), httpClient.connectionPool().idleConnectionCount());
-        httpClient.connectionPool().evictAll();
+        if (!metrics.isEmpty()) {
+            LOG.info("{0} client metrics: {1}", instanceName, metrics);
+        }
     }
 
     // Utilities
@@ -93,17 +218,7 @@ public abstract class AbstractRESTClient<C extends Configuration> {
      */
     protected <T> T callCreate(ObjectClass objectClass, String url, Object target, String name, Function<Response, T> callback) {
         try (Response response = post(url, target)) {
-            if (errorHandler.isAlreadyExists(response)) {
-                throw new AlreadyExistsException(String.format("%s %s '%s' already exists.", instanceName, objectClass.getObjectClassValue(), name));
-            }
-            if (errorHandler.isInvalidRequest(response)) {
-                throw new InvalidAttributeValueException(String.format("Bad request in create operation %s %s '%s': %s", instanceName, objectClass.getObjectClassValue(), name, toBody(response)));
-            }
-
-            if (!this.errorHandler.isOk(response)) {
-                throw new ConnectorIOException(String.format("Failed to create %s %s '%s', statusCode: %d, response: %s",
-                        instanceName, objectClass.getObjectClassValue(), name, response.code(), toBody(response)));
-            }
+            checkCreateResponse(objectClass, name, response);
 
             // Success
             return callback.apply(response);
@@ -114,21 +229,46 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
-    protected void callPatch(ObjectClass objectClass, String url, Uid uid, Object target) {
-        try (Response response = patch(url, target)) {
-            if (this.errorHandler.isNotFound(response)) {
-                throw new UnknownUidException(uid, objectClass);
-            }
+    /**
+     * Asynchronous version of {@link #callCreate(ObjectClass, String, Object, String, Function)}.
+     * The callback is called in the dispatcher thread.
+     *
+     * @param objectClass
+     * @param url
+     * @param target
+     * @param name
+     * @param callback
+     * @return
+     */
+    protected <T> CompletableFuture<T> callCreateAsync(ObjectClass objectClass, String url, Object target, String name, Function<Response, T> callback) {
+        return handleAsync(postAsync(url, target), (response) -> {
+            try (Response r = response) {
+                checkCreateResponse(objectClass, name, r);
 
-            if (this.errorHandler.isInvalidRequest(response)) {
-                throw new InvalidAttributeValueException(String.format("Bad request in update operation %s %s: %s, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
+                // Success
+                return callback.apply(r);
             }
+        }, () -> String.format("Failed to create %s %s '%s'",
+                instanceName, objectClass.getObjectClassValue(), name));
+    }
 
-            if (!this.errorHandler.isOk(response)) {
-                throw new ConnectorIOException(String.format("Failed to patch %s %s: %s, statusCode: %d, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
-            }
+    private void checkCreateResponse(ObjectClass objectClass, String name, Response response) {
+        if (errorHandler.isAlreadyExists(response)) {
+            throw new AlreadyExistsException(String.format("%s %s '%s' already exists.", instanceName, objectClass.getObjectClassValue(), name));
+        }
+        if (errorHandler.isInvalidRequest(response)) {
+            throw new InvalidAttributeValueException(String.format("Bad request in create operation %s %s '%s': %s", instanceName, objectClass.getObjectClassValue(), name, toBody(response)));
+        }
+
+        if (!this.errorHandler.isOk(response)) {
+            throw new ConnectorIOException(String.format("Failed to create %s %s '%s', statusCode: %d, response: %s",
+                    instanceName, objectClass.getObjectClassValue(), name, response.code(), toBody(response)));
+        }
+    }
+
+    protected void callPatch(ObjectClass objectClass, String url, Uid uid, Object target) {
+        try (Response response = patch(url, target)) {
+            checkPatchResponse(objectClass, uid, response);
 
             // Success
 
@@ -138,6 +278,34 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
+    protected CompletableFuture<Void> callPatchAsync(ObjectClass objectClass, String url, Uid uid, Object target) {
+        return handleAsync(patchAsync(url, target), (response) -> {
+            try (Response r = response) {
+                checkPatchResponse(objectClass, uid, r);
+
+                // Success
+                return null;
+            }
+        }, () -> String.format("Failed to patch %s %s: %s",
+                this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue()));
+    }
+
+    private void checkPatchResponse(ObjectClass objectClass, Uid uid, Response response) {
+        if (this.errorHandler.isNotFound(response)) {
+            throw new UnknownUidException(uid, objectClass);
+        }
+
+        if (this.errorHandler.isInvalidRequest(response)) {
+            throw new InvalidAttributeValueException(String.format("Bad request in update operation %s %s: %s, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
+        }
+
+        if (!this.errorHandler.isOk(response)) {
+            throw new ConnectorIOException(String.format("Failed to patch %s %s: %s, statusCode: %d, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
+        }
+    }
+
     protected void callUpdate(ObjectClass objectClass, String url, Uid uid, Object target) {
         try (Response response = put(url, target)) {
             if (this.errorHandler.isNotFound(response)) {
@@ -187,19 +355,7 @@ public abstract class AbstractRESTClient<C extends Configuration> {
      */
     protected void callDelete(ObjectClass objectClass, String url, Uid uid, Object body) {
         try (Response response = delete(url, body)) {
-            if (this.errorHandler.isNotFound(response)) {
-                throw new UnknownUidException(uid, objectClass);
-            }
-
-            if (this.errorHandler.isInvalidRequest(response)) {
-                throw new InvalidAttributeValueException(String.format("Bad request in delete operation %s %s: %s, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
-            }
-
-            if (!this.errorHandler.isOk(response)) {
-                throw new ConnectorIOException(String.format("Failed to delete %s %s: %s, statusCode: %d, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
-            }
+            checkDeleteResponse(objectClass, uid, response);
 
             // Success
 
@@ -209,26 +365,42 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
-    protected Response callRead(ObjectClass objectClass, String url, Uid uid) {
-        try {
-            Response response = get(url + "/" + uid.getUidValue());
-            if (this.errorHandler.isNotFound(response)) {
-                // Don't return UnknownUidException in the Search (executeQuery) operations
+    protected CompletableFuture<Void> callDeleteAsync(ObjectClass objectClass, String url, Uid uid, Object body) {
+        return handleAsync(deleteAsync(url, body), (response) -> {
+            try (Response r = response) {
+                checkDeleteResponse(objectClass, uid, r);
+
+                // Success
                 return null;
             }
+        }, () -> String.format("Failed to delete %s %s: %s",
+                this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue()));
+    }
 
-            if (this.errorHandler.isInvalidRequest(response)) {
-                throw new InvalidAttributeValueException(String.format("Bad request in read operation for %s %s: %s, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
-            }
+    private void checkDeleteResponse(ObjectClass objectClass, Uid uid, Response response) {
+        if (this.errorHandler.isNotFound(response)) {
+            throw new UnknownUidException(uid, objectClass);
+        }
 
-            if (!this.errorHandler.isOk(response)) {
-                throw new ConnectorIOException(String.format("Failed to read %s %s: %s, statusCode: %d, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
-            }
+        if (this.errorHandler.isInvalidRequest(response)) {
+            throw new InvalidAttributeValueException(String.format("Bad request in delete operation %s %s: %s, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
+        }
 
-            // Success
-            return response;
+        if (!this.errorHandler.isOk(response)) {
+            throw new ConnectorIOException(String.format("Failed to delete %s %s: %s, statusCode: %d, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
+        }
+    }
+
+    protected Response callRead(ObjectClass objectClass, String url, Uid uid) {
+        return callRead(objectClass, url, uid, null);
+    }
+
+    protected Response callRead(ObjectClass objectClass, String url, Uid uid, Map<String, String> params) {
+        try {
+            Response response = get(url + "/" + uid.getUidValue(), params);
+            return checkReadResponse(objectClass, uid, response);
 
         } catch (IOException e) {
             throw new ConnectorIOException(String.format("Failed to read %s %s: %s",
@@ -236,21 +408,51 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
+    /**
+     * Asynchronous version of {@link #callRead(ObjectClass, String, Uid)}.
+     * The returned response must be closed by the caller. It completes with null if not found.
+     *
+     * @param objectClass
+     * @param url
+     * @param uid
+     * @return
+     */
+    protected CompletableFuture<Response> callReadAsync(ObjectClass objectClass, String url, Uid uid) {
+        return callReadAsync(objectClass, url, uid, null);
+    }
+
+    protected CompletableFuture<Response> callReadAsync(ObjectClass objectClass, String url, Uid uid, Map<String, String> params) {
+        return handleAsync(getAsync(url + "/" + uid.getUidValue(), params),
+                (response) -> checkReadResponse(objectClass, uid, response),
+                () -> String.format("Failed to read %s %s: %s",
+                        this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue()));
+    }
+
+    private Response checkReadResponse(ObjectClass objectClass, Uid uid, Response response) {
+        if (this.errorHandler.isNotFound(response)) {
+            // Don't return UnknownUidException in the Search (executeQuery) operations
+            response.close();
+            return null;
+        }
+
+        if (this.errorHandler.isInvalidRequest(response)) {
+            throw new InvalidAttributeValueException(String.format("Bad request in read operation for %s %s: %s, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), toBody(response)));
+        }
+
+        if (!this.errorHandler.isOk(response)) {
+            throw new ConnectorIOException(String.format("Failed to read %s %s: %s, statusCode: %d, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), uid.getUidValue(), response.code(), toBody(response)));
+        }
+
+        // Success
+        return response;
+    }
+
     protected Response callSearch(ObjectClass objectClass, String url, Map<String, String> params) {
         try {
             Response response = get(url, params);
-            if (this.errorHandler.isInvalidRequest(response)) {
-                throw new InvalidAttributeValueException(String.format("Bad request in search operation for %s %s: %s, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), params, toBody(response)));
-            }
-
-            if (!this.errorHandler.isOk(response)) {
-                throw new ConnectorIOException(String.format("Failed to search %s %s: %s, statusCode: %d, response: %s",
-                        this.instanceName, objectClass.getObjectClassValue(), params, response.code(), toBody(response)));
-            }
-
-            // Success
-            return response;
+            return checkSearchResponse(objectClass, params, response);
 
         } catch (IOException e) {
             throw new ConnectorIOException(String.format("Failed to search %s %s: %s",
@@ -258,6 +460,95 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
+    /**
+     * Asynchronous version of {@link #callSearch(ObjectClass, String, Map)}.
+     * The returned response must be closed by the caller.
+     *
+     * @param objectClass
+     * @param url
+     * @param params
+     * @return
+     */
+    protected CompletableFuture<Response> callSearchAsync(ObjectClass objectClass, String url, Map<String, String> params) {
+        return handleAsync(getAsync(url, params),
+                (response) -> checkSearchResponse(objectClass, params, response),
+                () -> String.format("Failed to search %s %s: %s",
+                        this.instanceName, objectClass.getObjectClassValue(), params));
+    }
+
+    private Response checkSearchResponse(ObjectClass objectClass, Map<String, String> params, Response response) {
+        if (this.errorHandler.isInvalidRequest(response)) {
+            throw new InvalidAttributeValueException(String.format("Bad request in search operation for %s %s: %s, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), params, toBody(response)));
+        }
+
+        if (!this.errorHandler.isOk(response)) {
+            throw new ConnectorIOException(String.format("Failed to search %s %s: %s, statusCode: %d, response: %s",
+                    this.instanceName, objectClass.getObjectClassValue(), params, response.code(), toBody(response)));
+        }
+
+        // Success
+        return response;
+    }
+
+    /**
+     * Wait for the completion of the asynchronous call and unwrap the exception to throw ConnectorException.
+     *
+     * @param future
+     * @return
+     */
+    protected static <T> T await(CompletableFuture<T> future) {
+        try {
+            return future.join();
+        } catch (CompletionException | CancellationException e) {
+            throw toConnectorException(e, null);
+        }
+    }
+
+    private <T> CompletableFuture<T> handleAsync(CompletableFuture<Response> future, Function<Response, T> onResponse,
+                                                 Supplier<String> ioErrorMessage) {
+        CompletableFuture<T> result = new CompletableFuture<>();
+        future.whenComplete((response, e) -> {
+            if (e != null) {
+                result.completeExceptionally(toConnectorException(e, ioErrorMessage));
+                return;
+            }
+            try {
+                T value = onResponse.apply(response);
+                if (!result.complete(value) && value instanceof Response) {
+                    // Already cancelled by the caller
+                    ((Response) value).close();
+                }
+            } catch (RuntimeException re) {
+                result.completeExceptionally(re);
+            }
+        });
+        // Propagate the cancellation to the http call
+        result.whenComplete((value, e) -> {
+            if (result.isCancelled()) {
+                future.cancel(true);
+            }
+        });
+        return result;
+    }
+
+    private static ConnectorException toConnectorException(Throwable e, Supplier<String> ioErrorMessage) {
+        Throwable cause = e;
+        while ((cause instanceof CompletionException || cause instanceof ExecutionException) && cause.getCause() != null) {
+            cause = cause.getCause();
+        }
+        if (cause instanceof ConnectorException) {
+            return (ConnectorException) cause;
+        }
+        if (cause instanceof IOException && ioErrorMessage != null) {
+            return new ConnectorIOException(ioErrorMessage.get(), cause);
+        }
+        if (cause instanceof IOException) {
+            return new ConnectorIOException(cause);
+        }
+        return new ConnectorException(cause);
+    }
+
     private RequestBody createJsonRequestBody(Object body) {
         String bodyString;
         try {
@@ -276,6 +567,11 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
+    private void throwTooManyRequests(Response response) throws ConnectorIOException {
+        throw new ConnectorIOException(String.format("%s rate limit exceeded, statusCode: %d, response: %s",
+                this.instanceName, response.code(), toBody(response)));
+    }
+
     private void throwExceptionIfServerError(Response response) throws ConnectorIOException {
         if (this.errorHandler.isServerError(response)) {
             try {
@@ -287,29 +583,420 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
-    protected Response get(String url) throws IOException {
-        return get(url, null);
+    /**
+     * Execute the request synchronously. All requests go through this method.
+     * IOException and server error are retried according to the {@link RetryPolicy}.
+     * Rate limit response (429) is retried after the pause decided by the {@link RequestPacer}.
+     *
+     * @param request
+     * @return
+     * @throws IOException
+     */
+    protected Response execute(Request request) throws IOException {
+        final long start = System.nanoTime();
+        int retried = 0;
+        int rateLimitRetried = 0;
+
+        while (true) {
+            boolean probing = checkCircuitBreaker(request);
+
+            long wait = requestPacer.reserve();
+            if (wait > 0) {
+                metrics.add("rateLimit.waitMillis", wait);
+                try {
+                    sleep(wait);
+                } catch (IOException e) {
+                    if (probing) {
+                        circuitBreaker.cancelProbe();
+                    }
+                    throw e;
+                }
+            }
+
+            final Response response;
+            try {
+                response = httpClient.newCall(request).execute();
+            } catch (IOException e) {
+                circuitBreaker.onFailure();
+                long delay = retryPolicy.nextDelay(request.method(), retried, start);
+                if (delay < 0) {
+                    throw e;
+                }
+                retried++;
+                onRetry(request, retried, delay, e.toString());
+                sleep(delay);
+                continue;
+            }
+
+            recordCircuitBreaker(response);
+
+            boolean tooManyRequests = this.errorHandler.isTooManyRequests(response);
+            requestPacer.onResponse(response, tooManyRequests);
+
+            throwExceptionIfUnauthorized(response);
+
+            if (tooManyRequests) {
+                metrics.increment("rateLimited");
+                if (rateLimitRetried < rateLimitRetryCount) {
+                    response.close();
+                    rateLimitRetried++;
+                    onRateLimitRetry(request, rateLimitRetried);
+                    continue;
+                }
+                throwTooManyRequests(response);
+            }
+
+            if (this.errorHandler.isServerError(response)) {
+                long delay = retryPolicy.nextDelay(request.method(), retried, start);
+                if (delay >= 0) {
+                    response.close();
+                    retried++;
+                    onRetry(request, retried, delay, "statusCode: " + response.code());
+                    sleep(delay);
+                    continue;
+                }
+            }
+            throwExceptionIfServerError(response);
+
+            return response;
+        }
     }
 
-    protected Response get(String url, Map<String, String> params) throws IOException {
+    /**
+     * @param request
+     * @return true if the request itself is the probe
+     * @throws IOException
+     */
+    private boolean checkCircuitBreaker(Request request) throws IOException {
+        switch (circuitBreaker.acquire()) {
+            case REJECT:
+                metrics.increment("circuitBreaker.rejected");
+                throw circuitOpenException(request, null);
+            case PROBE:
+                Request probe = createProbeRequest();
+                if (probe == null) {
+                    // The request itself is the probe
+                    return true;
+                }
+                try (Response response = httpClient.newCall(probe).execute()) {
+                    if (!recordCircuitBreaker(response)) {
+                        throw circuitOpenException(request, null);
+                    }
+                } catch (IOException e) {
+                    circuitBreaker.onFailure();
+                    throw circuitOpenException(request, e);
+                }
+                return false;
+            default:
+                return false;
+        }
+    }
+
+    private boolean recordCircuitBreaker(Response response) {
+        if (this.errorHandler.isServerError(response)) {
+            circuitBreaker.onFailure();
+            return false;
+        }
+        circuitBreaker.onSuccess();
+        return true;
+    }
+
+    private ConnectionFailedException circuitOpenException(Request request, Throwable cause) {
+        String message = String.format("%s is unavailable, circuit breaker is open: %s %s",
+                this.instanceName, request.method(), request.url());
+        return cause != null ? new ConnectionFailedException(message, cause) : new ConnectionFailedException(message);
+    }
+
+    /**
+     * Execute the request asynchronously by the dispatcher of the http client.
+     * The number of concurrent requests is bounded by the dispatcher's maxRequests and maxRequestsPerHost.
+     * Retrying and pacing are the same as {@link #execute(Request)}, but they don't block the caller.
+     * Cancelling the returned future cancels the http call.
+     *
+     * @param request
+     * @return
+     */
+    protected CompletableFuture<Response> executeAsync(Request request) {
+        final AsyncCall asyncCall = new AsyncCall(request);
+
+        asyncCall.send();
+
+        asyncCall.future.whenComplete((response, e) -> {
+            if (asyncCall.future.isCancelled()) {
+                Call call = asyncCall.currentCall.get();
+                if (call != null) {
+                    call.cancel();
+                }
+            }
+            // The probe is abandoned if the result isn't recorded, e.g. cancelled while waiting
+            asyncCall.cancelProbe();
+        });
+
+        return asyncCall.future;
+    }
+
+    /**
+     * State of the asynchronous request across the retries.
+     */
+    private class AsyncCall implements Callback {
+        final Request request;
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        final AtomicReference<Call> currentCall = new AtomicReference<>();
+        final AtomicBoolean probing = new AtomicBoolean();
+        final long start = System.nanoTime();
+        int retried;
+        int rateLimitRetried;
+
+        AsyncCall(Request request) {
+            this.request = request;
+        }
+
+        void send() {
+            if (future.isDone()) {
+                // Cancelled while waiting for the retry
+                return;
+            }
+            switch (circuitBreaker.acquire()) {
+                case REJECT:
+                    metrics.increment("circuitBreaker.rejected");
+                    future.completeExceptionally(circuitOpenException(request, null));
+                    return;
+                case PROBE:
+                    probing.set(true);
+                    Request probe = createProbeRequest();
+                    if (probe != null) {
+                        probe(probe);
+                        return;
+                    }
+                    break;
+                default:
+            }
+            pace();
+        }
+
+        void probe(Request probe) {
+            final Call call = httpClient.newCall(probe);
+            currentCall.set(call);
+            if (future.isDone()) {
+                return;
+            }
+            call.enqueue(new Callback() {
+                @Override
+                public void onFailure(Call call, IOException e) {
+                    if (!call.isCanceled()) {
+                        recordFailure();
+                    }
+                    future.completeExceptionally(circuitOpenException(request, e));
+                }
+
+                @Override
+                public void onResponse(Call call, Response response) {
+                    try (Response r = response) {
+                        if (!record(r)) {
+                            future.completeExceptionally(circuitOpenException(request, null));
+                            return;
+                        }
+                    }
+                    pace();
+                }
+            });
+        }
+
+        void pace() {
+            long wait = requestPacer.reserve();
+            if (wait > 0) {
+                metrics.add("rateLimit.waitMillis", wait);
+                later(wait, this::enqueue);
+            } else {
+                enqueue();
+            }
+        }
+
+        void enqueue() {
+            if (future.isDone()) {
+                return;
+            }
+            final Call call = httpClient.newCall(request);
+            currentCall.set(call);
+            if (future.isDone()) {
+                // Cancelled before the call is visible to the canceller
+                return;
+            }
+            call.enqueue(this);
+        }
+
+        void recordFailure() {
+            probing.set(false);
+            circuitBreaker.onFailure();
+        }
+
+        boolean record(Response response) {
+            probing.set(false);
+            return recordCircuitBreaker(response);
+        }
+
+        void cancelProbe() {
+            if (probing.compareAndSet(true, false)) {
+                circuitBreaker.cancelProbe();
+            }
+        }
+
+        void later(long delay, Runnable task) {
+            Executor executor = CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS);
+            executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    future.completeExceptionally(e);
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(Call call, IOException e) {
+            if (!call.isCanceled()) {
+                recordFailure();
+            }
+            long delay = call.isCanceled() || future.isDone() ? -1 : retryPolicy.nextDelay(request.method(), retried, start);
+            if (delay < 0) {
+                future.completeExceptionally(e);
+                return;
+            }
+            retried++;
+            onRetry(request, retried, delay, e.toString());
+            later(delay, this::send);
+        }
+
+        @Override
+        public void onResponse(Call call, Response response) {
+            try {
+                record(response);
+
+                boolean tooManyRequests = errorHandler.isTooManyRequests(response);
+                requestPacer.onResponse(response, tooManyRequests);
+
+                throwExceptionIfUnauthorized(response);
+
+                if (tooManyRequests) {
+                    metrics.increment("rateLimited");
+                    if (rateLimitRetried < rateLimitRetryCount && !future.isDone()) {
+                        response.close();
+                        rateLimitRetried++;
+                        onRateLimitRetry(request, rateLimitRetried);
+                        send();
+                        return;
+                    }
+                    throwTooManyRequests(response);
+                }
+
+                if (errorHandler.isServerError(response) && !future.isDone()) {
+                    long delay = retryPolicy.nextDelay(request.method(), retried, start);
+                    if (delay >= 0) {
+                        response.close();
+                        retried++;
+                        onRetry(request, retried, delay, "statusCode: " + response.code());
+                        later(delay, this::send);
+                        return;
+                    }
+                }
+                throwExceptionIfServerError(response);
+            } catch (RuntimeException e) {
+                response.close();
+                future.completeExceptionally(e);
+                return;
+            }
+            if (!future.complete(response)) {
+                // Already cancelled by the caller
+                response.close();
+            }
+        }
+    }
+
+    private void onRetry(Request request, int retried, long delay, String reason) {
+        metrics.increment("retry." + request.method());
+        LOG.warn("Retry {0} request in {1} ms ({2}/{3}): {4} {5}, reason: {6}",
+                instanceName, delay, retried, retryPolicy.getMaxRetries(), request.method(), request.url(), reason);
+    }
+
+    private void onRateLimitRetry(Request request, int retried) {
+        metrics.increment("rateLimit.retry");
+        LOG.warn("Retry {0} request by rate limit ({1}/{2}): {3} {4}",
+                instanceName, retried, rateLimitRetryCount, request.method(), request.url());
+    }
+
+    private void sleep(long delay) throws IOException {
+        try {
+            Thread.sleep(delay);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for retry");
+        }
+    }
+
+    private Request newGetRequest(String url, Map<String, String> params) {
         HttpUrl.Builder httpBuilder = HttpUrl.parse(url).newBuilder();
 
         if (params != null) {
             params.entrySet().stream().forEach(entry -> httpBuilder.addQueryParameter(entry.getKey(), entry.getValue()));
         }
 
-        final Request request = new Request.Builder()
+        return new Request.Builder()
                 .url(httpBuilder.build())
                 .get()
                 .build();
+    }
+
+    private Request newPostRequest(String url, Object body) {
+        RequestBody requestBody = createJsonRequestBody(body);
+
+        return new Request.Builder()
+                .url(url)
+                .post(requestBody)
+                .build();
+    }
 
-        final Response response;
-        response = httpClient.newCall(request).execute();
+    private Request newPutRequest(String url, Object body) {
+        RequestBody requestBody = createJsonRequestBody(body);
 
-        throwExceptionIfUnauthorized(response);
-        throwExceptionIfServerError(response);
+        return new Request.Builder()
+                .url(url)
+                .put(requestBody)
+                .build();
+    }
 
-        return response;
+    private Request newPatchRequest(String url, Object body) {
+        RequestBody requestBody = createJsonRequestBody(body);
+
+        return new Request.Builder()
+                .url(url)
+                .patch(requestBody)
+                .build();
+    }
+
+    private Request newDeleteRequest(String url, Object body) {
+        final Request.Builder builder = new Request.Builder()
+                .url(url);
+
+        if (body != null) {
+            RequestBody requestBody = createJsonRequestBody(body);
+            builder.delete(requestBody);
+        } else {
+            builder.delete();
+        }
+
+        return builder.build();
+    }
+
+    protected Response get(String url) throws IOException {
+        return get(url, null);
+    }
+
+    protected Response get(String url, Map<String, String> params) throws IOException {
+        return execute(newGetRequest(url, params));
+    }
+
+    protected CompletableFuture<Response> getAsync(String url, Map<String, String> params) {
+        return executeAsync(newGetRequest(url, params));
     }
 
     protected <T> int getAll(QueryHandler<T> handler, int pageSize, BiFunction<Integer, Integer, List<T>> apiCall) {
@@ -343,78 +1030,202 @@ public abstract class AbstractRESTClient<C extends Configuration> {
         }
     }
 
-    protected int resolveOffset(int pageOffset) {
-        // The page offset depends on the resource
-        return isStartOffsetFromZero ? pageOffset - 1 : pageOffset;
+    /**
+     * Result of reading one page of the list response.
+     */
+    public static class Page {
+        /**
+         * Total number of the resources, or -1 if the response doesn't contain it.
+         */
+        public int totalResults = -1;
+        /**
+         * Number of the resources in the page.
+         */
+        public int count;
+        /**
+         * Number of the resources passed to the handler.
+         */
+        public int handled;
+        /**
+         * True if the handler returned false.
+         */
+        public boolean stopped;
     }
 
-    private Response post(String url, Object body) throws IOException {
-        RequestBody requestBody = createJsonRequestBody(body);
-
-        final Request request = new Request.Builder()
-                .url(url)
-                .post(requestBody)
-                .build();
+    /**
+     * Send the request to fetch the page.
+     */
+    @FunctionalInterface
+    protected interface PageRequest {
+        CompletableFuture<Response> send(int start, int size);
+    }
 
-        final Response response = httpClient.newCall(request).execute();
+    /**
+     * Pass the resources in the page to the handler while parsing the response.
+     *
+     * @param <T>
+     */
+    @FunctionalInterface
+    protected interface PageParser<T> {
+        Page parse(Response response, QueryHandler<T> handler) throws IOException;
+    }
 
-        throwExceptionIfUnauthorized(response);
-        throwExceptionIfServerError(response);
+    /**
+     * Streaming version of {@link #getAll(QueryHandler, int, BiFunction)}.
+     * The resources are passed to the handler as soon as they are parsed, without materializing the whole page.
+     * The handler is always called in the caller thread.
+     * <p>
+     * If prefetchPages is greater than 0, the next pages are requested while the handler processes the current page.
+     * Once the total is known from the first page, the remaining pages are fetched concurrently up to scanParallelism.
+     * They are delivered in the page order if scanOrdered is true, otherwise in the completion order.
+     * The in-flight pages are bounded by the window and cancelled when the handler returns false.
+     * The total is trusted once it's known, so no request is sent past it. Only if a full page has more resources
+     * than the total, the next page is requested. If scanPastTotal is true, it's also requested when the last page
+     * is full, to pick up the resources created during the scan at the cost of one more request.
+     *
+     * @param handler
+     * @param pageSize
+     * @param request
+     * @param parser
+     * @return the number of the resources passed to the handler
+     */
+    protected <T> int getAll(QueryHandler<T> handler, int pageSize, PageRequest request, PageParser<T> parser) {
+        // Start offset (0 or 1) depends on the resource
+        final int base = isStartOffsetFromZero ? 0 : 1;
+        int nextStart = base;
+        int count = 0;
+        // Exclusive upper bound of the start offset, it's unknown until the total is returned
+        int end = -1;
 
-        return response;
-    }
+        Deque<PendingPage> inFlight = new ArrayDeque<>();
+        try {
+            while (true) {
+                boolean known = end >= 0;
+                int window = known && scanParallelism > 1 ? scanParallelism : prefetchPages + 1;
 
-    private Response put(String url, Object body) throws IOException {
-        RequestBody requestBody = createJsonRequestBody(body);
+                while (inFlight.size() < window && (!known || nextStart < end)) {
+                    inFlight.add(new PendingPage(nextStart, request.send(nextStart, pageSize)));
+                    nextStart += pageSize;
+                }
 
-        final Request request = new Request.Builder()
-                .url(url)
-                .put(requestBody)
-                .build();
+                if (inFlight.isEmpty()) {
+                    return count;
+                }
 
-        final Response response = httpClient.newCall(request).execute();
+                PendingPage pending = known && scanParallelism > 1 && !scanOrdered ? pollCompleted(inFlight) : inFlight.poll();
 
-        throwExceptionIfUnauthorized(response);
-        throwExceptionIfServerError(response);
+                Page page;
+                try (Response response = await(pending.future)) {
+                    page = parser.parse(response, handler);
+                } catch (IOException e) {
+                    throw new ConnectorIOException(String.format("Cannot parse %s REST API Response", instanceName), e);
+                }
+                count += page.handled;
 
-        return response;
+                if (page.stopped) {
+                    return count;
+                }
+                if (page.totalResults >= 0) {
+                    end = Math.max(end, base + page.totalResults);
+                }
+                if (end >= 0 && page.count >= pageSize) {
+                    int next = pending.start + pageSize;
+                    // The full page has more resources than the total, or it's the last page and scanPastTotal is true
+                    if (pending.start + page.count > end || (scanPastTotal && next >= end)) {
+                        // Continue with the next page
+                        end = next + 1;
+                    }
+                }
+                if (end < 0 && page.count == 0) {
+                    // End of the page
+                    return count;
+                }
+            }
+        } catch (RuntimeException e) {
+            if (!(e instanceof ConnectorException)) {
+                throw new ConnectorException(e);
+            }
+            throw e;
+        } finally {
+            // Cancel the pages which are no longer needed
+            inFlight.forEach(p -> discard(p.future));
+        }
     }
 
-    private Response patch(String url, Object body) throws IOException {
-        RequestBody requestBody = createJsonRequestBody(body);
+    private static class PendingPage {
+        final int start;
+        final CompletableFuture<Response> future;
 
-        final Request request = new Request.Builder()
-                .url(url)
-                .patch(requestBody)
-                .build();
+        PendingPage(int start, CompletableFuture<Response> future) {
+            this.start = start;
+            this.future = future;
+        }
+    }
 
-        final Response response = httpClient.newCall(request).execute();
+    private static PendingPage pollCompleted(Deque<PendingPage> inFlight) {
+        CompletableFuture<?>[] futures = inFlight.stream().map(p -> p.future).toArray(CompletableFuture[]::new);
+        try {
+            CompletableFuture.anyOf(futures).join();
+        } catch (CompletionException | CancellationException ignore) {
+            // The failed page is handled by the caller
+        }
+        Iterator<PendingPage> iterator = inFlight.iterator();
+        while (iterator.hasNext()) {
+            PendingPage pending = iterator.next();
+            if (pending.future.isDone()) {
+                iterator.remove();
+                return pending;
+            }
+        }
+        return inFlight.poll();
+    }
+
+    /**
+     * Cancel the asynchronous call, or close the response if it has already completed.
+     *
+     * @param future
+     */
+    protected static void discard(CompletableFuture<Response> future) {
+        if (!future.cancel(true)) {
+            future.thenAccept(response -> {
+                if (response != null) {
+                    response.close();
+                }
+            });
+        }
+    }
 
-        throwExceptionIfUnauthorized(response);
-        throwExceptionIfServerError(response);
+    protected int resolveOffset(int pageOffset) {
+        // The page offset depends on the resource
+        return isStartOffsetFromZero ? pageOffset - 1 : pageOffset;
+    }
 
-        return response;
+    private Response post(String url, Object body) throws IOException {
+        return execute(newPostRequest(url, body));
     }
 
-    private Response delete(String url, Object body) throws IOException {
-        final Request.Builder builder = new Request.Builder()
-                .url(url);
+    private CompletableFuture<Response> postAsync(String url, Object body) {
+        return executeAsync(newPostRequest(url, body));
+    }
 
-        if (body != null) {
-            RequestBody requestBody = createJsonRequestBody(body);
-            builder.delete(requestBody);
-        } else {
-            builder.delete();
-        }
+    private Response put(String url, Object body) throws IOException {
+        return execute(newPutRequest(url, body));
+    }
 
-        final Request request = builder.build();
+    private Response patch(String url, Object body) throws IOException {
+        return execute(newPatchRequest(url, body));
+    }
 
-        final Response response = httpClient.newCall(request).execute();
+    private CompletableFuture<Response> patchAsync(String url, Object body) {
+        return executeAsync(newPatchRequest(url, body));
+    }
 
-        throwExceptionIfUnauthorized(response);
-        throwExceptionIfServerError(response);
+    private Response delete(String url, Object body) throws IOException {
+        return execute(newDeleteRequest(url, body));
+    }
 
-        return response;
+    private CompletableFuture<Response> deleteAsync(String url, Object body) {
+        return executeAsync(newDeleteRequest(url, body));
     }
 
     protected String snapshotResponse(Response response) {
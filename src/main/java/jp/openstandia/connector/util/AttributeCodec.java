@@ -0,0 +1,537 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.identityconnectors.framework.common.objects.Attribute;
+import org.identityconnectors.framework.common.objects.AttributeBuilder;
+import org.identityconnectors.framework.common.objects.AttributeDelta;
+import org.identityconnectors.framework.common.objects.AttributeDeltaUtil;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.objects.AttributeUtil;
+
+import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Conversion of the attribute values between the connector and the resource.
+ * The codec is resolved by the type when the attribute is defined, so converting the values doesn't check the type.
+ * It also reads the value of the resource from the JSON tokens for {@link ResourceBinder}.
+ *
+ * @author Hiroyuki Wada
+ */
+abstract class AttributeCodec implements ResourceBinder.ValueReader<Object> {
+
+    private static final DateTimeFormatter DEFAULT_DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
+
+    /**
+     * Returns the codec of the type.
+     *
+     * @param type
+     * @param isMultiple
+     * @param dateFormat     format of {@link SchemaDefinition.Types#DATE_STRING}, or null for ISO 8601 date
+     * @param dateTimeFormat format of {@link SchemaDefinition.Types#DATETIME_STRING}, or null for ISO 8601 date-time
+     * @return
+     */
+    static AttributeCodec of(SchemaDefinition.Types<?> type, boolean isMultiple,
+                             DateTimeFormatter dateFormat, DateTimeFormatter dateTimeFormat) {
+        ValueCodec codec = valueCodecOf(type, dateFormat, dateTimeFormat);
+        if (!isMultiple) {
+            return codec;
+        }
+        // Each value of the multi-valued attribute is converted only for the date strings
+        return new MultiValuedCodec(codec, codec instanceof DateStringCodec || codec instanceof DateTimeStringCodec);
+    }
+
+    private static ValueCodec valueCodecOf(SchemaDefinition.Types<?> type,
+                                           DateTimeFormatter dateFormat, DateTimeFormatter dateTimeFormat) {
+        if (type == SchemaDefinition.Types.STRING || type == SchemaDefinition.Types.STRING_CASE_IGNORE
+                || type == SchemaDefinition.Types.STRING_URI || type == SchemaDefinition.Types.STRING_LDAP_DN
+                || type == SchemaDefinition.Types.XML || type == SchemaDefinition.Types.JSON
+                || type == SchemaDefinition.Types.UUID) {
+            return StringCodec.INSTANCE;
+        } else if (type == SchemaDefinition.Types.INTEGER) {
+            return IntegerCodec.INSTANCE;
+        } else if (type == SchemaDefinition.Types.LONG) {
+            return LongCodec.INSTANCE;
+        } else if (type == SchemaDefinition.Types.FLOAT) {
+            return FloatCodec.INSTANCE;
+        } else if (type == SchemaDefinition.Types.DOUBLE) {
+            return DoubleCodec.INSTANCE;
+        } else if (type == SchemaDefinition.Types.BOOLEAN) {
+            return BooleanCodec.INSTANCE;
+        } else if (type == SchemaDefinition.Types.BIG_DECIMAL) {
+            return BigDecimalCodec.INSTANCE;
+        } else if (type == SchemaDefinition.Types.DATE || type == SchemaDefinition.Types.DATETIME) {
+            return new DateCodec(dateFormat);
+        } else if (type == SchemaDefinition.Types.DATE_STRING) {
+            return new DateStringCodec(dateFormat);
+        } else if (type == SchemaDefinition.Types.DATETIME_STRING) {
+            return new DateTimeStringCodec(dateTimeFormat);
+        } else if (type == SchemaDefinition.Types.GUARDED_STRING) {
+            return GuardedStringCodec.INSTANCE;
+        }
+        return ValueCodec.AS_IS;
+    }
+
+    /**
+     * Returns the value for creating the resource.
+     *
+     * @param source
+     * @return
+     */
+    abstract Object create(Attribute source);
+
+    /**
+     * Returns the value for replacing the single-valued attribute of the resource.
+     *
+     * @param source
+     * @return
+     */
+    abstract Object replace(AttributeDelta source);
+
+    /**
+     * Returns the values for adding or removing the values of the multi-valued attribute of the resource.
+     *
+     * @param values
+     * @return
+     */
+    abstract List<Object> toResourceValues(List<Object> values);
+
+    /**
+     * Build the attribute from the value of the resource.
+     *
+     * @param name  attribute name (for connector)
+     * @param value not null value of the resource. Collection or Stream for the multi-valued attribute
+     * @return null if no values
+     */
+    abstract Attribute toAttribute(String name, Object value);
+
+    /**
+     * Skip the value which isn't the value of the type (e.g. null, or the object for the string attribute).
+     *
+     * @param parser
+     * @return null
+     * @throws IOException
+     */
+    static Object skip(JsonParser parser) throws IOException {
+        parser.skipChildren();
+        return null;
+    }
+
+    /**
+     * Codec of the single-valued attribute, which converts each value too.
+     */
+    static class ValueCodec extends AttributeCodec {
+        static final ValueCodec AS_IS = new ValueCodec();
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getSingleValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getSingleValue(source);
+        }
+
+        @Override
+        List<Object> toResourceValues(List<Object> values) {
+            List<Object> converted = new ArrayList<>(values.size());
+            for (Object v : values) {
+                converted.add(toResourceValue(v));
+            }
+            return converted;
+        }
+
+        @Override
+        Attribute toAttribute(String name, Object value) {
+            return AttributeBuilder.build(name, toConnectorValue(value));
+        }
+
+        Object toResourceValue(Object value) {
+            return value;
+        }
+
+        Object toConnectorValue(Object value) {
+            return value;
+        }
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            JsonToken token = parser.currentToken();
+            if (token == JsonToken.VALUE_STRING) {
+                return parser.getText();
+            } else if (token.isBoolean()) {
+                return parser.getBooleanValue();
+            } else if (token.isNumeric()) {
+                return parser.getNumberValue();
+            }
+            return skip(parser);
+        }
+    }
+
+    static class StringCodec extends ValueCodec {
+        static final StringCodec INSTANCE = new StringCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            JsonToken token = parser.currentToken();
+            return token.isScalarValue() && token != JsonToken.VALUE_NULL ? parser.getValueAsString() : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getAsStringValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getAsStringValue(source);
+        }
+    }
+
+    static class IntegerCodec extends ValueCodec {
+        static final IntegerCodec INSTANCE = new IntegerCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken().isNumeric() ? parser.getIntValue() : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getIntegerValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getIntegerValue(source);
+        }
+    }
+
+    static class LongCodec extends ValueCodec {
+        static final LongCodec INSTANCE = new LongCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken().isNumeric() ? parser.getLongValue() : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getLongValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getLongValue(source);
+        }
+    }
+
+    static class FloatCodec extends ValueCodec {
+        static final FloatCodec INSTANCE = new FloatCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken().isNumeric() ? parser.getFloatValue() : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getFloatValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getFloatValue(source);
+        }
+    }
+
+    static class DoubleCodec extends ValueCodec {
+        static final DoubleCodec INSTANCE = new DoubleCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken().isNumeric() ? parser.getDoubleValue() : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getDoubleValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getDoubleValue(source);
+        }
+    }
+
+    static class BooleanCodec extends ValueCodec {
+        static final BooleanCodec INSTANCE = new BooleanCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken().isBoolean() ? parser.getBooleanValue() : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getBooleanValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getBooleanValue(source);
+        }
+    }
+
+    static class BigDecimalCodec extends ValueCodec {
+        static final BigDecimalCodec INSTANCE = new BigDecimalCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken().isNumeric() ? parser.getDecimalValue() : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getBigDecimalValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getBigDecimalValue(source);
+        }
+    }
+
+    static class GuardedStringCodec extends ValueCodec {
+        static final GuardedStringCodec INSTANCE = new GuardedStringCodec();
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken() == JsonToken.VALUE_STRING ? new GuardedString(parser.getText().toCharArray()) : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return AttributeUtil.getGuardedStringValue(source);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return AttributeDeltaUtil.getGuardedStringValue(source);
+        }
+    }
+
+    /**
+     * Codec of {@link SchemaDefinition.Types#DATE} and {@link SchemaDefinition.Types#DATETIME}.
+     * The resource has ZonedDateTime, but the created value is formatted as the date.
+     * The JSON value is the date-time string of ISO 8601 (e.g. dateTime of SCIM).
+     */
+    static class DateCodec extends ValueCodec {
+        private final DateTimeFormatter format;
+
+        DateCodec(DateTimeFormatter format) {
+            this.format = format != null ? format : DEFAULT_DATE_FORMAT;
+        }
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return parser.currentToken() == JsonToken.VALUE_STRING ? TimestampCodec.ISO8601.parse(parser.getText()) : skip(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return formatDate((ZonedDateTime) AttributeUtil.getSingleValue(source), format);
+        }
+    }
+
+    /**
+     * Codec of {@link SchemaDefinition.Types#DATE_STRING}, the resource has the date string.
+     */
+    static class DateStringCodec extends ValueCodec {
+        private final DateTimeFormatter format;
+
+        DateStringCodec(DateTimeFormatter format) {
+            this.format = format != null ? format : DEFAULT_DATE_FORMAT;
+        }
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return StringCodec.INSTANCE.read(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return formatDate((ZonedDateTime) AttributeUtil.getSingleValue(source), format);
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return formatDate((ZonedDateTime) AttributeDeltaUtil.getSingleValue(source), format);
+        }
+
+        @Override
+        Object toResourceValue(Object value) {
+            return formatDate((ZonedDateTime) value, format);
+        }
+
+        @Override
+        Object toConnectorValue(Object value) {
+            return LocalDate.parse(value.toString(), format).atStartOfDay(ZoneId.systemDefault());
+        }
+    }
+
+    /**
+     * Codec of {@link SchemaDefinition.Types#DATETIME_STRING}, the resource has the date-time string.
+     * ISO 8601 is parsed by {@link TimestampCodec#ISO8601} without the formatter.
+     */
+    static class DateTimeStringCodec extends ValueCodec {
+        private final DateTimeFormatter format;
+
+        DateTimeStringCodec(DateTimeFormatter format) {
+            this.format = format;
+        }
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            return StringCodec.INSTANCE.read(parser);
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return toResourceValue(AttributeUtil.getSingleValue(source));
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            return toResourceValue(AttributeDeltaUtil.getSingleValue(source));
+        }
+
+        @Override
+        Object toResourceValue(Object value) {
+            if (value == null) {
+                return null;
+            }
+            if (format == null) {
+                return TimestampCodec.ISO8601.format((ZonedDateTime) value);
+            }
+            return ((ZonedDateTime) value).format(format);
+        }
+
+        @Override
+        Object toConnectorValue(Object value) {
+            if (format == null) {
+                return TimestampCodec.ISO8601.parse(value.toString());
+            }
+            return ZonedDateTime.parse(value.toString(), format);
+        }
+    }
+
+    private static String formatDate(ZonedDateTime zonedDateTime, DateTimeFormatter format) {
+        if (zonedDateTime == null) {
+            return null;
+        }
+        return zonedDateTime.format(format);
+    }
+
+    /**
+     * Codec of the multi-valued attribute. Each value is converted by the codec of the value,
+     * or copied as is (e.g. the multi-valued UUID). The JSON values are read by the codec of the value.
+     */
+    static class MultiValuedCodec extends AttributeCodec {
+        private final ValueCodec elementCodec;
+        // Null if the values are copied as is
+        private final ValueCodec valueCodec;
+
+        MultiValuedCodec(ValueCodec elementCodec, boolean converts) {
+            this.elementCodec = elementCodec;
+            this.valueCodec = converts ? elementCodec : null;
+        }
+
+        @Override
+        public Object read(JsonParser parser) throws IOException {
+            if (parser.currentToken() != JsonToken.START_ARRAY) {
+                return skip(parser);
+            }
+            List<Object> values = new ArrayList<>();
+            JsonToken token;
+            while ((token = parser.nextToken()) != JsonToken.END_ARRAY && token != null) {
+                Object value = elementCodec.read(parser);
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+            return values;
+        }
+
+        @Override
+        Object create(Attribute source) {
+            return toResourceValues(source.getValue());
+        }
+
+        @Override
+        Object replace(AttributeDelta source) {
+            // The multi-valued attribute is updated by adding and removing the values
+            throw new UnsupportedOperationException("Replace of the multi-valued attribute: " + source.getName());
+        }
+
+        @Override
+        List<Object> toResourceValues(List<Object> values) {
+            if (valueCodec == null) {
+                return new ArrayList<>(values);
+            }
+            return valueCodec.toResourceValues(values);
+        }
+
+        @Override
+        Attribute toAttribute(String name, Object value) {
+            List<Object> values;
+            Iterator<?> iterator;
+            if (value instanceof Collection) {
+                values = new ArrayList<>(((Collection<?>) value).size());
+                iterator = ((Collection<?>) value).iterator();
+            } else {
+                values = new ArrayList<>();
+                iterator = ((Stream<?>) value).iterator();
+            }
+            if (valueCodec == null) {
+                while (iterator.hasNext()) {
+                    values.add(iterator.next());
+                }
+            } else {
+                while (iterator.hasNext()) {
+                    values.add(valueCodec.toConnectorValue(iterator.next()));
+                }
+            }
+            if (values.isEmpty()) {
+                // Don't make attribute if no values
+                return null;
+            }
+            return AttributeBuilder.build(name, values);
+        }
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker for the REST API. It's shared per base URL, so all pooled connector instances
+ * stop sending requests together while the service is down.
+ * <ul>
+ * <li>CLOSED: Requests are sent. It opens when the consecutive failures reach the threshold.</li>
+ * <li>OPEN: Requests fail fast. It becomes half-open when the open duration has passed.</li>
+ * <li>HALF_OPEN: Only one probe is sent. It's closed if the probe succeeds, otherwise it opens again.</li>
+ * </ul>
+ *
+ * @author Hiroyuki Wada
+ */
+public class CircuitBreaker {
+
+    private static final Log LOG = Log.getLog(CircuitBreaker.class);
+
+    private static final SharedRegistry<String, CircuitBreaker> SHARED = new SharedRegistry<>();
+
+    private static final CircuitBreaker DISABLED = new CircuitBreaker("disabled", 0, 0);
+
+    public enum State {
+        CLOSED,
+        OPEN,
+        HALF_OPEN
+    }
+
+    public enum Permit {
+        /**
+         * The request can be sent.
+         */
+        ALLOW,
+        /**
+         * The caller must send a probe before the request.
+         */
+        PROBE,
+        /**
+         * The request must fail fast.
+         */
+        REJECT
+    }
+
+    private final String name;
+    private final int failureThreshold;
+    private final long openDurationNanos;
+    private final LongSupplier nanoClock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAtNanos;
+    private boolean probing;
+
+    CircuitBreaker(String name, int failureThreshold, long openDurationMillis) {
+        this(name, failureThreshold, openDurationMillis, System::nanoTime);
+    }
+
+    CircuitBreaker(String name, int failureThreshold, long openDurationMillis, LongSupplier nanoClock) {
+        this.name = name;
+        this.failureThreshold = failureThreshold;
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(openDurationMillis);
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * Acquire the circuit breaker shared by the key (e.g. base URL of the service) and the settings.
+     * It's removed when the last lease is released.
+     *
+     * @param key
+     * @param failureThreshold
+     * @param openDurationMillis
+     * @return
+     */
+    public static SharedRegistry.Lease<CircuitBreaker> acquire(String key, int failureThreshold, long openDurationMillis) {
+        return SHARED.acquire(sharedKey(key, failureThreshold, openDurationMillis),
+                k -> new CircuitBreaker(key, failureThreshold, openDurationMillis));
+    }
+
+    static int getRefCount(String key, int failureThreshold, long openDurationMillis) {
+        return SHARED.getRefCount(sharedKey(key, failureThreshold, openDurationMillis));
+    }
+
+    private static String sharedKey(String key, int failureThreshold, long openDurationMillis) {
+        return key + "|" + failureThreshold + "|" + openDurationMillis;
+    }
+
+    /**
+     * Returns the circuit breaker which always allows the requests.
+     *
+     * @return
+     */
+    public static CircuitBreaker disabled() {
+        return DISABLED;
+    }
+
+    public boolean isEnabled() {
+        return failureThreshold > 0;
+    }
+
+    public synchronized State getState() {
+        return state;
+    }
+
+    public synchronized Permit acquire() {
+        if (!isEnabled()) {
+            return Permit.ALLOW;
+        }
+        switch (state) {
+            case CLOSED:
+                return Permit.ALLOW;
+            case OPEN:
+                if (nanoClock.getAsLong() - openedAtNanos < openDurationNanos) {
+                    return Permit.REJECT;
+                }
+                state = State.HALF_OPEN;
+                probing = true;
+                LOG.info("Circuit breaker is half-open, send a probe. name={0}", name);
+                return Permit.PROBE;
+            default:
+                // HALF_OPEN: Only one probe is allowed
+                if (probing) {
+                    return Permit.REJECT;
+                }
+                probing = true;
+                return Permit.PROBE;
+        }
+    }
+
+    public synchronized void onSuccess() {
+        if (!isEnabled()) {
+            return;
+        }
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            state = State.CLOSED;
+            probing = false;
+            LOG.info("Circuit breaker is closed. name={0}", name);
+        }
+    }
+
+    /**
+     * Give up the probe without the result, e.g. the call was cancelled.
+     * Otherwise the half-open circuit breaker rejects all requests forever.
+     */
+    public synchronized void cancelProbe() {
+        if (state == State.HALF_OPEN && probing) {
+            probing = false;
+            LOG.info("Circuit breaker probe is cancelled. name={0}", name);
+        }
+    }
+
+    public synchronized void onFailure() {
+        if (!isEnabled()) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || (state == State.CLOSED && consecutiveFailures >= failureThreshold)) {
+            state = State.OPEN;
+            probing = false;
+            openedAtNanos = nanoClock.getAsLong();
+            LOG.warn("Circuit breaker is open for {0} ms. name={1}, consecutiveFailures={2}",
+                    TimeUnit.NANOSECONDS.toMillis(openDurationNanos), name, consecutiveFailures);
+        }
+    }
+}
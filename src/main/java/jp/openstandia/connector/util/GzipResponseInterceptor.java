@@ -0,0 +1,120 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import okhttp3.Interceptor;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.GzipSource;
+import okio.Okio;
+import okio.Source;
+
+import java.io.IOException;
+
+/**
+ * Interceptor to negotiate gzip compression of the responses and decompress them while reading.
+ * The body is not buffered; it's decompressed as a stream by {@link GzipSource}.
+ * <p>
+ * Unlike OkHttp's transparent gzip, it records the compressed and the uncompressed bytes into {@link Metrics}
+ * ("http.bytes.compressed" and "http.bytes.uncompressed"). Responses which aren't compressed are recorded
+ * as "http.bytes.identity".
+ * It must be added as an application interceptor, because OkHttp disables its transparent gzip
+ * when Accept-Encoding is set by the application.
+ *
+ * @author Hiroyuki Wada
+ */
+public class GzipResponseInterceptor implements Interceptor {
+
+    private final Metrics metrics;
+
+    public GzipResponseInterceptor(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    @Override
+    public Response intercept(Chain chain) throws IOException {
+        Request request = chain.request();
+        if (request.header("Accept-Encoding") != null || request.header("Range") != null) {
+            // Respect the explicit request
+            return chain.proceed(request);
+        }
+
+        Response response = chain.proceed(request.newBuilder()
+                .header("Accept-Encoding", "gzip")
+                .build());
+
+        ResponseBody body = response.body();
+        if (body == null || !hasBody(response) || body.contentLength() == 0) {
+            // e.g. HEAD, 204 or 304, which have no body to decompress even if Content-Encoding is set
+            return response;
+        }
+
+        if (!"gzip".equalsIgnoreCase(response.header("Content-Encoding"))) {
+            return response.newBuilder()
+                    .body(ResponseBody.create(Okio.buffer(new CountingSource(body.source(), "http.bytes.identity")),
+                            body.contentType(), body.contentLength()))
+                    .build();
+        }
+
+        Source compressed = new CountingSource(body.source(), "http.bytes.compressed");
+        Source uncompressed = new CountingSource(new GzipSource(compressed), "http.bytes.uncompressed");
+
+        return response.newBuilder()
+                .removeHeader("Content-Encoding")
+                .removeHeader("Content-Length")
+                .body(ResponseBody.create(Okio.buffer(uncompressed), body.contentType(), -1L))
+                .build();
+    }
+
+    /**
+     * Returns false if the response has no body by HTTP semantics (RFC 9110 6.4.1): the response to HEAD,
+     * 1xx, 204 and 304, or Content-Length 0.
+     *
+     * @param response
+     * @return
+     */
+    static boolean hasBody(Response response) {
+        if ("HEAD".equals(response.request().method())) {
+            return false;
+        }
+        int code = response.code();
+        if ((code >= 100 && code < 200) || code == 204 || code == 304) {
+            return false;
+        }
+        return !"0".equals(response.header("Content-Length"));
+    }
+
+    private class CountingSource extends ForwardingSource {
+        private final String name;
+
+        CountingSource(Source delegate, String name) {
+            super(delegate);
+            this.name = name;
+        }
+
+        @Override
+        public long read(Buffer sink, long byteCount) throws IOException {
+            long read = super.read(sink, byteCount);
+            if (read > 0) {
+                metrics.add(name, read);
+            }
+            return read;
+        }
+    }
+}
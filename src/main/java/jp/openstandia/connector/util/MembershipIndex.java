@@ -0,0 +1,242 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import org.identityconnectors.common.logging.Log;
+
+import java.util.*;
+import java.util.function.Consumer;
+
+/**
+ * In-memory reverse index from member id to the groups which have the member.
+ * It's built from one scan of all groups and expires after the TTL. The next lookup after the expiration
+ * or {@link #invalidate()} rebuilds it.
+ * <p>
+ * The groups are numbered in the scan order, and each member holds a sorted int array of the group numbers.
+ * <p>
+ * The pooled connector instances which have the same key share one index by {@link #acquire(String, long)},
+ * so the group changes by any instance invalidate it for all of them.
+ *
+ * @author Hiroyuki Wada
+ */
+public class MembershipIndex {
+
+    private static final Log LOG = Log.getLog(MembershipIndex.class);
+
+    private static final SharedRegistry<String, MembershipIndex> SHARED = new SharedRegistry<>();
+
+    private final long ttlNanos;
+    private final Object buildLock = new Object();
+
+    private volatile Snapshot snapshot;
+    // Incremented by invalidate() to discard the index built concurrently
+    private long generation;
+
+    /**
+     * @param ttlMillis time to live of the index, 0 disables it
+     */
+    public MembershipIndex(long ttlMillis) {
+        this.ttlNanos = ttlMillis * 1_000_000L;
+    }
+
+    /**
+     * Acquire the index shared by the key (e.g. base URL and credentials of the service) and the TTL.
+     * It's removed when the last lease is released.
+     *
+     * @param key
+     * @param ttlMillis
+     * @return
+     */
+    public static SharedRegistry.Lease<MembershipIndex> acquire(String key, long ttlMillis) {
+        return SHARED.acquire(sharedKey(key, ttlMillis), k -> new MembershipIndex(ttlMillis));
+    }
+
+    static int getRefCount(String key, long ttlMillis) {
+        return SHARED.getRefCount(sharedKey(key, ttlMillis));
+    }
+
+    private static String sharedKey(String key, long ttlMillis) {
+        return key + "|" + ttlMillis;
+    }
+
+    public static MembershipIndex disabled() {
+        return new MembershipIndex(0);
+    }
+
+    public boolean isEnabled() {
+        return ttlNanos > 0;
+    }
+
+    public void invalidate() {
+        synchronized (this) {
+            generation++;
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Returns the current index. If it's absent or expired, it's built by the loader.
+     * Concurrent callers wait for one build.
+     *
+     * @param loader adds all groups to the builder
+     * @return
+     */
+    public Snapshot get(Consumer<Builder> loader) {
+        Snapshot current = snapshot;
+        if (current != null && !current.isExpired(ttlNanos)) {
+            return current;
+        }
+
+        synchronized (buildLock) {
+            current = snapshot;
+            if (current != null && !current.isExpired(ttlNanos)) {
+                return current;
+            }
+
+            long startGeneration;
+            synchronized (this) {
+                startGeneration = generation;
+            }
+
+            long start = System.nanoTime();
+            Builder builder = new Builder();
+            loader.accept(builder);
+            Snapshot built = builder.build(start);
+
+            LOG.info("Built membership index. groups={0}, members={1}, elapsed={2}ms",
+                    built.groupIds.length, built.groupsByMember.size(), (System.nanoTime() - start) / 1_000_000L);
+
+            synchronized (this) {
+                // Don't keep it if the groups were modified during the build
+                if (generation == startGeneration) {
+                    snapshot = built;
+                }
+            }
+            return built;
+        }
+    }
+
+    public static class Builder {
+        private final List<String> groupIds = new ArrayList<>();
+        private final List<String> groupNames = new ArrayList<>();
+        private final Map<String, int[]> groupsByMember = new HashMap<>();
+        private final Map<String, Integer> sizes = new HashMap<>();
+
+        public void add(String groupId, String groupName, Collection<String> memberIds) {
+            int group = groupIds.size();
+            groupIds.add(groupId);
+            groupNames.add(groupName);
+
+            if (memberIds == null) {
+                return;
+            }
+            for (String memberId : memberIds) {
+                int size = sizes.getOrDefault(memberId, 0);
+                int[] groups = groupsByMember.get(memberId);
+                if (groups == null) {
+                    groups = new int[2];
+                } else if (groups.length == size) {
+                    groups = Arrays.copyOf(groups, size * 2);
+                }
+                // The groups are added in ascending order, skip the duplicated member in the same group
+                if (size > 0 && groups[size - 1] == group) {
+                    continue;
+                }
+                groups[size] = group;
+                groupsByMember.put(memberId, groups);
+                sizes.put(memberId, size + 1);
+            }
+        }
+
+        Snapshot build(long createdAt) {
+            Map<String, int[]> compacted = new HashMap<>(groupsByMember.size() * 4 / 3 + 1);
+            for (Map.Entry<String, int[]> entry : groupsByMember.entrySet()) {
+                int size = sizes.get(entry.getKey());
+                compacted.put(entry.getKey(), entry.getValue().length == size ? entry.getValue() : Arrays.copyOf(entry.getValue(), size));
+            }
+            return new Snapshot(groupIds.toArray(new String[0]), groupNames.toArray(new String[0]), compacted, createdAt);
+        }
+    }
+
+    public static class Snapshot {
+        private final String[] groupIds;
+        private final String[] groupNames;
+        private final Map<String, int[]> groupsByMember;
+        private final long createdAt;
+
+        Snapshot(String[] groupIds, String[] groupNames, Map<String, int[]> groupsByMember, long createdAt) {
+            this.groupIds = groupIds;
+            this.groupNames = groupNames;
+            this.groupsByMember = groupsByMember;
+            this.createdAt = createdAt;
+        }
+
+        boolean isExpired(long ttlNanos) {
+            return System.nanoTime() - createdAt >= ttlNanos;
+        }
+
+        /**
+         * Find the groups which have all the members.
+         *
+         * @param memberIds
+         * @return the group numbers in the scan order
+         */
+        public int[] findGroups(Collection<?> memberIds) {
+            if (memberIds.isEmpty()) {
+                int[] all = new int[groupIds.length];
+                Arrays.setAll(all, i -> i);
+                return all;
+            }
+            int[] result = null;
+            for (Object memberId : memberIds) {
+                int[] groups = groupsByMember.get(memberId.toString());
+                if (groups == null) {
+                    return new int[0];
+                }
+                result = result == null ? groups : intersect(result, groups);
+                if (result.length == 0) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        public String getGroupId(int group) {
+            return groupIds[group];
+        }
+
+        public String getGroupName(int group) {
+            return groupNames[group];
+        }
+
+        private static int[] intersect(int[] a, int[] b) {
+            int[] result = new int[Math.min(a.length, b.length)];
+            int i = 0, j = 0, k = 0;
+            while (i < a.length && j < b.length) {
+                if (a[i] < b[j]) {
+                    i++;
+                } else if (a[i] > b[j]) {
+                    j++;
+                } else {
+                    result[k++] = a[i];
+                    i++;
+                    j++;
+                }
+            }
+            return Arrays.copyOf(result, k);
+        }
+    }
+}
@@ -15,9 +15,18 @@
  */
 package jp.openstandia.connector.util;
 
+import jp.openstandia.connector.util.SchemaDefinition.ProjectionPlan;
+import org.identityconnectors.common.logging.Log;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.Filter;
 
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
 
 /**
  * Define handler methods for connector operations.
@@ -33,25 +42,212 @@ public interface ObjectHandler {
     void delete(Uid uid, OperationOptions options);
 
     int getByUid(Uid uid, ResultsHandler resultsHandler, OperationOptions options,
-                 Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                 boolean allowPartialAttributeValues, int pageSize, int pageOffset);
+                 ProjectionPlan plan, Set<String> fetchFieldsSet,
+                 int pageSize, int pageOffset);
 
     int getByName(Name name, ResultsHandler resultsHandler, OperationOptions options,
-                  Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-                  boolean allowPartialAttributeValues, int pageSize, int pageOffset);
+                  ProjectionPlan plan, Set<String> fetchFieldsSet,
+                  int pageSize, int pageOffset);
 
     default int getByMembers(Attribute attribute, ResultsHandler resultsHandler, OperationOptions options,
-                             Set<String> returnAttributesSet, Set<String> fetchFieldSet, boolean allowPartialAttributeValues, int pageSize, int pageOffset) {
+                             ProjectionPlan plan, Set<String> fetchFieldSet, int pageSize, int pageOffset) {
         return 0;
     }
 
+    default int getByGroups(Attribute attribute, ResultsHandler resultsHandler, OperationOptions options,
+                            ProjectionPlan plan, Set<String> fetchFieldSet, int pageSize, int pageOffset) {
+        return 0;
+    }
+
+    /**
+     * Search by the filter expression of the resource.
+     * By default, it fetches all objects and evaluates the original filter in the connector.
+     * The attributes used in the filter are returned too, because the framework evaluates the filter again.
+     *
+     * @param expression       filter expression of the resource
+     * @param filterAttributes attribute names (for connector) and the resource fields used in the filter
+     * @param filter           original filter
+     */
+    default int getByFilter(String expression, Map<String, String> filterAttributes, Filter filter,
+                            ResultsHandler resultsHandler, OperationOptions options,
+                            ProjectionPlan plan, Set<String> fetchFieldsSet,
+                            int pageSize, int pageOffset) {
+        return filterInConnector(filterAttributes, filter, resultsHandler, options,
+                plan, fetchFieldsSet, pageSize, pageOffset);
+    }
+
+    /**
+     * Fetch all objects and evaluate the original filter in the connector.
+     *
+     * @param filterAttributes attribute names (for connector) and the resource fields used in the filter
+     * @param filter           original filter
+     */
+    default int filterInConnector(Map<String, String> filterAttributes, Filter filter,
+                                  ResultsHandler resultsHandler, OperationOptions options,
+                                  ProjectionPlan plan, Set<String> fetchFieldsSet,
+                                  int pageSize, int pageOffset) {
+        // The attributes used in the filter are needed for evaluating it even if they aren't requested to return
+        ProjectionPlan planWithFilter = getSchema().compileProjectionPlan(plan, filterAttributes.keySet());
+        Set<String> fetchFieldsWithFilter = new HashSet<>(fetchFieldsSet);
+        fetchFieldsWithFilter.addAll(filterAttributes.values());
+
+        return getAll((connectorObject) -> !filter.accept(connectorObject) || resultsHandler.handle(connectorObject),
+                options, planWithFilter, fetchFieldsWithFilter, pageSize, pageOffset);
+    }
+
+    /**
+     * Search by OR of equality on the attribute. The attribute holds all the values.
+     * By default, it's searched by the filter expression.
+     *
+     * @param attribute        attribute (for connector) and the values
+     * @param expression       filter expression of the resource
+     * @param filterAttributes attribute names (for connector) and the resource fields used in the filter
+     * @param filter           original filter
+     */
+    default int getByAnyMatch(Attribute attribute, String expression, Map<String, String> filterAttributes, Filter filter,
+                              ResultsHandler resultsHandler, OperationOptions options,
+                              ProjectionPlan plan, Set<String> fetchFieldsSet,
+                              int pageSize, int pageOffset) {
+        return getByFilter(expression, filterAttributes, filter, resultsHandler, options,
+                plan, fetchFieldsSet, pageSize, pageOffset);
+    }
+
+    /**
+     * Search by the filter expression with the search of the resource. If the resource rejects the filter
+     * before returning any object, the rejected filter is reported and it falls back to {@link #filterInConnector}.
+     *
+     * @param expression       filter expression of the resource
+     * @param filterAttributes attribute names (for connector) and the resource fields used in the filter
+     * @param filter           original filter
+     * @param search           searches the resource by the expression with the projection plan and the fetch fields
+     * @param onRejected       called when the resource rejected the filter
+     */
+    default int searchByFilter(String expression, Map<String, String> filterAttributes, Filter filter,
+                               ResultsHandler resultsHandler, OperationOptions options,
+                               ProjectionPlan plan, Set<String> fetchFieldsSet,
+                               int pageSize, int pageOffset,
+                               ObjectSearch search, Runnable onRejected) {
+        // Return the attributes used in the filter too because the framework evaluates the filter again
+        ProjectionPlan planWithFilter = getSchema().compileProjectionPlan(plan, filterAttributes.keySet());
+        Set<String> fetchFieldsWithFilter = new HashSet<>(fetchFieldsSet);
+        fetchFieldsWithFilter.addAll(filterAttributes.values());
+
+        AtomicBoolean handled = new AtomicBoolean();
+        try {
+            return search.search((connectorObject) -> {
+                handled.set(true);
+                return resultsHandler.handle(connectorObject);
+            }, planWithFilter, fetchFieldsWithFilter);
+
+        } catch (InvalidAttributeValueException e) {
+            if (handled.get()) {
+                throw e;
+            }
+            // The resource rejected the filter, search all objects and filter them in the connector instead
+            Log.getLog(getClass()).warn("The filter was rejected. Filter in the connector instead. filter={0}, error={1}", expression, e.getMessage());
+            onRejected.run();
+
+            return filterInConnector(filterAttributes, filter, resultsHandler, options,
+                    plan, fetchFieldsSet, pageSize, pageOffset);
+        }
+    }
+
+    /**
+     * Search by OR of equality on the attribute with the search of the resource. If the resource rejects it
+     * before returning any object, the uid and the name are looked up one by one, and the others fall back to
+     * {@link #filterInConnector}. The paged search is done by {@link #getByFilter} to keep the paging over the whole results.
+     *
+     * @param attribute        attribute (for connector) and the values
+     * @param expression       filter expression of the resource
+     * @param filterAttributes attribute names (for connector) and the resource fields used in the filter
+     * @param filter           original filter
+     * @param search           searches the resource by the path and the values with the projection plan and the fetch fields
+     */
+    default int searchByAnyMatch(Attribute attribute, String expression, Map<String, String> filterAttributes, Filter filter,
+                                 ResultsHandler resultsHandler, OperationOptions options,
+                                 ProjectionPlan plan, Set<String> fetchFieldsSet,
+                                 int pageSize, int pageOffset,
+                                 AnyMatchSearch search) {
+        if (pageOffset > 0) {
+            // Keep the paging over the whole results
+            return getByFilter(expression, filterAttributes, filter, resultsHandler, options,
+                    plan, fetchFieldsSet, pageSize, pageOffset);
+        }
+
+        // Return the attributes used in the filter too because the framework evaluates the filter again
+        ProjectionPlan planWithFilter = getSchema().compileProjectionPlan(plan, filterAttributes.keySet());
+        Set<String> fetchFieldsWithFilter = new HashSet<>(fetchFieldsSet);
+        fetchFieldsWithFilter.addAll(filterAttributes.values());
+
+        List<String> values = attribute.getValue().stream()
+                .map(Object::toString)
+                .collect(Collectors.toList());
+
+        AtomicBoolean handled = new AtomicBoolean();
+        try {
+            return search.search((connectorObject) -> {
+                handled.set(true);
+                return resultsHandler.handle(connectorObject);
+            }, planWithFilter, fetchFieldsWithFilter, filterAttributes.get(attribute.getName()), values);
+
+        } catch (InvalidAttributeValueException e) {
+            if (handled.get()) {
+                throw e;
+            }
+            Log.getLog(getClass()).warn("The filter was rejected. Look up one by one instead. filter={0}, error={1}", expression, e.getMessage());
+        }
+
+        // Stop the lookups once the handler returns false, as the search of all objects does
+        AtomicBoolean stopped = new AtomicBoolean();
+        ResultsHandler stoppable = (connectorObject) -> {
+            if (!resultsHandler.handle(connectorObject)) {
+                stopped.set(true);
+                return false;
+            }
+            return true;
+        };
+
+        int total = 0;
+        for (String value : values) {
+            if (stopped.get()) {
+                break;
+            }
+            if (attribute.getName().equals(Uid.NAME)) {
+                total += getByUid(new Uid(value), stoppable, options,
+                        plan, fetchFieldsSet, pageSize, pageOffset);
+            } else if (attribute.getName().equals(Name.NAME)) {
+                total += getByName(new Name(value), stoppable, options,
+                        plan, fetchFieldsSet, pageSize, pageOffset);
+            } else {
+                return filterInConnector(filterAttributes, filter, resultsHandler, options,
+                        plan, fetchFieldsSet, pageSize, pageOffset);
+            }
+        }
+        return total;
+    }
+
+    /**
+     * Search of the resource by the filter expression, which returns the connector objects with the projection plan.
+     */
+    @FunctionalInterface
+    interface ObjectSearch {
+        int search(ResultsHandler handler, ProjectionPlan plan, Set<String> fetchFieldsSet);
+    }
+
+    /**
+     * Search of the resource by OR of equality on the path, which returns the connector objects with the projection plan.
+     */
+    @FunctionalInterface
+    interface AnyMatchSearch {
+        int search(ResultsHandler handler, ProjectionPlan plan, Set<String> fetchFieldsSet, String path, List<String> values);
+    }
+
     int getAll(ResultsHandler resultsHandler, OperationOptions options,
-               Set<String> returnAttributesSet, Set<String> fetchFieldsSet,
-               boolean allowPartialAttributeValues, int pageSize, int pageOffset);
+               ProjectionPlan plan, Set<String> fetchFieldsSet,
+               int pageSize, int pageOffset);
 
-    default <T> ConnectorObject toConnectorObject(SchemaDefinition schema, T user,
-                                                  Set<String> returnAttributesSet, boolean allowPartialAttributeValues) {
-        ConnectorObjectBuilder builder = schema.toConnectorObjectBuilder(user, returnAttributesSet, allowPartialAttributeValues);
+    default <T> ConnectorObject toConnectorObject(SchemaDefinition schema, T user, ProjectionPlan plan) {
+        ConnectorObjectBuilder builder = schema.toConnectorObjectBuilder(user, plan);
         return builder.build();
     }
 
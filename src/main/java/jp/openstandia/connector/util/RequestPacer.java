@@ -0,0 +1,179 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import okhttp3.Response;
+import org.identityconnectors.common.logging.Log;
+
+import java.time.Instant;
+import java.time.OffsetDateTime;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces the requests to the same service when it returns rate limit responses (429).
+ * <p>
+ * It's shared per base URL, so all in-flight and queued requests of the pooled connector instances
+ * are slowed down together. The pause time is decided by the Retry-After header or the rate limit headers
+ * (X-RateLimit-Remaining and X-RateLimit-Reset). Also, the interval between requests is increased
+ * on each 429 response and decreased gradually on the successful responses.
+ *
+ * @author Hiroyuki Wada
+ */
+public class RequestPacer {
+
+    private static final Log LOG = Log.getLog(RequestPacer.class);
+
+    private static final SharedRegistry<String, RequestPacer> SHARED = new SharedRegistry<>();
+
+    static final long MIN_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+    static final long MAX_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(5);
+    static final long DEFAULT_PAUSE_NANOS = TimeUnit.SECONDS.toNanos(1);
+    static final long MAX_PAUSE_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    private long pauseUntilNanos;
+    private long lastScheduledNanos;
+    private long intervalNanos;
+
+    /**
+     * Acquire the pacer shared by the key (e.g. base URL of the service).
+     * It's discarded when the last lease is released.
+     *
+     * @param key
+     * @return
+     */
+    public static SharedRegistry.Lease<RequestPacer> acquire(String key) {
+        return SHARED.acquire(key, k -> new RequestPacer());
+    }
+
+    static int getRefCount(String key) {
+        return SHARED.getRefCount(key);
+    }
+
+    /**
+     * Reserve the time slot to send a request.
+     *
+     * @return wait time in milliseconds before sending the request
+     */
+    public synchronized long reserve() {
+        long now = System.nanoTime();
+        long next = now;
+        if (pauseUntilNanos - next > 0) {
+            next = pauseUntilNanos;
+        }
+        if (intervalNanos > 0 && lastScheduledNanos + intervalNanos - next > 0) {
+            next = lastScheduledNanos + intervalNanos;
+        }
+        lastScheduledNanos = next;
+        return TimeUnit.NANOSECONDS.toMillis(next - now);
+    }
+
+    /**
+     * Update the pacing by the response.
+     *
+     * @param response
+     * @param tooManyRequests true if the response is the rate limit response
+     */
+    public void onResponse(Response response, boolean tooManyRequests) {
+        long now = System.nanoTime();
+        long pause = parseRetryAfter(response.header("Retry-After"));
+
+        String remaining = response.header("X-RateLimit-Remaining");
+        if (pause < 0 && (tooManyRequests || "0".equals(remaining == null ? null : remaining.trim()))) {
+            pause = parseReset(response.header("X-RateLimit-Reset"));
+        }
+        if (pause < 0 && tooManyRequests) {
+            pause = DEFAULT_PAUSE_NANOS;
+        }
+
+        synchronized (this) {
+            if (tooManyRequests) {
+                intervalNanos = Math.min(MAX_INTERVAL_NANOS, Math.max(MIN_INTERVAL_NANOS, intervalNanos * 2));
+            } else if (intervalNanos > 0) {
+                // Recover gradually
+                intervalNanos = intervalNanos * 9 / 10;
+                if (intervalNanos < MIN_INTERVAL_NANOS) {
+                    intervalNanos = 0;
+                }
+            }
+            if (pause > 0) {
+                long until = now + Math.min(pause, MAX_PAUSE_NANOS);
+                if (until - pauseUntilNanos > 0) {
+                    pauseUntilNanos = until;
+                    LOG.info("Pause requests for {0} ms by rate limit, interval: {1} ms",
+                            TimeUnit.NANOSECONDS.toMillis(until - now), TimeUnit.NANOSECONDS.toMillis(intervalNanos));
+                }
+            }
+        }
+    }
+
+    /**
+     * Parse Retry-After header which is delay-seconds or HTTP-date.
+     *
+     * @param value
+     * @return pause time in nanoseconds, or -1
+     */
+    static long parseRetryAfter(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            return TimeUnit.SECONDS.toNanos(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException ignore) {
+        }
+        try {
+            Instant date = ZonedDateTime.parse(value, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+            return untilNanos(date);
+        } catch (DateTimeParseException ignore) {
+        }
+        return -1;
+    }
+
+    /**
+     * Parse X-RateLimit-Reset header which is epoch seconds, delta seconds or ISO 8601 date time.
+     *
+     * @param value
+     * @return pause time in nanoseconds, or -1
+     */
+    static long parseReset(String value) {
+        if (value == null || value.trim().isEmpty()) {
+            return -1;
+        }
+        value = value.trim();
+        try {
+            long n = Long.parseLong(value);
+            // Large values are epoch seconds
+            if (n > 1_000_000_000L) {
+                return untilNanos(Instant.ofEpochSecond(n));
+            }
+            return TimeUnit.SECONDS.toNanos(Math.max(0, n));
+        } catch (NumberFormatException ignore) {
+        }
+        try {
+            return untilNanos(OffsetDateTime.parse(value).toInstant());
+        } catch (DateTimeParseException ignore) {
+        }
+        return parseRetryAfter(value);
+    }
+
+    private static long untilNanos(Instant date) {
+        long millis = date.toEpochMilli() - System.currentTimeMillis();
+        return TimeUnit.MILLISECONDS.toNanos(Math.max(0, millis));
+    }
+}
@@ -0,0 +1,312 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import jp.openstandia.connector.util.SchemaDefinition.AttributeMapper;
+import jp.openstandia.connector.util.SchemaDefinition.ProjectionPlan;
+import org.identityconnectors.framework.common.objects.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Binds the JSON resource to the connector object directly from the JSON tokens, without the resource model.
+ * The attributes of the projection plan are read from the fetch fields (e.g. "name.formatted") by the codecs
+ * of their types, and the other fields are skipped by the parser. The complex attributes are read by the readers
+ * registered to the binder (e.g. the primary value of the multi-valued attribute).
+ * <p>
+ * The binder is built once for the schema, and compiled for each query by {@link #compile(ProjectionPlan)}.
+ *
+ * @author Hiroyuki Wada
+ */
+public class ResourceBinder {
+
+    private final SchemaDefinition schema;
+    private final Map<String, ValueReader<?>> readers;
+    private final Map<String, String> fallbacks;
+
+    /**
+     * Reads the value from the JSON tokens.
+     *
+     * @param <T> type of the value
+     */
+    @FunctionalInterface
+    public interface ValueReader<T> {
+        /**
+         * Read the value at the current token. After reading, the parser must be at the last token of the value
+         * (e.g. END_OBJECT of the object value).
+         *
+         * @param parser
+         * @return null if no value
+         * @throws IOException
+         */
+        T read(JsonParser parser) throws IOException;
+    }
+
+    public static Builder newBuilder(SchemaDefinition schema) {
+        return new Builder(schema);
+    }
+
+    public static class Builder {
+        private final SchemaDefinition schema;
+        private final Map<String, ValueReader<?>> readers = new HashMap<>();
+        private final Map<String, String> fallbacks = new HashMap<>();
+
+        Builder(SchemaDefinition schema) {
+            this.schema = schema;
+        }
+
+        /**
+         * Read the attribute by the reader instead of the codec of the type. The reader reads the fetch field
+         * of the attribute and returns the value as the read function of the schema does.
+         *
+         * @param name   attribute name (for connector)
+         * @param reader
+         * @return
+         */
+        public Builder reader(String name, ValueReader<?> reader) {
+            if (schema.getAttributeMapper(name) == null) {
+                throw new IllegalArgumentException("Unknown attribute: " + name);
+            }
+            readers.put(name, reader);
+            return this;
+        }
+
+        /**
+         * Use the value of the other attribute if the attribute is null or empty (e.g. the name is the id if it's empty).
+         *
+         * @param name         attribute name (for connector)
+         * @param fallbackName attribute name (for connector) of the value used instead
+         * @return
+         */
+        public Builder fallback(String name, String fallbackName) {
+            fallbacks.put(name, fallbackName);
+            return this;
+        }
+
+        public ResourceBinder build() {
+            return new ResourceBinder(schema, new HashMap<>(readers), new HashMap<>(fallbacks));
+        }
+    }
+
+    private ResourceBinder(SchemaDefinition schema, Map<String, ValueReader<?>> readers, Map<String, String> fallbacks) {
+        this.schema = schema;
+        this.readers = readers;
+        this.fallbacks = fallbacks;
+    }
+
+    /**
+     * Compile the binding of the projection plan. The binding is the same for all resources in the query,
+     * so compile it once and read the resources with it. __UID__ and __NAME__ are always bound.
+     *
+     * @param plan
+     * @return
+     */
+    public Binding compile(ProjectionPlan plan) {
+        List<AttributeMapper> mappers = new ArrayList<>();
+        mappers.add(schema.getAttributeMapper(Uid.NAME));
+        mappers.add(schema.getAttributeMapper(Name.NAME));
+        mappers.addAll(Arrays.asList(plan.getMappers()));
+
+        Node root = new Node();
+        for (int slot = 0; slot < mappers.size(); slot++) {
+            AttributeMapper mapper = mappers.get(slot);
+            if (!mapper.isReadable()) {
+                continue;
+            }
+            Node node = root;
+            for (String field : mapper.getFetchField().split("\\.")) {
+                node = node.children.computeIfAbsent(field, k -> new Node());
+            }
+            // The attributes of the same field share the value, the registered reader takes precedence over the codec
+            ValueReader<?> reader = readers.get(mapper.getConnectorName());
+            if (reader != null || node.reader == null) {
+                node.reader = reader != null ? reader : mapper.getCodec();
+            }
+            node.addSlot(slot);
+        }
+
+        List<int[]> fallbackSlots = new ArrayList<>();
+        for (Map.Entry<String, String> entry : fallbacks.entrySet()) {
+            int slot = indexOf(mappers, entry.getKey());
+            int fallbackSlot = indexOf(mappers, entry.getValue());
+            if (slot >= 0 && fallbackSlot >= 0) {
+                fallbackSlots.add(new int[]{slot, fallbackSlot});
+            }
+        }
+
+        return new Binding(schema.getObjectClass(), root, mappers.toArray(new AttributeMapper[0]),
+                plan.getIncompleteAttributes(), fallbackSlots.toArray(new int[0][]));
+    }
+
+    private static int indexOf(List<AttributeMapper> mappers, String name) {
+        for (int i = 0; i < mappers.size(); i++) {
+            if (mappers.get(i).getConnectorName().equals(name)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compiled binding for a query, which reads the resources into the connector objects.
+     */
+    public static class Binding implements ValueReader<ConnectorObject> {
+        private final ObjectClass objectClass;
+        private final Node root;
+        private final AttributeMapper[] mappers;
+        private final Attribute[] incompleteAttributes;
+        private final int[][] fallbacks;
+
+        Binding(ObjectClass objectClass, Node root, AttributeMapper[] mappers,
+                Attribute[] incompleteAttributes, int[][] fallbacks) {
+            this.objectClass = objectClass;
+            this.root = root;
+            this.mappers = mappers;
+            this.incompleteAttributes = incompleteAttributes;
+            this.fallbacks = fallbacks;
+        }
+
+        /**
+         * Read the resource at START_OBJECT into the connector object.
+         *
+         * @param parser
+         * @return
+         * @throws IOException
+         */
+        @Override
+        public ConnectorObject read(JsonParser parser) throws IOException {
+            if (parser.currentToken() != JsonToken.START_OBJECT) {
+                throw new IOException("Unexpected resource: " + parser.currentToken());
+            }
+            Object[] values = new Object[mappers.length];
+            root.readObject(parser, values);
+
+            for (int[] fallback : fallbacks) {
+                Object value = values[fallback[0]];
+                if (value == null || value.toString().isEmpty()) {
+                    values[fallback[0]] = values[fallback[1]];
+                }
+            }
+
+            ConnectorObjectBuilder builder = new ConnectorObjectBuilder()
+                    .setObjectClass(objectClass);
+            for (Attribute incomplete : incompleteAttributes) {
+                builder.addAttribute(incomplete);
+            }
+            for (int i = 0; i < mappers.length; i++) {
+                if (values[i] == null) {
+                    continue;
+                }
+                Attribute attribute = mappers[i].toAttribute(values[i]);
+                if (attribute != null) {
+                    builder.addAttribute(attribute);
+                }
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Field of the resource. The leaf has the reader and the slots of the attributes which have the value.
+     */
+    static class Node {
+        final Map<String, Node> children = new HashMap<>();
+        ValueReader<?> reader;
+        int[] slots = new int[0];
+
+        void addSlot(int slot) {
+            slots = Arrays.copyOf(slots, slots.length + 1);
+            slots[slots.length - 1] = slot;
+        }
+
+        void readObject(JsonParser parser, Object[] values) throws IOException {
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                Node child = children.get(parser.getCurrentName());
+                JsonToken token = parser.nextToken();
+
+                if (child == null) {
+                    parser.skipChildren();
+
+                } else if (child.reader != null) {
+                    Object value = child.reader.read(parser);
+                    for (int slot : child.slots) {
+                        values[slot] = value;
+                    }
+                } else if (token == JsonToken.START_OBJECT) {
+                    child.readObject(parser, values);
+
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+    }
+
+    /**
+     * Standard sub-attributes of the value of the multi-valued attribute of SCIM (RFC 7643 2.4).
+     */
+    public static class MultiValue {
+        public String value;
+        public String type;
+        public String display;
+        public boolean primary;
+    }
+
+    /**
+     * Read the multi-valued attribute of SCIM at START_ARRAY. The other sub-attributes are skipped.
+     *
+     * @param parser
+     * @return empty if null or not an array
+     * @throws IOException
+     */
+    public static List<MultiValue> readMultiValues(JsonParser parser) throws IOException {
+        if (parser.currentToken() != JsonToken.START_ARRAY) {
+            parser.skipChildren();
+            return Collections.emptyList();
+        }
+        List<MultiValue> values = new ArrayList<>();
+        while (parser.nextToken() == JsonToken.START_OBJECT) {
+            MultiValue value = new MultiValue();
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getCurrentName();
+                JsonToken token = parser.nextToken();
+
+                if (field.equals("value") && token == JsonToken.VALUE_STRING) {
+                    value.value = parser.getText();
+                } else if (field.equals("type") && token == JsonToken.VALUE_STRING) {
+                    value.type = parser.getText();
+                } else if (field.equals("display") && token == JsonToken.VALUE_STRING) {
+                    value.display = parser.getText();
+                } else if (field.equals("primary") && token.isBoolean()) {
+                    value.primary = parser.getBooleanValue();
+                } else {
+                    parser.skipChildren();
+                }
+            }
+            values.add(value);
+        }
+        // Skip the rest after the non-object value, it isn't the value of the complex attribute
+        JsonToken token = parser.currentToken();
+        while (token != JsonToken.END_ARRAY && token != null) {
+            parser.skipChildren();
+            token = parser.nextToken();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Retry policy for the REST API call. It uses exponential backoff with full jitter
+ * and gives up when the max retry count or the max elapsed time is exceeded.
+ * <p>
+ * Retrying is allowed only for the configured HTTP methods because non-idempotent requests
+ * may be applied twice by the server.
+ *
+ * @author Hiroyuki Wada
+ */
+public class RetryPolicy {
+
+    private static final RetryPolicy NONE = new RetryPolicy(0, 0, 0, 0, Collections.emptySet());
+
+    private final int maxRetries;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final long maxElapsedMillis;
+    private final Set<String> retryMethods;
+
+    public RetryPolicy(int maxRetries, long initialBackoffMillis, long maxBackoffMillis, long maxElapsedMillis,
+                       Set<String> retryMethods) {
+        this.maxRetries = maxRetries;
+        this.initialBackoffMillis = initialBackoffMillis;
+        this.maxBackoffMillis = maxBackoffMillis;
+        this.maxElapsedMillis = maxElapsedMillis;
+        Set<String> methods = new HashSet<>();
+        retryMethods.forEach(m -> methods.add(m.toUpperCase()));
+        this.retryMethods = Collections.unmodifiableSet(methods);
+    }
+
+    /**
+     * Returns the policy which never retries.
+     *
+     * @return
+     */
+    public static RetryPolicy none() {
+        return NONE;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public boolean isRetryable(String method) {
+        return retryMethods.contains(method.toUpperCase());
+    }
+
+    /**
+     * Returns the delay before the next attempt, or -1 if it should not be retried.
+     *
+     * @param method     HTTP method of the request
+     * @param retried    number of retries already done
+     * @param startNanos {@link System#nanoTime()} when the first attempt started
+     * @return delay in milliseconds, or -1
+     */
+    public long nextDelay(String method, int retried, long startNanos) {
+        if (retried >= maxRetries || !isRetryable(method)) {
+            return -1;
+        }
+
+        long delay = backoff(retried);
+
+        if (maxElapsedMillis > 0) {
+            long elapsed = (System.nanoTime() - startNanos) / 1_000_000;
+            if (elapsed + delay > maxElapsedMillis) {
+                return -1;
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Full jitter: random between 0 and min(max, initial * 2^retried).
+     *
+     * @param retried
+     * @return
+     */
+    long backoff(int retried) {
+        long cap = initialBackoffMillis << Math.min(retried, 30);
+        if (cap <= 0 || cap > maxBackoffMillis) {
+            cap = maxBackoffMillis;
+        }
+        if (cap <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(cap + 1);
+    }
+}
@@ -20,8 +20,6 @@ import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueE
 import org.identityconnectors.framework.common.objects.*;
 
 import java.math.BigDecimal;
-import java.time.LocalDate;
-import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.util.*;
@@ -275,6 +273,14 @@ public class SchemaDefinition {
         return !notReadableAttributesSet.containsKey(attrName);
     }
 
+    ObjectClass getObjectClass() {
+        return objectClass;
+    }
+
+    AttributeMapper getAttributeMapper(String name) {
+        return attributeMap.get(name);
+    }
+
     public String getFetchField(String name) {
         AttributeMapper attributeMapper = attributeMap.get(name);
         if (attributeMapper != null) {
@@ -309,7 +315,7 @@ public class SchemaDefinition {
         return changed;
     }
 
-    public <R> ConnectorObjectBuilder toConnectorObjectBuilder(R source, Set<String> attributesToGet, boolean allowPartialAttributeValues) {
+    public <R> ConnectorObjectBuilder toConnectorObjectBuilder(R source, ProjectionPlan plan) {
         final ConnectorObjectBuilder builder = new ConnectorObjectBuilder()
                 .setObjectClass(objectClass);
 
@@ -320,22 +326,88 @@ public class SchemaDefinition {
         AttributeMapper name = attributeMap.get(Name.NAME);
         addAttribute(builder, name.apply(source));
 
+        for (Attribute incomplete : plan.incompleteAttributes) {
+            builder.addAttribute(incomplete);
+        }
+        for (AttributeMapper mapper : plan.mappers) {
+            addAttribute(builder, mapper.apply(source));
+        }
+
+        return builder;
+    }
+
+    /**
+     * Compile the projection plan for the query. The plan is the same for all objects in the query,
+     * so build it once and convert the objects with it.
+     *
+     * @param attributesToGet
+     * @param allowPartialAttributeValues
+     * @return
+     */
+    public ProjectionPlan compileProjectionPlan(Set<String> attributesToGet, boolean allowPartialAttributeValues) {
+        List<AttributeMapper> mappers = new ArrayList<>();
+        List<Attribute> incompleteAttributes = new ArrayList<>();
+
         for (Map.Entry<String, AttributeMapper> entry : attributeMap.entrySet()) {
             // When requested partial attribute values, return incomplete attribute if the attribute is not returned by default and readable
             if (allowPartialAttributeValues) {
                 if (!isReturnedByDefaultAttribute(entry.getKey()) && isReadableAttributes(entry.getKey())
                         && attributesToGet.contains(entry.getKey())) {
-                    addAttribute(builder, createIncompleteAttribute(entry.getKey()));
+                    incompleteAttributes.add(createIncompleteAttribute(entry.getKey()));
                     continue;
                 }
             }
+            // __UID__ and __NAME__ are always returned
+            if (entry.getKey().equals(Uid.NAME) || entry.getKey().equals(Name.NAME)) {
+                continue;
+            }
             if (shouldReturn(attributesToGet, entry.getKey())) {
-                Attribute value = entry.getValue().apply(source);
-                addAttribute(builder, value);
+                mappers.add(entry.getValue());
             }
         }
 
-        return builder;
+        return new ProjectionPlan(attributesToGet, allowPartialAttributeValues,
+                mappers.toArray(new AttributeMapper[0]), incompleteAttributes.toArray(new Attribute[0]));
+    }
+
+    /**
+     * Compile the projection plan which returns the additional attributes too
+     * (e.g. the attributes used in the filter, because the framework evaluates the filter again).
+     *
+     * @param plan
+     * @param additionalAttributes attribute names (for connector)
+     * @return
+     */
+    public ProjectionPlan compileProjectionPlan(ProjectionPlan plan, Collection<String> additionalAttributes) {
+        Set<String> attributesToGet = new HashSet<>(plan.attributesToGet);
+        attributesToGet.addAll(additionalAttributes);
+        return compileProjectionPlan(attributesToGet, plan.allowPartialAttributeValues);
+    }
+
+    /**
+     * Attribute mappers to run and incomplete attributes to add for a query.
+     */
+    public static class ProjectionPlan {
+        private final Set<String> attributesToGet;
+        private final boolean allowPartialAttributeValues;
+        private final AttributeMapper[] mappers;
+        private final Attribute[] incompleteAttributes;
+
+        ProjectionPlan(Set<String> attributesToGet, boolean allowPartialAttributeValues,
+                       AttributeMapper[] mappers, Attribute[] incompleteAttributes) {
+            this.attributesToGet = attributesToGet;
+            this.allowPartialAttributeValues = allowPartialAttributeValues;
+            this.mappers = mappers;
+            this.incompleteAttributes = incompleteAttributes;
+        }
+
+        AttributeMapper[] getMappers() {
+            return mappers;
+        }
+
+        Attribute[] getIncompleteAttributes() {
+            return incompleteAttributes;
+        }
     }
 
     protected void addAttribute(ConnectorObjectBuilder builder, Attribute attribute) {
@@ -396,8 +468,8 @@ public class SchemaDefinition {
         private DateTimeFormatter dateFormat;
         private DateTimeFormatter dateTimeFormat;
 
-        private static final DateTimeFormatter DEFAULT_DATE_FORMAT = DateTimeFormatter.ISO_LOCAL_DATE;
-        private static final DateTimeFormatter DEFAULT_DATE_TIME_FORMAT = DateTimeFormatter.ISO_OFFSET_DATE_TIME;
+        // Resolved by the type, so applying the attribute doesn't check the type
+        private AttributeCodec codec;
 
         public AttributeMapper(String connectorName, String name, Types<T> typeClass,
                                BiConsumer<T, C> create,
@@ -451,6 +523,23 @@ public class SchemaDefinition {
             this.fetchField = fetchField != null ? fetchField : name;
             this.options = options;
             this.isMultiple = isMultiple;
+            this.codec = AttributeCodec.of(typeClass, isMultiple, null, null);
+        }
+
+        String getConnectorName() {
+            return connectorName;
+        }
+
+        String getFetchField() {
+            return fetchField;
+        }
+
+        AttributeCodec getCodec() {
+            return codec;
+        }
+
+        boolean isReadable() {
+            return read != null;
         }
 
         public boolean isStringType() {
@@ -461,132 +550,22 @@ public class SchemaDefinition {
 
         public AttributeMapper dateFormat(DateTimeFormatter dateFormat) {
             this.dateFormat = dateFormat;
+            this.codec = AttributeCodec.of(type, isMultiple, dateFormat, dateTimeFormat);
             return this;
         }
 
         public AttributeMapper datetimeFormat(DateTimeFormatter datetimeFormat) {
             this.dateTimeFormat = datetimeFormat;
+            this.codec = AttributeCodec.of(type, isMultiple, dateFormat, datetimeFormat);
             return this;
         }
 
-        private String formatDate(ZonedDateTime zonedDateTime) {
-            if (zonedDateTime == null) {
-                return null;
-            }
-            if (this.dateFormat == null) {
-                return zonedDateTime.format(DEFAULT_DATE_FORMAT);
-            }
-            return zonedDateTime.format(this.dateFormat);
-        }
-
-        private String formatDateTime(ZonedDateTime zonedDateTime) {
-            if (zonedDateTime == null) {
-                return null;
-            }
-            if (this.dateTimeFormat == null) {
-                return zonedDateTime.format(DEFAULT_DATE_TIME_FORMAT);
-            }
-            return zonedDateTime.format(this.dateFormat);
-        }
-
-        private ZonedDateTime toDate(String dateString) {
-            LocalDate date;
-            if (this.dateFormat == null) {
-                date = LocalDate.parse(dateString, DEFAULT_DATE_FORMAT);
-            } else {
-                date = LocalDate.parse(dateString, this.dateFormat);
-            }
-            return date.atStartOfDay(ZoneId.systemDefault());
-        }
-
-        private ZonedDateTime toDateTime(String dateTimeString) {
-            ZonedDateTime dateTime;
-            if (this.dateTimeFormat == null) {
-                dateTime = ZonedDateTime.parse(dateTimeString, DEFAULT_DATE_TIME_FORMAT);
-            } else {
-                dateTime = ZonedDateTime.parse(dateTimeString, this.dateTimeFormat);
-            }
-            return dateTime;
-        }
-
         public void apply(Attribute source, C dest) {
             if (create == null) {
                 return;
             }
 
-            if (isMultiple) {
-                if (type == Types.DATE_STRING) {
-                    List<T> values = source.getValue().stream()
-                            .map(v -> (ZonedDateTime) v)
-                            .map(v -> (T) formatDate(v))
-                            .collect(Collectors.toList());
-                    create.accept((T) values, dest);
-
-                } else if (type == Types.DATETIME_STRING) {
-                    List<T> values = source.getValue().stream()
-                            .map(v -> (ZonedDateTime) v)
-                            .map(v -> (T) formatDateTime(v))
-                            .collect(Collectors.toList());
-                    create.accept((T) values, dest);
-
-                } else {
-                    List<T> values = source.getValue().stream().map(v -> (T) v).collect(Collectors.toList());
-                    create.accept((T) values, dest);
-                }
-
-            } else {
-                if (isStringType()) {
-                    String value = AttributeUtil.getAsStringValue(source);
-                    create.accept((T) value, dest);
-
-                } else if (type == Types.INTEGER) {
-                    Integer value = AttributeUtil.getIntegerValue(source);
-                    create.accept((T) value, dest);
-
-                } else if (type == Types.LONG) {
-                    Long value = AttributeUtil.getLongValue(source);
-                    create.accept((T) value, dest);
-
-                } else if (type == Types.FLOAT) {
-                    Float value = AttributeUtil.getFloatValue(source);
-                    create.accept((T) value, dest);
-
-                } else if (type == Types.DOUBLE) {
-                    Double value = AttributeUtil.getDoubleValue(source);
-                    create.accept((T) value, dest);
-
-                } else if (type == Types.BOOLEAN) {
-                    Boolean value = AttributeUtil.getBooleanValue(source);
-                    create.accept((T) value, dest);
-
-                } else if (type == Types.BIG_DECIMAL) {
-                    BigDecimal value = AttributeUtil.getBigDecimalValue(source);
-                    create.accept((T) value, dest);
-
-                } else if (type == Types.DATE || type == Types.DATETIME) {
-                    ZonedDateTime date = (ZonedDateTime) AttributeUtil.getSingleValue(source);
-                    String formatted = formatDate(date);
-                    create.accept((T) formatted, dest);
-
-                } else if (type == Types.DATE_STRING) {
-                    ZonedDateTime date = (ZonedDateTime) AttributeUtil.getSingleValue(source);
-                    String formatted = formatDate(date);
-                    create.accept((T) formatted, dest);
-
-                } else if (type == Types.DATETIME_STRING) {
-                    ZonedDateTime date = (ZonedDateTime) AttributeUtil.getSingleValue(source);
-                    String formatted = formatDateTime(date);
-                    create.accept((T) formatted, dest);
-
-                } else if (type == Types.GUARDED_STRING) {
-                    GuardedString guardedString = AttributeUtil.getGuardedStringValue(source);
-                    create.accept((T) guardedString, dest);
-
-                } else {
-                    T value = (T) AttributeUtil.getSingleValue(source);
-                    create.accept(value, dest);
-                }
-            }
+            create.accept((T) codec.create(source), dest);
         }
 
         public void apply(AttributeDelta source, U dest) {
@@ -595,50 +574,13 @@ public class SchemaDefinition {
                     return;
                 }
 
-                if (type == Types.DATE_STRING) {
-                    List<T> valuesToAdd = safeStream(source.getValuesToAdd())
-                            .map(v -> (ZonedDateTime) v)
-                            .map(v -> (T) formatDate(v))
-                            .collect(Collectors.toList());
-                    List<T> valuesToRemove = safeStream(source.getValuesToRemove())
-                            .map(v -> (ZonedDateTime) v)
-                            .map(v -> (T) formatDate(v))
-                            .collect(Collectors.toList());
-
-                    if (!valuesToAdd.isEmpty()) {
-                        add.accept(valuesToAdd, dest);
-                    }
-                    if (!valuesToRemove.isEmpty()) {
-                        remove.accept(valuesToRemove, dest);
-                    }
-
-                } else if (type == Types.DATETIME_STRING) {
-                    List<T> valuesToAdd = safeStream(source.getValuesToAdd())
-                            .map(v -> (ZonedDateTime) v)
-                            .map(v -> (T) formatDateTime(v))
-                            .collect(Collectors.toList());
-                    List<T> valuesToRemove = safeStream(source.getValuesToRemove())
-                            .map(v -> (ZonedDateTime) v)
-                            .map(v -> (T) formatDateTime(v))
-                            .collect(Collectors.toList());
-
-                    if (!valuesToAdd.isEmpty()) {
-                        add.accept(valuesToAdd, dest);
-                    }
-                    if (!valuesToRemove.isEmpty()) {
-                        remove.accept(valuesToRemove, dest);
-                    }
-
-                } else {
-                    List<T> valuesToAdd = safeStream(source.getValuesToAdd()).map(v -> (T) v).collect(Collectors.toList());
-                    List<T> valuesToRemove = safeStream(source.getValuesToRemove()).map(v -> (T) v).collect(Collectors.toList());
-
-                    if (!valuesToAdd.isEmpty()) {
-                        add.accept(valuesToAdd, dest);
-                    }
-                    if (!valuesToRemove.isEmpty()) {
-                        remove.accept(valuesToRemove, dest);
-                    }
+                List<Object> valuesToAdd = source.getValuesToAdd();
+                if (valuesToAdd != null && !valuesToAdd.isEmpty()) {
+                    add.accept((List<T>) codec.toResourceValues(valuesToAdd), dest);
+                }
+                List<Object> valuesToRemove = source.getValuesToRemove();
+                if (valuesToRemove != null && !valuesToRemove.isEmpty()) {
+                    remove.accept((List<T>) codec.toResourceValues(valuesToRemove), dest);
                 }
 
             } else {
@@ -646,56 +588,7 @@ public class SchemaDefinition {
                     return;
                 }
 
-                if (isStringType()) {
-                    String value = AttributeDeltaUtil.getAsStringValue(source);
-                    replace.accept((T) value, dest);
-
-                } else if (type == Types.INTEGER) {
-                    Integer value = AttributeDeltaUtil.getIntegerValue(source);
-                    replace.accept((T) value, dest);
-
-                } else if (type == Types.LONG) {
-                    Long value = AttributeDeltaUtil.getLongValue(source);
-                    replace.accept((T) value, dest);
-
-                } else if (type == Types.FLOAT) {
-                    Float value = AttributeDeltaUtil.getFloatValue(source);
-                    replace.accept((T) value, dest);
-
-                } else if (type == Types.DOUBLE) {
-                    Double value = AttributeDeltaUtil.getDoubleValue(source);
-                    replace.accept((T) value, dest);
-
-                } else if (type == Types.BOOLEAN) {
-                    Boolean value = AttributeDeltaUtil.getBooleanValue(source);
-                    replace.accept((T) value, dest);
-
-                } else if (type == Types.BIG_DECIMAL) {
-                    BigDecimal value = AttributeDeltaUtil.getBigDecimalValue(source);
-                    replace.accept((T) value, dest);
-
-                } else if (type == Types.DATE || type == Types.DATETIME) {
-                    ZonedDateTime date = (ZonedDateTime) AttributeDeltaUtil.getSingleValue(source);
-                    replace.accept((T) date, dest);
-
-                } else if (type == Types.DATE_STRING) {
-                    ZonedDateTime date = (ZonedDateTime) AttributeDeltaUtil.getSingleValue(source);
-                    String formatted = formatDate(date);
-                    replace.accept((T) formatted, dest);
-
-                } else if (type == Types.DATETIME_STRING) {
-                    ZonedDateTime date = (ZonedDateTime) AttributeDeltaUtil.getSingleValue(source);
-                    String formatted = formatDateTime(date);
-                    replace.accept((T) formatted, dest);
-
-                } else if (type == Types.GUARDED_STRING) {
-                    GuardedString guardedString = AttributeDeltaUtil.getGuardedStringValue(source);
-                    replace.accept((T) guardedString, dest);
-
-                } else {
-                    T value = (T) AttributeDeltaUtil.getSingleValue(source);
-                    replace.accept(value, dest);
-                }
+                replace.accept((T) codec.replace(source), dest);
             }
         }
 
@@ -710,54 +603,17 @@ public class SchemaDefinition {
                 return null;
             }
 
-            if (isMultiple) {
-                Stream<?> multipleValues = (Stream<?>) value;
-
-                if (type == Types.DATE_STRING) {
-                    List<ZonedDateTime> values = multipleValues
-                            .map(v -> (String) v)
-                            .map(v -> toDate(v))
-                            .collect(Collectors.toList());
-                    return safeBuildAttribute(values);
-
-                } else if (type == Types.DATETIME_STRING) {
-                    List<ZonedDateTime> values = multipleValues
-                            .map(v -> (String) v)
-                            .map(v -> toDateTime(v))
-                            .collect(Collectors.toList());
-                    return safeBuildAttribute(values);
-
-                } else {
-                    List<?> values = multipleValues.collect(Collectors.toList());
-                    return safeBuildAttribute(values);
-                }
-
-            } else {
-                if (type == Types.DATE_STRING) {
-                    ZonedDateTime date = toDate(value.toString());
-                    return AttributeBuilder.build(connectorName, date);
-
-                } else if (type == Types.DATETIME_STRING) {
-                    ZonedDateTime dateTime = toDateTime(value.toString());
-                    return AttributeBuilder.build(connectorName, dateTime);
-                }
-                return AttributeBuilder.build(connectorName, value);
-            }
-        }
-
-        private Stream<Object> safeStream(List<Object> list) {
-            if (list == null) {
-                return Collections.emptyList().stream();
-            }
-            return list.stream();
+            return toAttribute(value);
         }
 
-        private Attribute safeBuildAttribute(List<?> values) {
-            if (values.isEmpty()) {
-                // Don't make attribute if no values
-                return null;
-            }
-            return AttributeBuilder.build(connectorName, values);
+        /**
+         * Build the attribute from the value of the resource.
+         *
+         * @param value not null value of the resource
+         * @return null if no values
+         */
+        Attribute toAttribute(Object value) {
+            return codec.toAttribute(connectorName, value);
         }
     }
 }
\ No newline at end of file
@@ -0,0 +1,111 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import okhttp3.OkHttpClient;
+import org.identityconnectors.common.logging.Log;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * Process-wide, reference-counted registry of OkHttpClient built on {@link SharedRegistry}.
+ * The pooled connector instances which have the same key share one client, that is,
+ * one connection pool and one dispatcher. They are torn down when the last lease is released.
+ * <p>
+ * Per-instance settings (e.g. authentication interceptor) should be added by {@link OkHttpClient#newBuilder()}
+ * on the shared client, which keeps sharing the connection pool and the dispatcher.
+ *
+ * @author Hiroyuki Wada
+ */
+public class SharedHttpClientRegistry {
+
+    private static final Log LOG = Log.getLog(SharedHttpClientRegistry.class);
+
+    private static final SharedRegistry<Key, OkHttpClient> SHARED = new SharedRegistry<>(SharedHttpClientRegistry::close);
+
+    private SharedHttpClientRegistry() {
+    }
+
+    /**
+     * Acquire the shared client for the key. If no client is registered for the key, it's created by the factory.
+     *
+     * @param key
+     * @param factory
+     * @return the lease which must be released when the connector instance is disposed
+     */
+    public static SharedRegistry.Lease<OkHttpClient> acquire(Key key, Supplier<OkHttpClient> factory) {
+        SharedRegistry.Lease<OkHttpClient> lease = SHARED.acquire(key, k -> {
+            LOG.info("Created shared http client. key={0}", k);
+            return factory.get();
+        });
+        LOG.ok("Acquired shared http client. key={0}, refCount={1}", key, getRefCount(key));
+        return lease;
+    }
+
+    /**
+     * Returns the number of connector instances which use the shared client for the key.
+     *
+     * @param key
+     * @return
+     */
+    public static int getRefCount(Key key) {
+        return SHARED.getRefCount(key);
+    }
+
+    private static void close(Key key, OkHttpClient client) {
+        // The last instance was disposed
+        LOG.info("Close shared http client. key={0}, current: {1}, idle: {2}",
+                key, client.connectionPool().connectionCount(), client.connectionPool().idleConnectionCount());
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+    }
+
+    /**
+     * Key of the shared client. It's composed of the settings which affect the connection
+     * (e.g. base URL, proxy and timeouts).
+     */
+    public static class Key {
+        private final List<Object> components;
+
+        private Key(Object... components) {
+            this.components = Arrays.asList(components);
+        }
+
+        public static Key of(Object... components) {
+            return new Key(components);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key key = (Key) o;
+            return components.equals(key.components);
+        }
+
+        @Override
+        public int hashCode() {
+            return components.hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return components.toString();
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+
+/**
+ * Process-wide, reference-counted registry of the objects shared by the pooled connector instances
+ * which have the same key (e.g. base URL of the service).
+ * The object is removed when the last lease is released, so the registry doesn't grow with
+ * the configurations which are no longer used.
+ *
+ * @param <K> type of the key, which must implement equals and hashCode
+ * @param <T> type of the shared object
+ * @author Hiroyuki Wada
+ */
+public class SharedRegistry<K, T> {
+
+    private final Map<K, Entry<T>> entries = new HashMap<>();
+    private final BiConsumer<K, T> onRemove;
+
+    public SharedRegistry() {
+        this((key, value) -> {
+        });
+    }
+
+    /**
+     * @param onRemove called with the key and the object when the last lease is released (e.g. to close it)
+     */
+    public SharedRegistry(BiConsumer<K, T> onRemove) {
+        this.onRemove = onRemove;
+    }
+
+    /**
+     * Acquire the object shared by the key. If no object is registered for the key, it's created by the factory.
+     *
+     * @param key
+     * @param factory
+     * @return the lease which must be released when the connector instance is disposed
+     */
+    public synchronized Lease<T> acquire(K key, Function<K, T> factory) {
+        Entry<T> entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry<>(factory.apply(key));
+            entries.put(key, entry);
+        }
+        entry.refCount++;
+        Entry<T> acquired = entry;
+        return new Lease<>(acquired, () -> release(key, acquired));
+    }
+
+    /**
+     * Returns the number of the leases of the key.
+     *
+     * @param key
+     * @return
+     */
+    public synchronized int getRefCount(K key) {
+        Entry<T> entry = entries.get(key);
+        return entry != null ? entry.refCount : 0;
+    }
+
+    private synchronized void release(K key, Entry<T> entry) {
+        entry.refCount--;
+        if (entry.refCount <= 0 && entries.get(key) == entry) {
+            entries.remove(key);
+            onRemove.accept(key, entry.value);
+        }
+    }
+
+    private static class Entry<T> {
+        final T value;
+        int refCount;
+
+        Entry(T value) {
+            this.value = value;
+        }
+    }
+
+    /**
+     * Lease of the shared object. Releasing it twice is safe.
+     *
+     * @param <T>
+     */
+    public static class Lease<T> {
+        private final Entry<T> entry;
+        private final Runnable onRelease;
+        private final AtomicBoolean released = new AtomicBoolean();
+
+        Lease(Entry<T> entry, Runnable onRelease) {
+            this.entry = entry;
+            this.onRelease = onRelease;
+        }
+
+        public T get() {
+            return entry.value;
+        }
+
+        public void release() {
+            if (released.compareAndSet(false, true)) {
+                onRelease.run();
+            }
+        }
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import java.time.DateTimeException;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+
+/**
+ * Codec of the ISO-8601 offset date-time which SCIM uses for the timestamps (e.g. meta.created),
+ * like "2023-01-31T02:13:17.541Z" or "2023-01-31T11:13:17+09:00".
+ * <p>
+ * The parsed value is converted to the system default zone, which is resolved once when the class is loaded.
+ * The common form is parsed by hand, and the others (e.g. an offset with seconds) fall back to
+ * {@link DateTimeFormatter#ISO_OFFSET_DATE_TIME}, which also reports the invalid value.
+ * <p>
+ * Optionally, the recently parsed strings are memoized. The same timestamp appears on many objects
+ * (e.g. the objects imported at once), and the parsed value is immutable.
+ *
+ * @author Hiroyuki Wada
+ */
+public class TimestampCodec {
+
+    private static final ZoneId ZONE = ZoneId.systemDefault();
+
+    /**
+     * Shared codec which memoizes the recently parsed strings.
+     */
+    public static final TimestampCodec ISO8601 = new TimestampCodec(1024);
+
+    private final Entry[] memo;
+    private final int mask;
+
+    /**
+     * @param memoSize number of the memoized strings, it's rounded up to a power of two. 0 disables it
+     */
+    public TimestampCodec(int memoSize) {
+        if (memoSize > 0) {
+            int size = Integer.highestOneBit(memoSize - 1) << 1;
+            this.memo = new Entry[Math.max(size, 1)];
+            this.mask = this.memo.length - 1;
+        } else {
+            this.memo = null;
+            this.mask = 0;
+        }
+    }
+
+    /**
+     * Parse the ISO-8601 offset date-time into the system default zone.
+     *
+     * @param value
+     * @return null if the value is null
+     * @throws java.time.format.DateTimeParseException if the value is invalid
+     */
+    public ZonedDateTime parse(String value) {
+        if (value == null) {
+            return null;
+        }
+        if (memo == null) {
+            return doParse(value);
+        }
+
+        int slot = value.hashCode() & mask;
+        Entry entry = memo[slot];
+        if (entry != null && entry.key.equals(value)) {
+            return entry.value;
+        }
+        ZonedDateTime parsed = doParse(value);
+        // Racy but safe, the entry is immutable
+        memo[slot] = new Entry(value, parsed);
+        return parsed;
+    }
+
+    /**
+     * Format the date-time as the ISO-8601 offset date-time.
+     *
+     * @param value
+     * @return null if the value is null
+     */
+    public String format(ZonedDateTime value) {
+        if (value == null) {
+            return null;
+        }
+        return value.format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+    }
+
+    private static ZonedDateTime doParse(String value) {
+        ZonedDateTime parsed = parseFast(value);
+        if (parsed != null) {
+            return parsed;
+        }
+        return ZonedDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME)
+                .withZoneSameInstant(ZONE);
+    }
+
+    /**
+     * Parse "yyyy-MM-ddTHH:mm[:ss[.fraction]](Z|+HH:MM|-HH:MM)".
+     *
+     * @param s
+     * @return null if the value isn't the form or invalid
+     */
+    private static ZonedDateTime parseFast(String s) {
+        int len = s.length();
+        // yyyy-MM-ddTHH:mmZ is the shortest
+        if (len < 17) {
+            return null;
+        }
+        if (s.charAt(4) != '-' || s.charAt(7) != '-' || s.charAt(13) != ':') {
+            return null;
+        }
+        char t = s.charAt(10);
+        if (t != 'T' && t != 't') {
+            return null;
+        }
+
+        int year = digits(s, 0, 4);
+        int month = digits(s, 5, 2);
+        int day = digits(s, 8, 2);
+        int hour = digits(s, 11, 2);
+        int minute = digits(s, 14, 2);
+        if ((year | month | day | hour | minute) < 0) {
+            return null;
+        }
+
+        int pos = 16;
+        int second = 0;
+        int nano = 0;
+        if (pos < len && s.charAt(pos) == ':') {
+            if (pos + 3 > len) {
+                return null;
+            }
+            second = digits(s, pos + 1, 2);
+            if (second < 0) {
+                return null;
+            }
+            pos += 3;
+
+            if (pos < len && s.charAt(pos) == '.') {
+                pos++;
+                int start = pos;
+                while (pos < len && pos - start < 9) {
+                    int d = s.charAt(pos) - '0';
+                    if (d < 0 || d > 9) {
+                        break;
+                    }
+                    nano = nano * 10 + d;
+                    pos++;
+                }
+                int fractionDigits = pos - start;
+                if (fractionDigits == 0) {
+                    return null;
+                }
+                for (int i = fractionDigits; i < 9; i++) {
+                    nano *= 10;
+                }
+            }
+        }
+
+        if (pos >= len) {
+            return null;
+        }
+        ZoneOffset offset;
+        char sign = s.charAt(pos);
+        if (sign == 'Z' || sign == 'z') {
+            if (pos + 1 != len) {
+                return null;
+            }
+            offset = ZoneOffset.UTC;
+
+        } else if (sign == '+' || sign == '-') {
+            // Only "+HH:MM", the others are parsed by the formatter
+            if (pos + 6 > len) {
+                return null;
+            }
+            if (pos + 6 != len || s.charAt(pos + 3) != ':') {
+                return null;
+            }
+            int offsetHour = digits(s, pos + 1, 2);
+            int offsetMinute = digits(s, pos + 4, 2);
+            if ((offsetHour | offsetMinute) < 0) {
+                return null;
+            }
+            int totalSeconds = offsetHour * 3600 + offsetMinute * 60;
+            try {
+                offset = ZoneOffset.ofTotalSeconds(sign == '-' ? -totalSeconds : totalSeconds);
+            } catch (DateTimeException e) {
+                return null;
+            }
+
+        } else {
+            return null;
+        }
+
+        try {
+            LocalDateTime dateTime = LocalDateTime.of(year, month, day, hour, minute, second, nano);
+            return ZonedDateTime.ofInstant(dateTime, offset, ZONE);
+        } catch (DateTimeException e) {
+            // Let the formatter report it
+            return null;
+        }
+    }
+
+    private static int digits(String s, int start, int count) {
+        if (start + count > s.length()) {
+            return -1;
+        }
+        int value = 0;
+        for (int i = start; i < start + count; i++) {
+            int d = s.charAt(i) - '0';
+            if (d < 0 || d > 9) {
+                return -1;
+            }
+            value = value * 10 + d;
+        }
+        return value;
+    }
+
+    private static class Entry {
+        final String key;
+        final ZonedDateTime value;
+
+        Entry(String key, ZonedDateTime value) {
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
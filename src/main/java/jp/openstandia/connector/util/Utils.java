@@ -66,8 +66,7 @@ public class Utils {
         if (datetimeString == null) {
             return null;
         }
-        return ZonedDateTime.parse(datetimeString, DateTimeFormatter.ISO_OFFSET_DATE_TIME)
-                .withZoneSameInstant(ZoneId.systemDefault());
+        return TimestampCodec.ISO8601.parse(datetimeString);
     }
 
     public static ZonedDateTime toZoneDateTime(Date date) {
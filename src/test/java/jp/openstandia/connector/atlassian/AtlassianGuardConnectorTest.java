@@ -0,0 +1,165 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.atlassian;
+
+import jp.openstandia.connector.util.SharedHttpClientRegistry;
+import jp.openstandia.connector.util.SharedRegistry;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectionFailedException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the http client of {@link AtlassianGuardConnector}.
+ */
+class AtlassianGuardConnectorTest {
+
+    @Test
+    void releaseWhenAuthenticationFailed() throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setResponseCode(401));
+            server.start();
+
+            AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+            conf.setBaseURL(server.url("/scim").toString());
+            conf.setToken(new GuardedString("dummy".toCharArray()));
+            conf.setRetryCount(0);
+
+            AtlassianGuardConnector connector = new AtlassianGuardConnector();
+            assertThrows(ConnectionFailedException.class, () -> connector.init(conf));
+
+            assertEquals(0, SharedHttpClientRegistry.getRefCount(connector.createHttpClientKey()));
+            assertEquals(1, server.getRequestCount());
+
+            // Dispose after the failure is safe
+            connector.dispose();
+        }
+    }
+
+    private static AtlassianGuardConfiguration newConfiguration(String baseURL) {
+        AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+        conf.setBaseURL(baseURL);
+        conf.setToken(new GuardedString("dummy".toCharArray()));
+        conf.setRetryCount(0);
+        return conf;
+    }
+
+    @Test
+    void createSharedHttpClientWithSettings() {
+        AtlassianGuardConfiguration conf = newConfiguration("https://settings.example.com/scim");
+        conf.setConnectionTimeoutInMilliseconds(1000);
+        conf.setReadTimeoutInMilliseconds(2000);
+        conf.setWriteTimeoutInMilliseconds(3000);
+        conf.setMaxRequests(7);
+        conf.setMaxRequestsPerHost(3);
+        conf.setHttpProtocols(new String[]{"h2", "HTTP/1.1"});
+        conf.setHttpProxyHost("proxy.example.com");
+        conf.setHttpProxyPort(3128);
+
+        AtlassianGuardConnector connector = new AtlassianGuardConnector();
+        connector.configuration = conf;
+
+        // When
+        OkHttpClient client = connector.createSharedHttpClient();
+
+        // Then
+        try {
+            assertEquals(7, client.dispatcher().getMaxRequests());
+            assertEquals(3, client.dispatcher().getMaxRequestsPerHost());
+            assertEquals(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1), client.protocols());
+            assertEquals(1000, client.connectTimeoutMillis());
+            assertEquals(2000, client.readTimeoutMillis());
+            assertEquals(3000, client.writeTimeoutMillis());
+            assertEquals(new Proxy(Proxy.Type.HTTP, new InetSocketAddress("proxy.example.com", 3128)), client.proxy());
+        } finally {
+            client.dispatcher().executorService().shutdown();
+        }
+    }
+
+    @Test
+    void createSharedHttpClientWithDefaultProtocols() {
+        AtlassianGuardConnector connector = new AtlassianGuardConnector();
+        connector.configuration = newConfiguration("https://protocols.example.com/scim");
+
+        OkHttpClient client = connector.createSharedHttpClient();
+
+        try {
+            assertEquals(new OkHttpClient().protocols(), client.protocols());
+        } finally {
+            client.dispatcher().executorService().shutdown();
+        }
+    }
+
+    @Test
+    void shareConnectionPoolAndDispatcher() throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse());
+            server.start();
+
+            AtlassianGuardConfiguration conf = newConfiguration(server.url("/scim").toString());
+            conf.setMaxIdleConnections(5);
+            conf.setMaxRequests(7);
+
+            AtlassianGuardConnector connector = new AtlassianGuardConnector();
+            connector.init(conf);
+
+            SharedRegistry.Lease<OkHttpClient> lease = SharedHttpClientRegistry.acquire(connector.createHttpClientKey(),
+                    () -> fail("The shared client must be created by the connector"));
+            try {
+                // The connection of the test request is kept by the shared pool
+                assertEquals(1, lease.get().connectionPool().idleConnectionCount());
+                assertEquals(7, lease.get().dispatcher().getMaxRequests());
+            } finally {
+                lease.release();
+                connector.dispose();
+            }
+        }
+    }
+
+    @Test
+    void noIdleConnectionsInSharedPool() throws IOException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse());
+            server.start();
+
+            AtlassianGuardConfiguration conf = newConfiguration(server.url("/scim").toString());
+            conf.setMaxIdleConnections(0);
+
+            AtlassianGuardConnector connector = new AtlassianGuardConnector();
+            connector.init(conf);
+
+            SharedRegistry.Lease<OkHttpClient> lease = SharedHttpClientRegistry.acquire(connector.createHttpClientKey(),
+                    () -> fail("The shared client must be created by the connector"));
+            try {
+                // The connection is closed when it becomes idle
+                assertEquals(0, lease.get().connectionPool().connectionCount());
+            } finally {
+                lease.release();
+                connector.dispose();
+            }
+        }
+    }
+}
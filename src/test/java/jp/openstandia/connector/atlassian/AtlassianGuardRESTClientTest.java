@@ -0,0 +1,359 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.atlassian;
+
+import jp.openstandia.connector.util.AbstractRESTClient;
+import okhttp3.*;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import okio.Source;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.objects.Name;
+import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of {@link AtlassianGuardRESTClient} against the fake SCIM server.
+ */
+class AtlassianGuardRESTClientTest {
+
+    private static final String USER = "{\"totalResults\":1,\"startIndex\":1,\"itemsPerPage\":1,\"Resources\":[{\"id\":\"1\",\"userName\":\"foo\"}]}";
+
+    private MockWebServer server;
+    private OkHttpClient httpClient;
+    private AtlassianGuardRESTClient client;
+
+    @BeforeEach
+    void before() throws IOException {
+        server = new MockWebServer();
+        server.start();
+
+        AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+        conf.setBaseURL(server.url("/scim").toString());
+        conf.setToken(new GuardedString("dummy".toCharArray()));
+        conf.setRetryCount(0);
+
+        httpClient = new OkHttpClient();
+        client = new AtlassianGuardRESTClient();
+        client.init("test", conf, httpClient);
+    }
+
+    @AfterEach
+    void after() throws IOException {
+        client.close();
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        return server.takeRequest(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void keepProjectionWhenFilterIsRejected() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(400)
+                .setBody("{\"status\":\"400\",\"scimType\":\"invalidFilter\",\"detail\":\"Unsupported filter\"}"));
+        server.enqueue(new MockResponse().setBody(USER));
+
+        // When
+        assertThrows(InvalidAttributeValueException.class,
+                () -> client.getUser(new Name("foo"), new OperationOptionsBuilder().build(), Collections.singleton("displayName")));
+
+        // Then
+        assertEquals(1, server.getRequestCount(), "The rejected filter shouldn't be sent again");
+        assertNotNull(takeRequest().getRequestUrl().queryParameter("attributes"));
+
+        // The projection is still used
+        AtlassianGuardUserModel user = client.getUser(new Name("foo"), new OperationOptionsBuilder().build(), Collections.singleton("displayName"));
+        assertEquals("1", user.id);
+        assertNotNull(takeRequest().getRequestUrl().queryParameter("attributes"));
+    }
+
+    @Test
+    void keepProjectionWhenFilterOnAttributesIsRejected() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(400)
+                .setBody("{\"status\":\"400\",\"scimType\":\"invalidFilter\",\"detail\":\"Filter on the attributes is not supported\"}"));
+
+        // When
+        assertThrows(InvalidAttributeValueException.class,
+                () -> client.getUser(new Name("foo"), new OperationOptionsBuilder().build(), Collections.singleton("displayName")));
+
+        // Then
+        assertEquals(1, server.getRequestCount(), "The filter error shouldn't be handled as the projection error");
+    }
+
+    @Test
+    void disableProjectionWhenItIsRejected() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(400)
+                .setBody("{\"status\":\"400\",\"scimType\":\"invalidSyntax\",\"detail\":\"query.attributes is not allowed\"}"));
+        server.enqueue(new MockResponse().setBody(USER));
+        server.enqueue(new MockResponse().setBody(USER));
+
+        // When
+        AtlassianGuardUserModel user = client.getUser(new Name("foo"), new OperationOptionsBuilder().build(), Collections.singleton("displayName"));
+
+        // Then
+        assertEquals("1", user.id);
+        assertNotNull(takeRequest().getRequestUrl().queryParameter("attributes"));
+        assertNull(takeRequest().getRequestUrl().queryParameter("attributes"));
+
+        // The projection isn't used anymore
+        client.getUser(new Name("foo"), new OperationOptionsBuilder().build(), Collections.singleton("displayName"));
+        assertNull(takeRequest().getRequestUrl().queryParameter("attributes"));
+    }
+
+    @Test
+    void escapeBackslashAndQuoteInFilter() throws InterruptedException {
+        server.enqueue(new MockResponse().setBody(USER));
+
+        // When
+        client.getUser(new Name("a\\b\"c"), new OperationOptionsBuilder().build(), Collections.emptySet());
+
+        // Then
+        assertEquals("userName eq \"a\\\\b\\\"c\"", takeRequest().getRequestUrl().queryParameter("filter"));
+    }
+
+    private static String groupList(int groups, int members) {
+        StringBuilder sb = new StringBuilder("{\"totalResults\":").append(groups).append(",\"Resources\":[");
+        for (int i = 0; i < groups; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":\"g").append(i).append("\",\"displayName\":\"group").append(i).append("\",\"members\":[");
+            for (int j = 0; j < members; j++) {
+                if (j > 0) {
+                    sb.append(',');
+                }
+                sb.append("{\"value\":\"user").append(j).append("\",\"type\":\"User\"}");
+            }
+            sb.append("]}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private static Response countingResponse(String body, AtomicLong read) {
+        Buffer buffer = new Buffer().writeUtf8(body);
+        long length = buffer.size();
+        Source source = new ForwardingSource(buffer) {
+            @Override
+            public long read(Buffer sink, long byteCount) throws IOException {
+                long n = super.read(sink, byteCount);
+                if (n > 0) {
+                    read.addAndGet(n);
+                }
+                return n;
+            }
+        };
+        return new Response.Builder()
+                .request(new Request.Builder().url("https://example.com/scim/Groups").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(Okio.buffer(source), MediaType.get("application/scim+json"), length))
+                .build();
+    }
+
+    @Test
+    void readListBodyIncrementally() throws IOException {
+        String body = groupList(100, 200);
+        AtomicLong read = new AtomicLong();
+        List<Long> readAtHandle = new ArrayList<>();
+
+        // When
+        AbstractRESTClient.Page page;
+        try (Response response = countingResponse(body, read)) {
+            page = client.readListBody(response, AtlassianGuardGroupModel.class, (g) -> {
+                readAtHandle.add(read.get());
+                return true;
+            });
+        }
+
+        // Then
+        assertEquals(100, page.totalResults);
+        assertEquals(100, page.count);
+        assertEquals(100, page.handled);
+        assertFalse(page.stopped);
+        assertEquals(100, readAtHandle.size());
+        assertTrue(readAtHandle.get(0) < body.length() / 10,
+                "The first group should be handled before the whole page is read: " + readAtHandle.get(0));
+    }
+
+    @Test
+    void readListBodyStopsReading() throws IOException {
+        String body = groupList(100, 200);
+        AtomicLong read = new AtomicLong();
+        List<String> handled = new ArrayList<>();
+
+        // When
+        AbstractRESTClient.Page page;
+        try (Response response = countingResponse(body, read)) {
+            page = client.readListBody(response, AtlassianGuardGroupModel.class, (g) -> {
+                handled.add(g.id);
+                return handled.size() < 2;
+            });
+        }
+
+        // Then
+        assertTrue(page.stopped);
+        assertEquals(2, page.handled);
+        assertEquals(2, page.count);
+        assertEquals("g0", handled.get(0));
+        assertEquals("g1", handled.get(1));
+        assertTrue(read.get() < body.length() / 10,
+                "The rest of the page shouldn't be read after the stop: " + read.get());
+    }
+
+    private static PatchOperationsModel.Operation replace(String path, Object value) {
+        PatchOperationsModel.Operation op = new PatchOperationsModel.Operation();
+        op.op = "replace";
+        op.path = path;
+        op.value = value;
+        return op;
+    }
+
+    private static AtlassianGuardUserModel currentUser() {
+        AtlassianGuardUserModel user = new AtlassianGuardUserModel();
+        user.id = "1";
+        user.userName = "foo";
+        user.title = "Engineer";
+        return user;
+    }
+
+    @Test
+    void removeUnchangedPlainPath() {
+        PatchOperationsModel operations = new PatchOperationsModel();
+        operations.operations.add(replace("title", "Engineer"));
+        operations.operations.add(replace("name.givenName", ""));
+        operations.operations.add(replace("userName", "bar"));
+
+        // When
+        client.removeUnchangedOperations(operations, currentUser());
+
+        // Then
+        assertEquals(1, operations.operations.size());
+        assertEquals("userName", operations.operations.get(0).path);
+    }
+
+    @Test
+    void keepFilteredPath() {
+        PatchOperationsModel operations = new PatchOperationsModel();
+        operations.operations.add(replace("emails[type eq \"work\"].value", ""));
+
+        // When
+        client.removeUnchangedOperations(operations, currentUser());
+
+        // Then
+        assertEquals(1, operations.operations.size(), "The replace with the value filter must be sent");
+        assertEquals("emails[type eq \"work\"].value", operations.operations.get(0).path);
+    }
+
+    @Test
+    void keepExtensionPath() {
+        PatchOperationsModel operations = new PatchOperationsModel();
+        operations.operations.add(replace("urn:ietf:params:scim:schemas:extension:enterprise:2.0:User:department", ""));
+        operations.operations.add(replace("urn:ietf:params:scim:schemas:extension:enterprise:2.0:User:manager.value", ""));
+
+        // When
+        client.removeUnchangedOperations(operations, currentUser());
+
+        // Then
+        assertEquals(2, operations.operations.size(), "The replace of the extension attribute must be sent");
+    }
+
+    private static String userList(String... ids) {
+        StringBuilder sb = new StringBuilder("{\"totalResults\":").append(ids.length)
+                .append(",\"startIndex\":1,\"itemsPerPage\":").append(ids.length).append(",\"Resources\":[");
+        for (int i = 0; i < ids.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append("{\"id\":\"").append(ids[i]).append("\",\"userName\":\"user").append(ids[i]).append("\"}");
+        }
+        return sb.append("]}").toString();
+    }
+
+    private void initWithLookupBatchSize(int lookupBatchSize) {
+        client.close();
+
+        AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+        conf.setBaseURL(server.url("/scim").toString());
+        conf.setToken(new GuardedString("dummy".toCharArray()));
+        conf.setRetryCount(0);
+        conf.setLookupBatchSize(lookupBatchSize);
+
+        client = new AtlassianGuardRESTClient();
+        client.init("test", conf, httpClient);
+    }
+
+    @Test
+    void getByAnyMatchInBatches() throws InterruptedException {
+        initWithLookupBatchSize(2);
+        server.enqueue(new MockResponse().setBody(userList("1", "2")));
+        server.enqueue(new MockResponse().setBody(userList("3", "4")));
+        server.enqueue(new MockResponse().setBody(userList("5")));
+
+        // When
+        List<String> handled = new ArrayList<>();
+        int total = client.getUsersByAnyMatch((u) -> handled.add(u.id), new OperationOptionsBuilder().build(), Collections.emptySet(),
+                "id", Arrays.asList("1", "2", "3", "4", "5"), 50);
+
+        // Then
+        // ceil(5 / 2) requests
+        assertEquals(3, server.getRequestCount());
+        assertEquals("id eq \"1\" or id eq \"2\"", takeRequest().getRequestUrl().queryParameter("filter"));
+        assertEquals("id eq \"3\" or id eq \"4\"", takeRequest().getRequestUrl().queryParameter("filter"));
+        assertEquals("id eq \"5\"", takeRequest().getRequestUrl().queryParameter("filter"));
+        assertEquals(5, total);
+        assertEquals(Arrays.asList("1", "2", "3", "4", "5"), handled);
+    }
+
+    @Test
+    void getByAnyMatchStopsBatches() throws InterruptedException {
+        initWithLookupBatchSize(2);
+        server.enqueue(new MockResponse().setBody(userList("1", "2")));
+        server.enqueue(new MockResponse().setBody(userList("3", "4")));
+        server.enqueue(new MockResponse().setBody(userList("5")));
+
+        // When
+        List<String> handled = new ArrayList<>();
+        client.getUsersByAnyMatch((u) -> {
+            handled.add(u.id);
+            return false;
+        }, new OperationOptionsBuilder().build(), Collections.emptySet(), "id", Arrays.asList("1", "2", "3", "4", "5"), 50);
+
+        // Then
+        assertEquals(1, server.getRequestCount(), "The next batch shouldn't be requested after the handler returned false");
+        assertEquals(Collections.singletonList("1"), handled);
+    }
+}
@@ -16,6 +16,7 @@
 package jp.openstandia.connector.atlassian;
 
 import jp.openstandia.connector.util.SchemaDefinition;
+import jp.openstandia.connector.util.TimestampCodec;
 import jp.openstandia.connector.util.Utils;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.OperationOptions;
@@ -23,6 +24,10 @@ import org.identityconnectors.framework.common.objects.OperationOptionsBuilder;
 import org.identityconnectors.framework.common.objects.Uid;
 import org.junit.jupiter.api.Test;
 
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Map;
 
 import static org.identityconnectors.framework.common.objects.AttributeInfo.Flags.*;
@@ -77,4 +82,41 @@ class AtlassianGuardUtilsTest {
         assertEquals("userId", fullAttributesToGet.get(Uid.NAME));
         assertEquals("userName", fullAttributesToGet.get(Name.NAME));
     }
-}
\ No newline at end of file
+
+    @Test
+    void parseTimestamp() {
+        TimestampCodec codec = new TimestampCodec(0);
+
+        String[] values = new String[]{
+                "2023-01-31T02:13:17.541Z",
+                "2023-01-31T11:13:17+09:00",
+                "2023-01-31T11:13:17.123456789-05:30",
+                "2023-01-31T11:13Z",
+                "2023-01-31T11:13:17.1z",
+                // Parsed by the formatter
+                "2023-01-31T11:13:17+09:00:30",
+        };
+        for (String value : values) {
+            ZonedDateTime expected = ZonedDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME)
+                    .withZoneSameInstant(ZoneId.systemDefault());
+            assertEquals(expected, codec.parse(value), value);
+            assertEquals(expected, TimestampCodec.ISO8601.parse(value), value);
+            // Memoized
+            assertEquals(expected, TimestampCodec.ISO8601.parse(value), value);
+        }
+
+        assertNull(codec.parse(null));
+        assertThrows(DateTimeParseException.class, () -> codec.parse("2023-02-30T11:13:17Z"));
+        assertThrows(DateTimeParseException.class, () -> codec.parse("2023-01-31T11:13:17"));
+        assertThrows(DateTimeParseException.class, () -> codec.parse("2023-01-31T11:13:17+19:00"));
+    }
+
+    @Test
+    void formatTimestamp() {
+        TimestampCodec codec = TimestampCodec.ISO8601;
+
+        ZonedDateTime dateTime = codec.parse("2023-01-31T11:13:17.541+09:00");
+        assertEquals(dateTime, codec.parse(codec.format(dateTime)));
+        assertNull(codec.format(null));
+    }
+}
@@ -16,6 +16,7 @@
 package jp.openstandia.connector.atlassian;
 
 import jp.openstandia.connector.atlassian.testutil.AbstractTest;
+import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
@@ -161,6 +162,84 @@ class GroupTest extends AbstractTest {
                 && ((List<PatchOperationsModel.Member>) op.value).get(0).value.equals(memberRemove2)));
     }
 
+    @Test
+    void updateGroupMembersInChunks() {
+        configuration.setMembershipPatchChunkSize(2);
+        ConnectorFacade connector = newFacade(configuration);
+
+        // Given
+        String currentId = "1";
+        String currentDisplayName = "foo";
+
+        Set<AttributeDelta> modifications = new HashSet<>();
+        modifications.add(AttributeDeltaBuilder.build("members.User.value", Arrays.asList("user001", "user002", "user003"), Collections.singletonList("user004")));
+
+        List<PatchOperationsModel> updated = new ArrayList<>();
+        mockClient.patchGroup = ((u, operation) -> {
+            updated.add(operation);
+        });
+
+        // When
+        Set<AttributeDelta> affected = connector.updateDelta(GROUP_OBJECT_CLASS, new Uid(currentId, new Name(currentDisplayName)), modifications, new OperationOptionsBuilder().build());
+
+        // Then
+        assertNull(affected);
+        assertEquals(2, updated.size());
+
+        int members = updated.stream()
+                .peek(operation -> assertTrue(operation.operations.stream().mapToInt(op -> ((List<?>) op.value).size()).sum() <= 2))
+                .flatMap(operation -> operation.operations.stream())
+                .mapToInt(op -> ((List<?>) op.value).size())
+                .sum();
+        assertEquals(4, members);
+    }
+
+    @Test
+    void updateGroupMembersCoalesced() {
+        configuration.setPatchCoalescingWindowInMilliseconds(60000);
+        ConnectorFacade connector = newFacade(configuration);
+        mockClient.init("mock", configuration, null);
+
+        // Given
+        Uid uid = new Uid("1", new Name("foo"));
+
+        List<PatchOperationsModel> updated = new ArrayList<>();
+        mockClient.patchGroup = ((u, operation) -> {
+            updated.add(operation);
+        });
+        mockClient.getGroupByUid = ((u) -> {
+            AtlassianGuardGroupModel result = new AtlassianGuardGroupModel();
+            result.id = u.getUidValue();
+            result.displayName = "foo";
+            return result;
+        });
+
+        // When
+        connector.updateDelta(GROUP_OBJECT_CLASS, uid,
+                Collections.singleton(AttributeDeltaBuilder.build("members.User.value", Collections.singletonList("user001"), null)),
+                new OperationOptionsBuilder().build());
+        connector.updateDelta(GROUP_OBJECT_CLASS, uid,
+                Collections.singleton(AttributeDeltaBuilder.build("members.User.value", Collections.singletonList("user002"), Collections.singletonList("user001"))),
+                new OperationOptionsBuilder().build());
+
+        // Then
+        assertEquals(0, updated.size(), "The updates should be buffered");
+
+        // When
+        connector.getObject(GROUP_OBJECT_CLASS, uid, defaultGetOperation());
+
+        // Then
+        assertEquals(1, updated.size(), "The search should flush the merged update");
+        PatchOperationsModel operation = updated.get(0);
+        assertEquals(2, operation.operations.size());
+        assertTrue(operation.operations.stream().anyMatch(op -> op.op.equals("add")
+                && ((List<PatchOperationsModel.Member>) op.value).size() == 1
+                && ((List<PatchOperationsModel.Member>) op.value).get(0).value.equals("user002")));
+        assertTrue(operation.operations.stream().anyMatch(op -> op.op.equals("remove")
+                && ((List<PatchOperationsModel.Member>) op.value).size() == 1
+                && ((List<PatchOperationsModel.Member>) op.value).get(0).value.equals("user001")));
+    }
+
     @Test
     void updateGroupMembersWithMultiple() {
         // Given
@@ -441,6 +520,46 @@ class GroupTest extends AbstractTest {
         assertEquals(1, targetOffset.get());
     }
 
+    @Test
+    void getGroupsWithMembers() {
+        // Given
+        String member1 = "a1074ce4-b7e0-4454-975e-37ca2c1e8936";
+        String member2 = "0b61c3b3-1a4e-4d39-a6b1-0e5c52b0a5a1";
+        String body = "{\"totalResults\":2,\"Resources\":[" +
+                "{\"id\":\"1\",\"displayName\":\"a\",\"members\":[" +
+                "{\"value\":\"" + member1 + "\",\"type\":\"User\",\"display\":\"foo\"}," +
+                "{\"value\":\"g\",\"type\":\"Group\"}," +
+                "{\"value\":\"" + member2 + "\",\"type\":\"User\"}]," +
+                "\"meta\":{\"resourceType\":\"Group\",\"created\":\"2024-11-14T05:56:39.79755Z\"}}," +
+                // The name is the id if displayName is empty
+                "{\"id\":\"2\",\"displayName\":\"\",\"members\":[]}" +
+                "]}";
+        mockClient.getGroupsBody = ((size, offset) -> body);
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(GROUP_OBJECT_CLASS, null, handler, defaultSearchOperation("members.User.value"));
+
+        // Then
+        assertEquals(2, results.size());
+
+        ConnectorObject result = results.get(0);
+        assertEquals("1", result.getUid().getUidValue());
+        assertEquals("a", result.getName().getNameValue());
+        assertEquals(Arrays.asList(member1, member2), result.getAttributeByName("members.User.value").getValue());
+        assertNotNull(result.getAttributeByName("meta.created"));
+        assertNull(result.getAttributeByName("meta.lastModified"));
+
+        result = results.get(1);
+        assertEquals("2", result.getUid().getUidValue());
+        assertEquals("2", result.getName().getNameValue());
+        assertNull(result.getAttributeByName("members.User.value"));
+    }
+
     @Test
     void getGroupsByMembers() {
         // Given
@@ -571,6 +690,105 @@ class GroupTest extends AbstractTest {
         assertEquals("a", result.getName().getNameValue());
     }
 
+    @Test
+    void getGroupsByMembersWithIndex() {
+        configuration.setGroupMembershipIndexTtlInMilliseconds(60000);
+        ConnectorFacade connector = newFacade(configuration);
+        mockClient.init("mock", configuration, null);
+
+        // Given
+        AtomicReference<Integer> scanned = new AtomicReference<>(0);
+        mockClient.getGroups = ((h, size, offset) -> {
+            scanned.set(scanned.get() + 1);
+
+            AtlassianGuardGroupModel result = new AtlassianGuardGroupModel();
+            result.id = "1";
+            result.displayName = "a";
+            result.addMembers(Arrays.asList("user001", "user002"));
+            h.handle(result);
+
+            result = new AtlassianGuardGroupModel();
+            result.id = "2";
+            result.displayName = "b";
+            result.addMembers(Arrays.asList("user001"));
+            h.handle(result);
+
+            result = new AtlassianGuardGroupModel();
+            result.id = "3";
+            result.displayName = "c";
+            h.handle(result);
+
+            return 3;
+        });
+        OperationOptions options = new OperationOptionsBuilder()
+                .setAttributesToGet(Name.NAME)
+                .build();
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        connector.search(GROUP_OBJECT_CLASS, new ContainsAllValuesFilter(AttributeBuilder.build("members.User.value", Collections.singletonList("user001"))),
+                results::add, options);
+        List<ConnectorObject> results2 = new ArrayList<>();
+        connector.search(GROUP_OBJECT_CLASS, new ContainsAllValuesFilter(AttributeBuilder.build("members.User.value", Arrays.asList("user001", "user002"))),
+                results2::add, options);
+
+        // Then
+        assertEquals(1, scanned.get(), "The index should be built once");
+
+        assertEquals(2, results.size());
+        assertEquals("1", results.get(0).getUid().getUidValue());
+        assertEquals("a", results.get(0).getName().getNameValue());
+        assertEquals("2", results.get(1).getUid().getUidValue());
+        assertEquals("b", results.get(1).getName().getNameValue());
+
+        assertEquals(1, results2.size());
+        assertEquals("1", results2.get(0).getUid().getUidValue());
+    }
+
+    @Test
+    void getGroupsByMembersFromUsers() {
+        configuration.setGroupMembershipStrategy(AtlassianGuardConfiguration.USER_RESOURCE);
+        ConnectorFacade connector = newFacade(configuration);
+        mockClient.init("mock", configuration, null);
+
+        // Given
+        mockClient.getUserByUid = ((uid) -> {
+            AtlassianGuardUserModel user = new AtlassianGuardUserModel();
+            user.id = uid.getUidValue();
+            user.groups = new ArrayList<>();
+            List<String> groupIds = uid.getUidValue().equals("user001") ? Arrays.asList("1", "2") : Collections.singletonList("1");
+            for (String groupId : groupIds) {
+                AtlassianGuardUserModel.Group group = new AtlassianGuardUserModel.Group();
+                group.value = groupId;
+                group.type = "Group";
+                user.groups.add(group);
+            }
+            return user;
+        });
+        AtomicReference<String> targetFilter = new AtomicReference<>();
+        mockClient.getGroupsByFilter = ((filter, h) -> {
+            targetFilter.set(filter);
+
+            AtlassianGuardGroupModel result = new AtlassianGuardGroupModel();
+            result.id = "1";
+            result.displayName = "a";
+            h.handle(result);
+
+            return 1;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        Attribute user001AndUser002 = AttributeBuilder.build("members.User.value", Arrays.asList("user001", "user002"));
+        connector.search(GROUP_OBJECT_CLASS, new ContainsAllValuesFilter(user001AndUser002), results::add, defaultSearchOperation());
+
+        // Then
+        assertEquals("id eq \"1\"", targetFilter.get());
+        assertEquals(1, results.size());
+        assertEquals("1", results.get(0).getUid().getUidValue());
+        assertEquals("a", results.get(0).getName().getNameValue());
+    }
+
     @Test
     void deleteGroup() {
         // Given
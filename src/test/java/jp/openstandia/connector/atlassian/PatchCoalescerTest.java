@@ -0,0 +1,103 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.atlassian;
+
+import jp.openstandia.connector.util.Metrics;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static jp.openstandia.connector.atlassian.AtlassianGuardGroupHandler.GROUP_OBJECT_CLASS;
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatchCoalescerTest {
+
+    private static PatchOperationsModel addMember(String member) {
+        PatchOperationsModel operations = new PatchOperationsModel();
+        operations.addMembers(Collections.singletonList(member));
+        return operations;
+    }
+
+    @Test
+    void flushWaitsForInFlightPatch() throws Exception {
+        PatchCoalescer coalescer = new PatchCoalescer(10, new Metrics());
+        Uid uid = new Uid("1");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> sent = new CopyOnWriteArrayList<>();
+
+        try {
+            coalescer.submit(GROUP_OBJECT_CLASS, uid, addMember("user001"), (u, operations) -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                sent.add("patch");
+            });
+            assertTrue(started.await(5, TimeUnit.SECONDS), "The PATCH should be sent after the window");
+
+            // When
+            CompletableFuture<Void> flushed = CompletableFuture.runAsync(() -> {
+                coalescer.flush(GROUP_OBJECT_CLASS, uid);
+                sent.add("flushed");
+            });
+
+            // Then
+            Thread.sleep(100);
+            assertFalse(flushed.isDone(), "The flush should wait for the in-flight PATCH");
+
+            release.countDown();
+            flushed.get(5, TimeUnit.SECONDS);
+            assertEquals(2, sent.size());
+            assertEquals("patch", sent.get(0));
+            assertEquals("flushed", sent.get(1));
+        } finally {
+            release.countDown();
+            coalescer.close();
+        }
+    }
+
+    @Test
+    void slowPatchDoesNotBlockOtherObjects() throws Exception {
+        PatchCoalescer coalescer = new PatchCoalescer(10, new Metrics());
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch otherSent = new CountDownLatch(1);
+
+        try {
+            coalescer.submit(GROUP_OBJECT_CLASS, new Uid("1"), addMember("user001"), (u, operations) -> {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            coalescer.submit(GROUP_OBJECT_CLASS, new Uid("2"), addMember("user001"), (u, operations) -> otherSent.countDown());
+
+            assertTrue(otherSent.await(5, TimeUnit.SECONDS), "The other PATCH should be sent while the slow one is in flight");
+        } finally {
+            release.countDown();
+            coalescer.close();
+        }
+    }
+}
@@ -0,0 +1,138 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.atlassian;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PatchOperationsModelTest {
+
+    private static List<String> members(PatchOperationsModel.Operation op) {
+        return ((List<?>) op.value).stream()
+                .map(v -> ((PatchOperationsModel.Member) v).value)
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    void compactAddThenRemove() {
+        PatchOperationsModel model = new PatchOperationsModel();
+        model.addMembers(Arrays.asList("u1", "u2"));
+        model.removeMembers(Collections.singletonList("u1"));
+
+        model.compact();
+
+        assertEquals(2, model.operations.size());
+        assertEquals("add", model.operations.get(0).op);
+        assertEquals(Collections.singletonList("u2"), members(model.operations.get(0)));
+        assertEquals("remove", model.operations.get(1).op);
+        assertEquals(Collections.singletonList("u1"), members(model.operations.get(1)));
+    }
+
+    @Test
+    void compactRemoveThenAdd() {
+        PatchOperationsModel model = new PatchOperationsModel();
+        model.removeMembers(Collections.singletonList("u1"));
+        model.addMembers(Collections.singletonList("u1"));
+
+        model.compact();
+
+        assertEquals(1, model.operations.size());
+        assertEquals("add", model.operations.get(0).op);
+        assertEquals("members", model.operations.get(0).path);
+        assertEquals(Collections.singletonList("u1"), members(model.operations.get(0)));
+    }
+
+    @Test
+    void compactKeepsSubmissionOrder() {
+        PatchOperationsModel model = new PatchOperationsModel();
+        model.removeMembers(Collections.singletonList("u1"));
+        model.replace("displayName", "foo");
+        model.addMembers(Collections.singletonList("u2"));
+
+        model.compact();
+
+        assertEquals(3, model.operations.size());
+        assertEquals("remove", model.operations.get(0).op);
+        assertEquals("displayName", model.operations.get(1).path);
+        assertEquals("add", model.operations.get(2).op);
+    }
+
+    @Test
+    void compactKeepsPartialSubAttributes() {
+        PatchOperationsModel model = new PatchOperationsModel();
+        model.replace("name.givenName", "first");
+        model.replace("active", true);
+        model.replace("name.familyName", "last");
+        model.replace("name.givenName", "first2");
+
+        model.compact();
+
+        // Not merged into the replace of name, because it clears the other sub-attributes
+        assertEquals(3, model.operations.size());
+        assertEquals("active", model.operations.get(0).path);
+        assertEquals(true, model.operations.get(0).value);
+        assertEquals("name.familyName", model.operations.get(1).path);
+        assertEquals("last", model.operations.get(1).value);
+        assertEquals("name.givenName", model.operations.get(2).path);
+        assertEquals("first2", model.operations.get(2).value);
+    }
+
+    @Test
+    void compactMergesAllSubAttributesIntoComplexReplace() {
+        PatchOperationsModel model = new PatchOperationsModel();
+        model.replace("name.formatted", "first last");
+        model.replace("name.givenName", "first");
+        model.replace("active", true);
+        model.replace("name.familyName", "last");
+        model.replace("name.middleName", (String) null);
+        model.replace("name.honorificPrefix", (String) null);
+        model.replace("name.honorificSuffix", (String) null);
+
+        model.compact();
+
+        // The merged replace is at the first sub-attribute
+        assertEquals(2, model.operations.size());
+        PatchOperationsModel.Operation name = model.operations.get(0);
+        assertEquals("replace", name.op);
+        assertEquals("name", name.path);
+        Map<?, ?> value = (Map<?, ?>) name.value;
+        assertEquals(6, value.size());
+        assertEquals("first", value.get("givenName"));
+        assertEquals("last", value.get("familyName"));
+        assertEquals("", value.get("middleName"));
+        assertEquals("active", model.operations.get(1).path);
+    }
+
+    @Test
+    void compactKeepsSubAttributeAfterComplexReplace() {
+        PatchOperationsModel model = new PatchOperationsModel();
+        model.replace("name", (String) null);
+        model.replace("name.givenName", "first");
+
+        model.compact();
+
+        assertEquals(2, model.operations.size());
+        assertEquals("name", model.operations.get(0).path);
+        assertEquals("name.givenName", model.operations.get(1).path);
+    }
+}
@@ -18,14 +18,17 @@ package jp.openstandia.connector.atlassian;
 import jp.openstandia.connector.atlassian.testutil.AbstractTest;
 import org.identityconnectors.framework.api.ConnectorFacade;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
 import org.identityconnectors.framework.common.objects.*;
+import org.identityconnectors.framework.common.objects.filter.ContainsAllValuesFilter;
 import org.identityconnectors.framework.common.objects.filter.FilterBuilder;
 import org.identityconnectors.framework.spi.SearchResultsHandler;
 import org.junit.jupiter.api.Test;
 
 import java.util.*;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 import static jp.openstandia.connector.atlassian.AtlassianGuardUserHandler.USER_OBJECT_CLASS;
 import static jp.openstandia.connector.util.Utils.toZoneDateTimeForISO8601OffsetDateTime;
@@ -212,6 +215,51 @@ class UserTest extends AbstractTest {
         assertTrue(operation.operations.stream().anyMatch(op -> op.path.equals("active") && op.value.equals(active)));
     }
 
+    @Test
+    void updateUserSkipUnchanged() {
+        configuration.setSkipUnchangedUpdatesEnabled(true);
+        ConnectorFacade connector = newFacade(configuration);
+        mockClient.init("mock", configuration, null);
+
+        // Given
+        String userId = "12345";
+        String userName = "foo";
+
+        mockClient.getUserByUid = ((u) -> {
+            AtlassianGuardUserModel current = new AtlassianGuardUserModel();
+            current.id = userId;
+            current.userName = userName;
+            current.displayName = "Foo Bar";
+            current.title = "Engineer";
+            return current;
+        });
+        List<PatchOperationsModel> updated = new ArrayList<>();
+        mockClient.patchUser = ((u, operations) -> {
+            updated.add(operations);
+        });
+
+        // When
+        Set<AttributeDelta> modifications = new HashSet<>();
+        modifications.add(AttributeDeltaBuilder.build("displayName", "Foo Bar"));
+        modifications.add(AttributeDeltaBuilder.build("title", "Manager"));
+        connector.updateDelta(USER_OBJECT_CLASS, new Uid(userId, new Name(userName)), modifications, new OperationOptionsBuilder().build());
+
+        // Then
+        assertEquals(1, updated.size());
+        assertEquals(1, updated.get(0).operations.size());
+        assertEquals("title", updated.get(0).operations.get(0).path);
+        assertEquals("Manager", updated.get(0).operations.get(0).value);
+
+        // When
+        modifications = new HashSet<>();
+        modifications.add(AttributeDeltaBuilder.build("displayName", "Foo Bar"));
+        connector.updateDelta(USER_OBJECT_CLASS, new Uid(userId, new Name(userName)), modifications, new OperationOptionsBuilder().build());
+
+        // Then
+        assertEquals(1, updated.size(), "The PATCH should be skipped");
+        assertEquals(1, mockClient.getMetrics().get("patch.skipped"));
+    }
+
     @Test
     void updateUserWithNoValues() {
         ConnectorFacade connector = newFacade(configuration);
@@ -535,6 +583,92 @@ class UserTest extends AbstractTest {
         assertEquals(1, targetOffset.get());
     }
 
+    @Test
+    void getUsersWithAttributesToGet() {
+        // Given
+        String userId = "12345";
+        String userName = "foo";
+        String email = "foo@example.com";
+        String formatted = "Foo Bar";
+        String createdDate = "2024-11-14T05:56:39.79755Z";
+        String updatedDate = "2024-11-14T05:56:40.212208Z";
+        String body = "{\"schemas\":[\"urn:ietf:params:scim:api:messages:2.0:ListResponse\"]," +
+                "\"totalResults\":1,\"startIndex\":1,\"itemsPerPage\":1,\"Resources\":[{" +
+                "\"id\":\"" + userId + "\",\"userName\":\"" + userName + "\"," +
+                "\"name\":{\"formatted\":\"" + formatted + "\",\"givenName\":\"Foo\"}," +
+                "\"active\":false,\"timezone\":\"Asia/Tokyo\"," +
+                "\"emails\":[{\"value\":\"bar@example.com\",\"primary\":false},{\"value\":\"" + email + "\",\"primary\":true}]," +
+                "\"phoneNumbers\":[{\"value\":\"000-0000-0000\",\"type\":\"work\",\"primary\":true}]," +
+                "\"groups\":[{\"value\":\"d138e7b8-fd26-45b2-bff9-34d11b29aff1\",\"type\":\"Group\"}]," +
+                "\"meta\":{\"resourceType\":\"User\",\"created\":\"" + createdDate + "\",\"lastModified\":\"" + updatedDate + "\"}" +
+                "}]}";
+
+        mockClient.getUsersBody = ((size, offset) -> body);
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        OperationOptions options = new OperationOptionsBuilder()
+                .setReturnDefaultAttributes(false)
+                .setAttributesToGet("primaryEmail", "active", "name.formatted", "meta.created", "meta.lastModified")
+                .setPagedResultsOffset(1)
+                .setPageSize(20)
+                .build();
+        connector.search(USER_OBJECT_CLASS, null, handler, options);
+
+        // Then
+        assertEquals(1, results.size());
+        ConnectorObject result = results.get(0);
+        assertEquals(userId, result.getUid().getUidValue());
+        assertEquals(userName, result.getName().getNameValue());
+        assertEquals(email, singleAttr(result, "primaryEmail"));
+        assertEquals(false, singleAttr(result, "active"));
+        assertEquals(formatted, singleAttr(result, "name.formatted"));
+        assertEquals(toZoneDateTimeForISO8601OffsetDateTime(createdDate), singleAttr(result, "meta.created"));
+        assertEquals(toZoneDateTimeForISO8601OffsetDateTime(updatedDate), singleAttr(result, "meta.lastModified"));
+
+        // Only the requested attributes are bound from the response
+        assertEquals(new HashSet<>(Arrays.asList(Uid.NAME, Name.NAME, "primaryEmail", "active", "name.formatted", "meta.created", "meta.lastModified")),
+                result.getAttributes().stream().map(Attribute::getName).collect(Collectors.toSet()));
+    }
+
+    @Test
+    void getUsersWithAllAttributes() {
+        // Given
+        String body = "{\"totalResults\":1,\"Resources\":[{" +
+                "\"id\":\"12345\",\"userName\":\"foo\",\"unknown\":{\"nested\":[1,{\"a\":null}]}," +
+                "\"name\":{\"formatted\":\"Foo Bar\",\"givenName\":\"Foo\",\"familyName\":null}," +
+                "\"active\":true,\"timezone\":\"Asia/Tokyo\"," +
+                "\"emails\":[{\"value\":\"bar@example.com\"},{\"value\":\"foo@example.com\",\"primary\":true}]," +
+                "\"phoneNumbers\":[{\"value\":\"000-0000-0000\",\"type\":\"work\",\"primary\":true}]," +
+                "\"groups\":[{\"value\":\"d138e7b8-fd26-45b2-bff9-34d11b29aff1\",\"type\":\"Group\"},{\"value\":\"other\",\"type\":\"Other\"}]" +
+                "}]}";
+        mockClient.getUsersBody = ((size, offset) -> body);
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        connector.search(USER_OBJECT_CLASS, null, results::add, defaultSearchOperation("groups"));
+
+        // Then
+        assertEquals(1, results.size());
+        ConnectorObject result = results.get(0);
+        assertEquals("12345", result.getUid().getUidValue());
+        assertEquals("foo", result.getName().getNameValue());
+        assertEquals(true, singleAttr(result, OperationalAttributes.ENABLE_NAME));
+        assertEquals(true, singleAttr(result, "active"));
+        assertEquals("Foo Bar", singleAttr(result, "name.formatted"));
+        assertEquals("Foo", singleAttr(result, "name.givenName"));
+        assertNull(result.getAttributeByName("name.familyName"));
+        assertEquals("Asia/Tokyo", singleAttr(result, "timezone"));
+        assertEquals("foo@example.com", singleAttr(result, "primaryEmail"));
+        assertEquals("000-0000-0000/work", singleAttr(result, "primaryPhoneNumber"));
+        assertEquals(Collections.singletonList("d138e7b8-fd26-45b2-bff9-34d11b29aff1"), result.getAttributeByName("groups").getValue());
+        assertNull(result.getAttributeByName("meta.created"));
+    }
+
     @Test
     void getUsersWithGroups() {
         // Given
@@ -790,6 +924,285 @@ class UserTest extends AbstractTest {
         assertNull(searchResult.get().getPagedResultsCookie());
     }
 
+    @Test
+    void getUsersByFilter() {
+        // Given
+        AtomicReference<String> targetFilter = new AtomicReference<>();
+        mockClient.getUsersByFilter = ((filter, h) -> {
+            targetFilter.set(filter);
+
+            AtlassianGuardUserModel result = new AtlassianGuardUserModel();
+            result.id = "1";
+            result.userName = "a";
+            result.displayName = "Foo Bar";
+            result.emails = new ArrayList<>();
+            AtlassianGuardUserModel.Email email = new AtlassianGuardUserModel.Email();
+            email.value = "foo@example.com";
+            email.primary = true;
+            result.emails.add(email);
+            h.handle(result);
+
+            return 1;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.and(
+                FilterBuilder.startsWith(AttributeBuilder.build("displayName", "Foo")),
+                FilterBuilder.equalTo(AttributeBuilder.build("primaryEmail", "foo@example.com"))
+        ), handler, defaultSearchOperation());
+
+        // Then
+        assertEquals("(displayName sw \"Foo\") and (emails.value eq \"foo@example.com\")", targetFilter.get());
+        assertEquals(1, results.size());
+        assertEquals("1", results.get(0).getUid().getUidValue());
+    }
+
+    @Test
+    void getUsersByFilterButRejected() {
+        // Given
+        mockClient.getUsersByFilter = ((filter, h) -> {
+            throw new InvalidAttributeValueException("Unsupported filter");
+        });
+        mockClient.getUsers = ((h, size, offset) -> {
+            AtlassianGuardUserModel result = new AtlassianGuardUserModel();
+            result.id = "1";
+            result.userName = "a";
+            result.title = "Engineer";
+            h.handle(result);
+
+            result = new AtlassianGuardUserModel();
+            result.id = "2";
+            result.userName = "b";
+            result.title = "Manager";
+            h.handle(result);
+
+            return 2;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.equalTo(AttributeBuilder.build("title", "Manager")), handler, defaultSearchOperation());
+
+        // Then
+        assertEquals(1, results.size());
+        assertEquals("2", results.get(0).getUid().getUidValue());
+    }
+
+    @Test
+    void getUsersByUids() {
+        // Given
+        List<String> targetFilters = new ArrayList<>();
+        mockClient.getUsersByFilter = ((filter, h) -> {
+            targetFilters.add(filter);
+
+            for (String id : Arrays.asList("1", "2", "3")) {
+                AtlassianGuardUserModel result = new AtlassianGuardUserModel();
+                result.id = id;
+                result.userName = "user" + id;
+                h.handle(result);
+            }
+
+            return 3;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.or(
+                FilterBuilder.or(
+                        FilterBuilder.equalTo(new Uid("1")),
+                        FilterBuilder.equalTo(new Uid("2"))
+                ),
+                FilterBuilder.equalTo(new Uid("3"))
+        ), handler, defaultSearchOperation());
+
+        // Then
+        assertEquals(1, targetFilters.size());
+        assertEquals("id eq \"1\" or id eq \"2\" or id eq \"3\"", targetFilters.get(0));
+        assertEquals(3, results.size());
+    }
+
+    @Test
+    void getUsersByUidsButRejectedStopsLookup() {
+        // Given
+        mockClient.getUsersByFilter = ((filter, h) -> {
+            throw new InvalidAttributeValueException("Unsupported filter");
+        });
+        List<Uid> lookedUp = new ArrayList<>();
+        mockClient.getUserByUid = ((uid) -> {
+            lookedUp.add(uid);
+            AtlassianGuardUserModel result = new AtlassianGuardUserModel();
+            result.id = uid.getUidValue();
+            result.userName = "user" + uid.getUidValue();
+            return result;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return false;
+        };
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.or(
+                FilterBuilder.or(
+                        FilterBuilder.equalTo(new Uid("1")),
+                        FilterBuilder.equalTo(new Uid("2"))
+                ),
+                FilterBuilder.equalTo(new Uid("3"))
+        ), handler, defaultSearchOperation());
+
+        // Then
+        assertEquals(1, results.size());
+        assertEquals(1, lookedUp.size(), "The lookups must stop after the handler returned false");
+        assertEquals("1", lookedUp.get(0).getUidValue());
+    }
+
+    @Test
+    void getUsersByGroups() {
+        // Given
+        mockClient.getGroupByUid = ((uid) -> {
+            AtlassianGuardGroupModel group = new AtlassianGuardGroupModel();
+            group.id = uid.getUidValue();
+            group.displayName = "g1";
+            group.addMembers(Arrays.asList("user001", "user002"));
+            return group;
+        });
+        AtomicReference<String> targetFilter = new AtomicReference<>();
+        mockClient.getUsersByFilter = ((filter, h) -> {
+            targetFilter.set(filter);
+
+            for (String id : Arrays.asList("user001", "user002")) {
+                AtlassianGuardUserModel result = new AtlassianGuardUserModel();
+                result.id = id;
+                result.userName = id;
+                h.handle(result);
+            }
+
+            return 2;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        connector.search(USER_OBJECT_CLASS, new ContainsAllValuesFilter(AttributeBuilder.build("groups", Collections.singletonList("g1"))),
+                handler, defaultSearchOperation());
+
+        // Then
+        assertEquals("id eq \"user001\" or id eq \"user002\"", targetFilter.get());
+        assertEquals(2, results.size());
+        assertEquals("user001", results.get(0).getUid().getUidValue());
+        assertEquals("user002", results.get(1).getUid().getUidValue());
+    }
+
+    @Test
+    void getUsersByGroupsWithAttributesToGet() {
+        // Given
+        mockClient.getGroupByUid = ((uid) -> {
+            AtlassianGuardGroupModel group = new AtlassianGuardGroupModel();
+            group.id = uid.getUidValue();
+            group.displayName = "g1";
+            group.addMembers(Collections.singletonList("user001"));
+            return group;
+        });
+        mockClient.getUsersByFilter = ((filter, h) -> {
+            AtlassianGuardUserModel result = new AtlassianGuardUserModel();
+            result.id = "user001";
+            result.userName = "user001";
+            result.title = "Engineer";
+            AtlassianGuardUserModel.Group group = new AtlassianGuardUserModel.Group();
+            group.value = "g1";
+            group.type = "Group";
+            result.groups = Collections.singletonList(group);
+            h.handle(result);
+            return 1;
+        });
+
+        // When
+        List<ConnectorObject> results = new ArrayList<>();
+        ResultsHandler handler = connectorObject -> {
+            results.add(connectorObject);
+            return true;
+        };
+        OperationOptions options = new OperationOptionsBuilder()
+                .setReturnDefaultAttributes(false)
+                .setAttributesToGet("title")
+                .setPagedResultsOffset(1)
+                .setPageSize(20)
+                .build();
+        connector.search(USER_OBJECT_CLASS, new ContainsAllValuesFilter(AttributeBuilder.build("groups", Collections.singletonList("g1"))),
+                handler, options);
+
+        // Then
+        assertEquals(1, results.size());
+        assertEquals("Engineer", singleAttr(results.get(0), "title"));
+        assertNull(results.get(0).getAttributeByName("groups"), "The groups aren't requested");
+        assertFalse(mockClient.getFetchFieldsSet().contains("groups"));
+    }
+
+    @Test
+    void getUsersByGroupsWithEqualsFilter() {
+        // Given
+        mockClient.getGroupByUid = ((uid) -> {
+            AtlassianGuardGroupModel group = new AtlassianGuardGroupModel();
+            group.id = uid.getUidValue();
+            group.displayName = uid.getUidValue();
+            group.addMembers(Arrays.asList("user001", "user002"));
+            return group;
+        });
+        AtomicReference<String> targetFilter = new AtomicReference<>();
+        mockClient.getUsersByFilter = ((filter, h) -> {
+            targetFilter.set(filter);
+            return 0;
+        });
+
+        // When
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.equalTo(AttributeBuilder.build("groups", "g1")),
+                connectorObject -> true, defaultSearchOperation());
+
+        // Then
+        // Same as ContainsAllValuesFilter, the members of the group
+        assertEquals("id eq \"user001\" or id eq \"user002\"", targetFilter.get());
+    }
+
+    @Test
+    void getUsersByGroupsWithMultipleValuesEqualsFilter() {
+        // Given
+        AtomicReference<Uid> readGroup = new AtomicReference<>();
+        mockClient.getGroupByUid = ((uid) -> {
+            readGroup.set(uid);
+            return null;
+        });
+        AtomicReference<Boolean> fullScan = new AtomicReference<>(false);
+        mockClient.getUsers = ((h, size, offset) -> {
+            fullScan.set(true);
+            return 0;
+        });
+
+        // When
+        connector.search(USER_OBJECT_CLASS, FilterBuilder.equalTo(AttributeBuilder.build("groups", "g1", "g2")),
+                connectorObject -> true, defaultSearchOperation());
+
+        // Then
+        // The exact equality of the multiple groups isn't translated, the framework evaluates it
+        assertNull(readGroup.get());
+        assertTrue(fullScan.get());
+    }
+
     @Test
     void deleteUser() {
         // Given
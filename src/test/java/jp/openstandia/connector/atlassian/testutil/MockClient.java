@@ -15,17 +15,27 @@
  */
 package jp.openstandia.connector.atlassian.testutil;
 
+import com.fasterxml.jackson.core.JsonParser;
 import jp.openstandia.connector.atlassian.AtlassianGuardGroupModel;
 import jp.openstandia.connector.atlassian.AtlassianGuardRESTClient;
 import jp.openstandia.connector.atlassian.AtlassianGuardUserModel;
 import jp.openstandia.connector.atlassian.PatchOperationsModel;
 import jp.openstandia.connector.util.QueryHandler;
+import jp.openstandia.connector.util.ResourceBinder;
+import okhttp3.MediaType;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
 import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
 import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.ConnectorObject;
 import org.identityconnectors.framework.common.objects.Name;
 import org.identityconnectors.framework.common.objects.OperationOptions;
 import org.identityconnectors.framework.common.objects.Uid;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.Set;
 
 public class MockClient extends AtlassianGuardRESTClient {
@@ -38,6 +48,9 @@ public class MockClient extends AtlassianGuardRESTClient {
     public MockFunction<Uid, AtlassianGuardUserModel> getUserByUid;
     public MockFunction<Name, AtlassianGuardUserModel> getUserByName;
     public MockTripleFunction<QueryHandler<AtlassianGuardUserModel>, Integer, Integer, Integer> getUsers;
+    public MockBiFunction<String, QueryHandler<AtlassianGuardUserModel>, Integer> getUsersByFilter;
+    // JSON list response of the search instead of getUsers, for binding the response as the REST client does
+    public MockBiFunction<Integer, Integer, String> getUsersBody;
     public MockConsumer<Uid> deleteUser;
 
     // Group
@@ -47,10 +60,16 @@ public class MockClient extends AtlassianGuardRESTClient {
     public MockFunction<Uid, AtlassianGuardGroupModel> getGroupByUid;
     public MockFunction<Name, AtlassianGuardGroupModel> getGroupByName;
     public MockTripleFunction<QueryHandler<AtlassianGuardGroupModel>, Integer, Integer, Integer> getGroups;
+    public MockBiFunction<String, QueryHandler<AtlassianGuardGroupModel>, Integer> getGroupsByFilter;
+    // JSON list response of the search instead of getGroups, for binding the response as the REST client does
+    public MockBiFunction<Integer, Integer, String> getGroupsBody;
     public MockConsumer<Uid> deleteGroup;
 
     public boolean closed = false;
 
+    // Fetch fields of the last search
+    private Set<String> fetchFieldsSet;
+
     public void init() {
         INSTANCE = new MockClient();
     }
@@ -95,9 +114,29 @@ public class MockClient extends AtlassianGuardRESTClient {
 
     @Override
     public int getUsers(QueryHandler<AtlassianGuardUserModel> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        this.fetchFieldsSet = fetchFieldsSet;
         return getUsers.apply(handler, pageSize, pageOffset);
     }
 
+    @Override
+    public int getUsers(QueryHandler<AtlassianGuardUserModel> handler, OperationOptions options, Set<String> fetchFieldsSet, String filter, int pageSize, int pageOffset) {
+        this.fetchFieldsSet = fetchFieldsSet;
+        if (filter == null) {
+            return getUsers.apply(handler, pageSize, pageOffset);
+        }
+        return getUsersByFilter.apply(filter, handler);
+    }
+
+    @Override
+    public int getUserObjects(ResourceBinder.Binding binding, QueryHandler<ConnectorObject> handler, OperationOptions options, Set<String> fetchFieldsSet,
+                              String filter, int pageSize, int pageOffset) {
+        this.fetchFieldsSet = fetchFieldsSet;
+        if (filter == null && getUsersBody != null) {
+            return handleListBody(getUsersBody.apply(pageSize, pageOffset), binding, handler);
+        }
+        return getUsers((u) -> handler.handle(bind(binding, u)), options, fetchFieldsSet, filter, pageSize, pageOffset);
+    }
+
     @Override
     public void deleteUser(Uid uid) {
         deleteUser.accept(uid);
@@ -127,14 +166,79 @@ public class MockClient extends AtlassianGuardRESTClient {
 
     @Override
     public int getGroups(QueryHandler<AtlassianGuardGroupModel> handler, OperationOptions options, Set<String> fetchFieldsSet, int pageSize, int pageOffset) {
+        this.fetchFieldsSet = fetchFieldsSet;
         return getGroups.apply(handler, pageSize, pageOffset);
     }
 
+    @Override
+    public int getGroups(QueryHandler<AtlassianGuardGroupModel> handler, OperationOptions options, Set<String> fetchFieldsSet, String filter, int pageSize, int pageOffset) {
+        this.fetchFieldsSet = fetchFieldsSet;
+        if (filter == null) {
+            return getGroups.apply(handler, pageSize, pageOffset);
+        }
+        return getGroupsByFilter.apply(filter, handler);
+    }
+
+    @Override
+    public int getGroupObjects(ResourceBinder.Binding binding, QueryHandler<ConnectorObject> handler, OperationOptions options, Set<String> fetchFieldsSet,
+                               String filter, int pageSize, int pageOffset) {
+        this.fetchFieldsSet = fetchFieldsSet;
+        if (filter == null && getGroupsBody != null) {
+            return handleListBody(getGroupsBody.apply(pageSize, pageOffset), binding, handler);
+        }
+        return getGroups((g) -> handler.handle(bind(binding, g)), options, fetchFieldsSet, filter, pageSize, pageOffset);
+    }
+
     @Override
     public void deleteGroup(Uid uid) {
         deleteGroup.accept(uid);
     }
 
+    // List response
+
+    /**
+     * Read the SCIM list response by the reader, as the REST client does.
+     *
+     * @param body    JSON of the list response
+     * @param reader
+     * @param handler
+     * @return total results
+     */
+    private <T> int handleListBody(String body, ResourceBinder.ValueReader<T> reader, QueryHandler<T> handler) {
+        Response response = new Response.Builder()
+                .request(new Request.Builder().url("https://example.com/scim").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(200)
+                .message("OK")
+                .body(ResponseBody.create(body, MediaType.get("application/scim+json")))
+                .build();
+        try (Response r = response) {
+            return readListBody(r, reader, handler).totalResults;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Bind the model of the mock to the connector object through JSON, as the binding reads the list response.
+     *
+     * @param binding
+     * @param resource
+     * @return
+     */
+    private static ConnectorObject bind(ResourceBinder.Binding binding, Object resource) {
+        try (JsonParser parser = MAPPER.getFactory().createParser(MAPPER.writeValueAsBytes(resource))) {
+            parser.nextToken();
+            return binding.read(parser);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    public Set<String> getFetchFieldsSet() {
+        return fetchFieldsSet;
+    }
+
     // Mock Interface
 
     @FunctionalInterface
@@ -0,0 +1,294 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import jp.openstandia.connector.atlassian.AtlassianGuardConfiguration;
+import jp.openstandia.connector.atlassian.AtlassianGuardRESTClient;
+import okhttp3.OkHttpClient;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.mockwebserver.SocketPolicy;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.AlreadyExistsException;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.identityconnectors.framework.common.exceptions.InvalidAttributeValueException;
+import org.identityconnectors.framework.common.exceptions.UnknownUidException;
+import org.identityconnectors.framework.common.objects.ObjectClass;
+import org.identityconnectors.framework.common.objects.Uid;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the asynchronous API of {@link AbstractRESTClient}. The futures are awaited by {@link AbstractRESTClient#await(CompletableFuture)}
+ * to check the exceptions thrown to the connector.
+ */
+class AsyncCallTest {
+
+    private static final ObjectClass OBJECT_CLASS = new ObjectClass("User");
+    private static final Uid UID = new Uid("1");
+
+    private MockWebServer server;
+    private OkHttpClient httpClient;
+    private AbstractRESTClient<AtlassianGuardConfiguration> client;
+    private String url;
+
+    @BeforeEach
+    void before() throws IOException {
+        server = new MockWebServer();
+        server.start();
+
+        // The connection failure is retried only by the retry policy
+        httpClient = new OkHttpClient.Builder()
+                .retryOnConnectionFailure(false)
+                .build();
+        init(0);
+    }
+
+    private void init(int retryCount) {
+        if (client != null) {
+            client.close();
+        }
+        AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+        conf.setBaseURL(server.url("/scim").toString());
+        conf.setToken(new GuardedString("dummy".toCharArray()));
+        conf.setRetryCount(retryCount);
+        conf.setRetryInitialBackoffInMilliseconds(10);
+        conf.setRetryMaxBackoffInMilliseconds(10);
+        conf.setRetryMaxElapsedTimeInMilliseconds(0);
+        conf.setRetryMethods(new String[]{"GET", "DELETE"});
+
+        AtlassianGuardRESTClient atlassianClient = new AtlassianGuardRESTClient();
+        atlassianClient.init("test", conf, httpClient);
+        client = atlassianClient;
+        url = conf.getBaseURL() + "/Users";
+    }
+
+    @AfterEach
+    void after() throws IOException {
+        client.close();
+        httpClient.dispatcher().executorService().shutdown();
+        httpClient.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    private RecordedRequest takeRequest() throws InterruptedException {
+        return server.takeRequest(5, TimeUnit.SECONDS);
+    }
+
+    private static MockResponse error(int code) {
+        return new MockResponse().setResponseCode(code)
+                .setBody("{\"status\":\"" + code + "\"}");
+    }
+
+    @Test
+    void create() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(201).setBody("{\"id\":\"1\"}"));
+
+        // When
+        String body = AbstractRESTClient.await(client.callCreateAsync(OBJECT_CLASS, url, Collections.singletonMap("userName", "foo"), "foo",
+                (response) -> {
+                    try {
+                        return response.body().string();
+                    } catch (IOException e) {
+                        throw new ConnectorIOException(e);
+                    }
+                }));
+
+        // Then
+        assertEquals("{\"id\":\"1\"}", body);
+        RecordedRequest request = takeRequest();
+        assertEquals("POST", request.getMethod());
+        assertEquals("{\"userName\":\"foo\"}", request.getBody().readUtf8());
+    }
+
+    @Test
+    void createError() {
+        server.enqueue(error(409));
+        server.enqueue(error(400));
+        server.enqueue(error(403));
+
+        assertThrows(AlreadyExistsException.class, () -> AbstractRESTClient.await(create("foo")));
+        assertThrows(InvalidAttributeValueException.class, () -> AbstractRESTClient.await(create("foo")));
+        assertThrows(ConnectorIOException.class, () -> AbstractRESTClient.await(create("foo")));
+    }
+
+    private CompletableFuture<Void> create(String name) {
+        return client.callCreateAsync(OBJECT_CLASS, url, Collections.singletonMap("userName", name), name, (response) -> null);
+    }
+
+    @Test
+    void patch() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(204));
+
+        // When
+        assertNull(AbstractRESTClient.await(client.callPatchAsync(OBJECT_CLASS, url + "/1", UID, Collections.emptyMap())));
+
+        // Then
+        RecordedRequest request = takeRequest();
+        assertEquals("PATCH", request.getMethod());
+        assertEquals("/scim/Users/1", request.getPath());
+    }
+
+    @Test
+    void patchError() {
+        server.enqueue(error(404));
+        server.enqueue(error(400));
+
+        assertThrows(UnknownUidException.class,
+                () -> AbstractRESTClient.await(client.callPatchAsync(OBJECT_CLASS, url + "/1", UID, Collections.emptyMap())));
+        assertThrows(InvalidAttributeValueException.class,
+                () -> AbstractRESTClient.await(client.callPatchAsync(OBJECT_CLASS, url + "/1", UID, Collections.emptyMap())));
+    }
+
+    @Test
+    void delete() throws InterruptedException {
+        server.enqueue(new MockResponse().setResponseCode(204));
+        server.enqueue(error(404));
+
+        // When
+        assertNull(AbstractRESTClient.await(client.callDeleteAsync(OBJECT_CLASS, url + "/1", UID, null)));
+
+        // Then
+        assertEquals("DELETE", takeRequest().getMethod());
+        assertThrows(UnknownUidException.class,
+                () -> AbstractRESTClient.await(client.callDeleteAsync(OBJECT_CLASS, url + "/1", UID, null)));
+    }
+
+    @Test
+    void read() throws IOException {
+        server.enqueue(new MockResponse().setBody("{\"id\":\"1\"}"));
+        server.enqueue(error(404));
+        server.enqueue(error(400));
+
+        // When
+        try (Response response = AbstractRESTClient.await(client.callReadAsync(OBJECT_CLASS, url, UID))) {
+            // Then
+            assertEquals("{\"id\":\"1\"}", response.body().string());
+        }
+
+        // Not found is null for the search operation
+        assertNull(AbstractRESTClient.await(client.callReadAsync(OBJECT_CLASS, url, UID)));
+        assertThrows(InvalidAttributeValueException.class,
+                () -> AbstractRESTClient.await(client.callReadAsync(OBJECT_CLASS, url, UID)));
+    }
+
+    @Test
+    void search() throws IOException, InterruptedException {
+        server.enqueue(new MockResponse().setBody("{\"totalResults\":0}"));
+        server.enqueue(error(400));
+        server.enqueue(error(404));
+
+        // When
+        try (Response response = AbstractRESTClient.await(client.callSearchAsync(OBJECT_CLASS, url,
+                Collections.singletonMap("filter", "userName eq \"foo\"")))) {
+            // Then
+            assertEquals("{\"totalResults\":0}", response.body().string());
+        }
+        assertEquals("userName eq \"foo\"", takeRequest().getRequestUrl().queryParameter("filter"));
+
+        assertThrows(InvalidAttributeValueException.class,
+                () -> AbstractRESTClient.await(client.callSearchAsync(OBJECT_CLASS, url, null)));
+        assertThrows(ConnectorIOException.class,
+                () -> AbstractRESTClient.await(client.callSearchAsync(OBJECT_CLASS, url, null)));
+    }
+
+    @Test
+    void serverErrorWithoutRetry() {
+        server.enqueue(error(503));
+
+        ConnectorIOException e = assertThrows(ConnectorIOException.class,
+                () -> AbstractRESTClient.await(client.callReadAsync(OBJECT_CLASS, url, UID)));
+
+        assertTrue(e.getMessage().contains("server error"), e.getMessage());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    void ioErrorWithoutRetry() {
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+
+        ConnectorIOException e = assertThrows(ConnectorIOException.class,
+                () -> AbstractRESTClient.await(client.callReadAsync(OBJECT_CLASS, url, UID)));
+
+        assertEquals("Failed to read test User: 1", e.getMessage());
+        assertTrue(e.getCause() instanceof IOException);
+    }
+
+    @Test
+    void retryServerError() throws IOException {
+        init(2);
+        server.enqueue(error(503));
+        server.enqueue(error(500));
+        server.enqueue(new MockResponse().setBody("{\"id\":\"1\"}"));
+
+        // When
+        try (Response response = AbstractRESTClient.await(client.callReadAsync(OBJECT_CLASS, url, UID))) {
+            // Then
+            assertEquals("{\"id\":\"1\"}", response.body().string());
+        }
+        assertEquals(3, server.getRequestCount());
+        assertEquals(2, client.getMetrics().get("retry.GET"));
+    }
+
+    @Test
+    void retryIOError() {
+        init(1);
+        server.enqueue(new MockResponse().setSocketPolicy(SocketPolicy.DISCONNECT_AT_START));
+        server.enqueue(new MockResponse().setResponseCode(204));
+
+        // When
+        assertNull(AbstractRESTClient.await(client.callDeleteAsync(OBJECT_CLASS, url + "/1", UID, null)));
+
+        // Then
+        assertEquals(1, client.getMetrics().get("retry.DELETE"));
+    }
+
+    @Test
+    void giveUpRetry() {
+        init(1);
+        server.enqueue(error(503));
+        server.enqueue(error(503));
+        server.enqueue(new MockResponse().setBody("{\"id\":\"1\"}"));
+
+        assertThrows(ConnectorIOException.class,
+                () -> AbstractRESTClient.await(client.callReadAsync(OBJECT_CLASS, url, UID)));
+
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    void noRetryForNonRetryableMethod() {
+        init(2);
+        server.enqueue(error(503));
+        server.enqueue(new MockResponse().setResponseCode(204));
+
+        assertThrows(ConnectorIOException.class,
+                () -> AbstractRESTClient.await(client.callPatchAsync(OBJECT_CLASS, url + "/1", UID, Collections.emptyMap())));
+
+        assertEquals(1, server.getRequestCount());
+        assertEquals(0, client.getMetrics().get("retry.PATCH"));
+    }
+}
@@ -0,0 +1,165 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import org.identityconnectors.framework.common.objects.*;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.time.ZonedDateTime;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.identityconnectors.framework.common.objects.AttributeInfo.Flags.*;
+
+/**
+ * Benchmark of the conversion between the resource and the connector object by {@link SchemaDefinition}.
+ * The attributes cover the codecs of string, boolean, date-time string and multi-valued UUID.
+ * <p>
+ * Run by {@code mvn test-compile exec:java -Dexec.classpathScope=test -Dexec.mainClass=jp.openstandia.connector.util.AttributeMapperBenchmark}.
+ *
+ * @author Hiroyuki Wada
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AttributeMapperBenchmark {
+
+    public static class Resource {
+        public String id;
+        public String userName;
+        public String displayName;
+        public String title;
+        public Boolean active;
+        public String created;
+        public List<String> groups;
+    }
+
+    private SchemaDefinition schema;
+    private SchemaDefinition.ProjectionPlan plan;
+    private Resource resource;
+    private Set<Attribute> attributes;
+    private Set<AttributeDelta> deltas;
+
+    @Setup
+    public void setup() {
+        SchemaDefinition.Builder<Resource, Resource, Resource> sb = SchemaDefinition.newBuilder(new ObjectClass("User"), Resource.class, Resource.class);
+        sb.addUid("userId",
+                SchemaDefinition.Types.UUID,
+                null,
+                (source) -> source.id,
+                "id",
+                REQUIRED, NOT_CREATABLE, NOT_UPDATEABLE
+        );
+        sb.addName("userName",
+                SchemaDefinition.Types.STRING_CASE_IGNORE,
+                (source, dest) -> dest.userName = source,
+                (source) -> source.userName,
+                null,
+                REQUIRED
+        );
+        sb.add("displayName",
+                SchemaDefinition.Types.STRING,
+                (source, dest) -> dest.displayName = source,
+                (source) -> source.displayName,
+                null
+        );
+        sb.add("title",
+                SchemaDefinition.Types.STRING,
+                (source, dest) -> dest.title = source,
+                (source) -> source.title,
+                null
+        );
+        sb.add("active",
+                SchemaDefinition.Types.BOOLEAN,
+                (source, dest) -> dest.active = source,
+                (source) -> source.active,
+                null
+        );
+        sb.add("created",
+                SchemaDefinition.Types.DATETIME_STRING,
+                (source, dest) -> dest.created = source,
+                (source) -> source.created,
+                null
+        );
+        sb.addAsMultiple("groups",
+                SchemaDefinition.Types.UUID,
+                (source, dest) -> dest.groups = source,
+                (source, dest) -> dest.groups = source,
+                (source, dest) -> dest.groups.removeAll(source),
+                (source) -> source.groups != null ? source.groups.stream() : null,
+                null
+        );
+        schema = sb.build();
+        plan = schema.compileProjectionPlan(new HashSet<>(Arrays.asList(
+                "displayName", "title", "active", "created", "groups")), false);
+
+        resource = new Resource();
+        resource.id = "6b4d5a3e-7a8c-4a6f-9a3c-2f1d0e9b8c7a";
+        resource.userName = "foo@example.com";
+        resource.displayName = "Foo Bar";
+        resource.title = "Engineer";
+        resource.active = true;
+        resource.created = "2024-11-14T05:56:39.79755Z";
+        resource.groups = IntStream.range(0, 10)
+                .mapToObj(i -> "d138e7b8-fd26-45b2-bff9-34d11b29af" + (10 + i))
+                .collect(Collectors.toList());
+
+        attributes = new HashSet<>();
+        attributes.add(new Name("foo@example.com"));
+        attributes.add(AttributeBuilder.build("displayName", "Foo Bar"));
+        attributes.add(AttributeBuilder.build("title", "Engineer"));
+        attributes.add(AttributeBuilder.build("active", true));
+        attributes.add(AttributeBuilder.build("created", ZonedDateTime.parse("2024-11-14T05:56:39.79755Z")));
+        attributes.add(AttributeBuilder.build("groups", new ArrayList<Object>(resource.groups)));
+
+        deltas = new HashSet<>();
+        deltas.add(AttributeDeltaBuilder.build("displayName", "Foo Baz"));
+        deltas.add(AttributeDeltaBuilder.build("active", false));
+        deltas.add(AttributeDeltaBuilder.build("groups", new ArrayList<Object>(resource.groups.subList(0, 2)), null));
+    }
+
+    @Benchmark
+    public ConnectorObject read() {
+        return schema.toConnectorObjectBuilder(resource, plan).build();
+    }
+
+    @Benchmark
+    public Resource create() {
+        return schema.apply(attributes, new Resource());
+    }
+
+    @Benchmark
+    public Resource update() {
+        Resource dest = new Resource();
+        dest.groups = new ArrayList<>();
+        schema.applyDelta(deltas, dest);
+        return dest;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(AttributeMapperBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
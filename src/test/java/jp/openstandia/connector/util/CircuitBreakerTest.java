@@ -0,0 +1,209 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import jp.openstandia.connector.atlassian.AtlassianGuardConfiguration;
+import jp.openstandia.connector.atlassian.AtlassianGuardRESTClient;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConnectorIOException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    private final AtomicLong now = new AtomicLong();
+
+    private CircuitBreaker circuitBreaker(int threshold, long openMillis) {
+        return new CircuitBreaker("test", threshold, openMillis, now::get);
+    }
+
+    private void advance(long millis) {
+        now.addAndGet(TimeUnit.MILLISECONDS.toNanos(millis));
+    }
+
+    @Test
+    void openWhenFailuresReachThreshold() {
+        CircuitBreaker cb = circuitBreaker(3, 1000);
+
+        assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+        cb.onFailure();
+        cb.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+        assertEquals(CircuitBreaker.Permit.ALLOW, cb.acquire());
+
+        // A success resets the consecutive failures
+        cb.onSuccess();
+        cb.onFailure();
+        cb.onFailure();
+        assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+
+        cb.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+        assertEquals(CircuitBreaker.Permit.REJECT, cb.acquire());
+    }
+
+    @Test
+    void halfOpenAfterOpenDuration() {
+        CircuitBreaker cb = circuitBreaker(1, 1000);
+        cb.onFailure();
+        assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+
+        advance(999);
+        assertEquals(CircuitBreaker.Permit.REJECT, cb.acquire());
+
+        advance(1);
+        assertEquals(CircuitBreaker.Permit.PROBE, cb.acquire());
+        assertEquals(CircuitBreaker.State.HALF_OPEN, cb.getState());
+
+        // Only one probe is allowed
+        assertEquals(CircuitBreaker.Permit.REJECT, cb.acquire());
+    }
+
+    @Test
+    void closeWhenProbeSucceeds() {
+        CircuitBreaker cb = circuitBreaker(1, 1000);
+        cb.onFailure();
+        advance(1000);
+        assertEquals(CircuitBreaker.Permit.PROBE, cb.acquire());
+
+        cb.onSuccess();
+
+        assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+        assertEquals(CircuitBreaker.Permit.ALLOW, cb.acquire());
+    }
+
+    @Test
+    void reopenWhenProbeFails() {
+        CircuitBreaker cb = circuitBreaker(3, 1000);
+        cb.onFailure();
+        cb.onFailure();
+        cb.onFailure();
+        advance(1000);
+        assertEquals(CircuitBreaker.Permit.PROBE, cb.acquire());
+
+        // A single failure reopens it regardless of the threshold
+        cb.onFailure();
+
+        assertEquals(CircuitBreaker.State.OPEN, cb.getState());
+        assertEquals(CircuitBreaker.Permit.REJECT, cb.acquire());
+        advance(999);
+        assertEquals(CircuitBreaker.Permit.REJECT, cb.acquire());
+        advance(1);
+        assertEquals(CircuitBreaker.Permit.PROBE, cb.acquire());
+    }
+
+    @Test
+    void probeAgainWhenProbeIsCancelled() {
+        CircuitBreaker cb = circuitBreaker(1, 1000);
+        cb.onFailure();
+        advance(1000);
+        assertEquals(CircuitBreaker.Permit.PROBE, cb.acquire());
+
+        cb.cancelProbe();
+
+        assertEquals(CircuitBreaker.State.HALF_OPEN, cb.getState());
+        assertEquals(CircuitBreaker.Permit.PROBE, cb.acquire());
+
+        // Cancelling isn't effective after the result is recorded
+        cb.onSuccess();
+        cb.cancelProbe();
+        assertEquals(CircuitBreaker.State.CLOSED, cb.getState());
+    }
+
+    @Test
+    void disabled() {
+        CircuitBreaker cb = CircuitBreaker.disabled();
+
+        for (int i = 0; i < 10; i++) {
+            cb.onFailure();
+        }
+
+        assertFalse(cb.isEnabled());
+        assertEquals(CircuitBreaker.Permit.ALLOW, cb.acquire());
+    }
+
+    @Test
+    void shareByKeyAndEvictWhenReleased() {
+        String key = "https://cb.example.com";
+
+        SharedRegistry.Lease<CircuitBreaker> lease1 = CircuitBreaker.acquire(key, 5, 1000);
+        SharedRegistry.Lease<CircuitBreaker> lease2 = CircuitBreaker.acquire(key, 5, 1000);
+        SharedRegistry.Lease<CircuitBreaker> other = CircuitBreaker.acquire(key, 3, 1000);
+
+        assertSame(lease1.get(), lease2.get());
+        assertNotSame(lease1.get(), other.get());
+        assertEquals(2, CircuitBreaker.getRefCount(key, 5, 1000));
+
+        lease1.release();
+        lease2.release();
+        other.release();
+
+        assertEquals(0, CircuitBreaker.getRefCount(key, 5, 1000));
+        assertEquals(0, CircuitBreaker.getRefCount(key, 3, 1000));
+    }
+
+    @Test
+    void releaseProbeWhenAsyncCallIsCancelled() throws IOException, InterruptedException {
+        try (MockWebServer server = new MockWebServer()) {
+            server.enqueue(new MockResponse().setResponseCode(500));
+            // The probe is still in flight when the call is cancelled
+            server.enqueue(new MockResponse().setResponseCode(200).setHeadersDelay(1, TimeUnit.SECONDS));
+            server.start();
+
+            AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+            conf.setBaseURL(server.url("/scim").toString());
+            conf.setToken(new GuardedString("dummy".toCharArray()));
+            conf.setRetryCount(0);
+            conf.setCircuitBreakerEnabled(true);
+            conf.setCircuitBreakerFailureThreshold(1);
+            conf.setCircuitBreakerOpenDurationInMilliseconds(1);
+
+            AtlassianGuardRESTClient client = new AtlassianGuardRESTClient();
+            client.init("test", conf, new OkHttpClient());
+            try {
+                Request request = new Request.Builder().url(server.url("/scim/Users")).get().build();
+
+                assertThrows(ConnectorIOException.class, () -> client.execute(request));
+                assertEquals(CircuitBreaker.State.OPEN, client.circuitBreaker.getState());
+                Thread.sleep(10);
+
+                CompletableFuture<Response> future = client.executeAsync(request);
+                // Wait for the probe to be sent
+                assertNotNull(server.takeRequest(1, TimeUnit.SECONDS));
+                assertNotNull(server.takeRequest(5, TimeUnit.SECONDS));
+                assertEquals(CircuitBreaker.Permit.REJECT, client.circuitBreaker.acquire());
+
+                future.cancel(true);
+
+                assertEquals(CircuitBreaker.State.HALF_OPEN, client.circuitBreaker.getState());
+                assertEquals(CircuitBreaker.Permit.PROBE, client.circuitBreaker.acquire());
+            } finally {
+                client.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,357 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import jp.openstandia.connector.atlassian.AtlassianGuardConfiguration;
+import jp.openstandia.connector.atlassian.AtlassianGuardRESTClient;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+import okio.Buffer;
+import okio.ForwardingSource;
+import okio.Okio;
+import org.identityconnectors.common.security.GuardedString;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests of the prefetch and the fan-out of {@link AbstractRESTClient#getAll(QueryHandler, int, AbstractRESTClient.PageRequest, AbstractRESTClient.PageParser)}.
+ * The pages are served by the fake page request, the resources are the sequence numbers from 1.
+ */
+class FullScanTest {
+
+    private AtlassianGuardRESTClient client;
+
+    @BeforeEach
+    void before() {
+        AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+        conf.setBaseURL("https://scan.example.com/scim");
+        conf.setToken(new GuardedString("dummy".toCharArray()));
+
+        client = new AtlassianGuardRESTClient();
+        client.init("test", conf, new OkHttpClient());
+    }
+
+    @AfterEach
+    void after() {
+        client.close();
+    }
+
+    /**
+     * Fake list API which has the given number of resources.
+     */
+    static class FakePages implements AbstractRESTClient.PageRequest {
+        final int total;
+        final boolean returnTotal;
+        final List<Integer> requested = new CopyOnWriteArrayList<>();
+        final Map<Integer, CompletableFuture<Response>> futures = new ConcurrentHashMap<>();
+        final Map<Integer, AtomicBoolean> closed = new ConcurrentHashMap<>();
+        // Delay to complete the page, the later page completes earlier by default
+        long delayMillis = 50;
+
+        FakePages(int total, boolean returnTotal) {
+            this.total = total;
+            this.returnTotal = returnTotal;
+        }
+
+        @Override
+        public CompletableFuture<Response> send(int start, int size) {
+            requested.add(start);
+            AtomicBoolean closedFlag = new AtomicBoolean();
+            closed.put(start, closedFlag);
+
+            long delay = Math.max(0, delayMillis - start);
+            CompletableFuture<Response> future = new CompletableFuture<>();
+            CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS)
+                    .execute(() -> future.complete(response(start, size, closedFlag)));
+            futures.put(start, future);
+            return future;
+        }
+
+        Response response(int start, int size, AtomicBoolean closedFlag) {
+            int to = Math.min(total, start + size - 1);
+            String body = IntStream.rangeClosed(start, to).mapToObj(String::valueOf).collect(Collectors.joining(","));
+            Buffer buffer = new Buffer().writeUtf8(body);
+            ForwardingSource source = new ForwardingSource(buffer) {
+                @Override
+                public void close() throws IOException {
+                    closedFlag.set(true);
+                    super.close();
+                }
+            };
+            Response.Builder builder = new Response.Builder()
+                    .request(new Request.Builder().url("https://scan.example.com/scim/Users?startIndex=" + start).build())
+                    .protocol(Protocol.HTTP_1_1)
+                    .code(200)
+                    .message("OK")
+                    .body(ResponseBody.create(Okio.buffer(source), null, buffer.size()));
+            if (returnTotal) {
+                builder.header("X-Total", String.valueOf(total));
+            }
+            return builder.build();
+        }
+    }
+
+    private static AbstractRESTClient.Page parse(Response response, QueryHandler<Integer> handler) throws IOException {
+        AbstractRESTClient.Page page = new AbstractRESTClient.Page();
+        String total = response.header("X-Total");
+        if (total != null) {
+            page.totalResults = Integer.parseInt(total);
+        }
+        String body = response.body().string();
+        if (body.isEmpty()) {
+            return page;
+        }
+        for (String value : body.split(",")) {
+            page.count++;
+            page.handled++;
+            if (!handler.handle(Integer.valueOf(value))) {
+                page.stopped = true;
+                break;
+            }
+        }
+        return page;
+    }
+
+    private static List<Integer> sequence(int total) {
+        return IntStream.rangeClosed(1, total).boxed().collect(Collectors.toList());
+    }
+
+    /**
+     * Every page must be consumed and closed, or cancelled.
+     */
+    private static void assertAllReleased(FakePages pages) throws InterruptedException {
+        // Wait for the pages which may be completed after the cancellation
+        Thread.sleep(pages.delayMillis * 2);
+        pages.futures.forEach((start, future) -> {
+            assertTrue(future.isDone(), "start: " + start);
+            assertTrue(future.isCancelled() || pages.closed.get(start).get(), "Not released, start: " + start);
+        });
+    }
+
+    @Test
+    void sequential() throws InterruptedException {
+        client.setScanOptions(0, 1, true);
+        FakePages pages = new FakePages(10, true);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(10, count);
+        assertEquals(sequence(10), results);
+        assertEquals(List.of(1, 4, 7, 10), pages.requested);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void prefetchInPageOrder() throws InterruptedException {
+        client.setScanOptions(2, 1, true);
+        FakePages pages = new FakePages(20, true);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(20, count);
+        assertEquals(sequence(20), results);
+        // Nothing beyond the total is requested
+        assertEquals(List.of(1, 4, 7, 10, 13, 16, 19), pages.requested);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void fanOutInPageOrder() throws InterruptedException {
+        client.setScanOptions(0, 4, true);
+        FakePages pages = new FakePages(20, true);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(20, count);
+        assertEquals(sequence(20), results);
+        assertEquals(List.of(1, 4, 7, 10, 13, 16, 19), pages.requested);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void fanOutInCompletionOrder() throws InterruptedException {
+        client.setScanOptions(0, 4, false);
+        FakePages pages = new FakePages(20, true);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(20, count);
+        assertEquals(20, results.size());
+        List<Integer> sorted = new ArrayList<>(results);
+        Collections.sort(sorted);
+        assertEquals(sequence(20), sorted);
+        // The later pages complete earlier
+        assertNotEquals(sequence(20), results);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void shortFinalPage() throws InterruptedException {
+        client.setScanOptions(1, 4, true);
+        FakePages pages = new FakePages(7, true);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(7, count);
+        assertEquals(sequence(7), results);
+        // The short page is the last, no more request
+        assertEquals(List.of(1, 4, 7), pages.requested);
+        assertAllReleased(pages);
+    }
+
+    /**
+     * Fake list API which reports the given total instead of the actual number of the resources.
+     */
+    private static FakePages withReportedTotal(int total, int reported) {
+        return new FakePages(total, true) {
+            @Override
+            Response response(int start, int size, AtomicBoolean closedFlag) {
+                Response response = super.response(start, size, closedFlag);
+                return response.newBuilder().header("X-Total", String.valueOf(reported)).build();
+            }
+        };
+    }
+
+    @Test
+    void noRequestPastTotalWhenLastPageIsFull() throws InterruptedException {
+        int[][] options = {{0, 1}, {2, 1}, {0, 4}};
+        for (int[] option : options) {
+            client.setScanOptions(option[0], option[1], true);
+            // The total is a multiple of the page size
+            FakePages pages = new FakePages(9, true);
+            List<Integer> results = new ArrayList<>();
+
+            int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+            assertEquals(9, count);
+            assertEquals(sequence(9), results);
+            assertEquals(List.of(1, 4, 7), pages.requested, "prefetch: " + option[0] + ", parallelism: " + option[1]);
+            assertAllReleased(pages);
+        }
+    }
+
+    @Test
+    void trustTotalWhenLastPageIsFull() throws InterruptedException {
+        client.setScanOptions(0, 2, true);
+        // The total is reported smaller than the actual resources (e.g. created during the scan)
+        FakePages pages = withReportedTotal(8, 6);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(6, count);
+        assertEquals(sequence(6), results);
+        assertEquals(List.of(1, 4), pages.requested);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void continueWhenLastPageIsFullAndScanPastTotal() throws InterruptedException {
+        client.setScanOptions(0, 2, true, true);
+        FakePages pages = withReportedTotal(8, 6);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(8, count);
+        assertEquals(sequence(8), results);
+        assertEquals(List.of(1, 4, 7), pages.requested);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void continueWhenPageHasMoreThanTotal() throws InterruptedException {
+        client.setScanOptions(0, 2, true);
+        // The first page already has more resources than the total
+        FakePages pages = withReportedTotal(8, 2);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(8, count);
+        assertEquals(sequence(8), results);
+        assertEquals(List.of(1, 4, 7), pages.requested);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void untilEmptyPageWithoutTotal() throws InterruptedException {
+        client.setScanOptions(1, 4, true);
+        FakePages pages = new FakePages(7, false);
+        List<Integer> results = new ArrayList<>();
+
+        int count = client.getAll(results::add, 3, pages, FullScanTest::parse);
+
+        assertEquals(7, count);
+        assertEquals(sequence(7), results);
+        // The prefetched page after the empty page is discarded
+        assertTrue(pages.requested.containsAll(List.of(1, 4, 7, 10)));
+        assertTrue(pages.requested.size() <= 5, "requested: " + pages.requested);
+        assertAllReleased(pages);
+    }
+
+    @Test
+    void noFetchAfterStop() throws InterruptedException {
+        for (boolean ordered : new boolean[]{true, false}) {
+            client.setScanOptions(2, 4, ordered);
+            FakePages pages = new FakePages(100, true);
+            List<Integer> results = new ArrayList<>();
+
+            int count = client.getAll(v -> {
+                results.add(v);
+                return results.size() < 5;
+            }, 3, pages, FullScanTest::parse);
+
+            assertEquals(5, count);
+            assertEquals(5, results.size());
+            if (ordered) {
+                assertEquals(sequence(5), results);
+            }
+
+            // The pages up to the window are requested, but nothing after the stop
+            int requested = pages.requested.size();
+            assertTrue(requested <= 2 + 4, "requested: " + pages.requested);
+            Thread.sleep(pages.delayMillis * 2);
+            assertEquals(requested, pages.requested.size());
+
+            assertAllReleased(pages);
+        }
+    }
+}
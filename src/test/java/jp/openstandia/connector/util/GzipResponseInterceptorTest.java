@@ -0,0 +1,178 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okio.Buffer;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import okio.GzipSink;
+import okio.Okio;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class GzipResponseInterceptorTest {
+
+    private MockWebServer server;
+    private Metrics metrics;
+    private OkHttpClient client;
+
+    @BeforeEach
+    void before() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        metrics = new Metrics();
+        client = new OkHttpClient.Builder()
+                .addInterceptor(new GzipResponseInterceptor(metrics))
+                .build();
+    }
+
+    @AfterEach
+    void after() throws IOException {
+        client.dispatcher().executorService().shutdown();
+        client.connectionPool().evictAll();
+        server.shutdown();
+    }
+
+    private static Buffer gzip(byte[] data) throws IOException {
+        Buffer buffer = new Buffer();
+        try (BufferedSink sink = Okio.buffer(new GzipSink(buffer))) {
+            sink.write(data);
+        }
+        return buffer;
+    }
+
+    private Request get() {
+        return new Request.Builder().url(server.url("/scim/Users")).get().build();
+    }
+
+    @Test
+    void decompress() throws Exception {
+        byte[] json = "{\"totalResults\":1,\"Resources\":[{\"id\":\"1\"}]}".getBytes(StandardCharsets.UTF_8);
+        Buffer compressed = gzip(json);
+        long compressedSize = compressed.size();
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Encoding", "gzip")
+                .setBody(compressed));
+
+        try (Response response = client.newCall(get()).execute()) {
+            assertNull(response.header("Content-Encoding"));
+            assertNull(response.header("Content-Length"));
+            assertEquals(new String(json, StandardCharsets.UTF_8), response.body().string());
+        }
+
+        RecordedRequest recorded = server.takeRequest(1, TimeUnit.SECONDS);
+        assertEquals("gzip", recorded.getHeader("Accept-Encoding"));
+        assertEquals(compressedSize, metrics.get("http.bytes.compressed"));
+        assertEquals(json.length, metrics.get("http.bytes.uncompressed"));
+        assertEquals(0, metrics.get("http.bytes.identity"));
+    }
+
+    @Test
+    void decompressAsStream() throws Exception {
+        // Random text doesn't compress too much, so the body is much larger than the read buffer
+        byte[] data = new byte[4 * 1024 * 1024];
+        Random random = new Random(0);
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) ('a' + random.nextInt(26));
+        }
+        server.enqueue(new MockResponse()
+                .setHeader("Content-Encoding", "gzip")
+                .setBody(gzip(data)));
+
+        try (Response response = client.newCall(get()).execute()) {
+            BufferedSource source = response.body().source();
+            assertEquals(data[0], source.readByte());
+
+            // Only the head of the body has been read
+            long uncompressed = metrics.get("http.bytes.uncompressed");
+            assertTrue(uncompressed > 0 && uncompressed < data.length / 4, "uncompressed: " + uncompressed);
+            assertTrue(metrics.get("http.bytes.compressed") < data.length / 4);
+
+            source.skip(data.length - 1);
+            assertTrue(source.exhausted());
+        }
+
+        assertEquals(data.length, metrics.get("http.bytes.uncompressed"));
+    }
+
+    @Test
+    void countIdentityBytes() throws Exception {
+        server.enqueue(new MockResponse().setBody("plain"));
+
+        try (Response response = client.newCall(get()).execute()) {
+            assertEquals("plain", response.body().string());
+        }
+
+        assertEquals(5, metrics.get("http.bytes.identity"));
+        assertEquals(0, metrics.get("http.bytes.compressed"));
+    }
+
+    @Test
+    void noBodyResponses() throws Exception {
+        // Content-Encoding is set, but there is no body to decompress
+        server.enqueue(new MockResponse().setResponseCode(204).setHeader("Content-Encoding", "gzip"));
+        server.enqueue(new MockResponse().setHeader("Content-Encoding", "gzip").setHeader("Content-Length", "20"));
+        server.enqueue(new MockResponse().setHeader("Content-Encoding", "gzip").setBody(""));
+
+        try (Response response = client.newCall(new Request.Builder().url(server.url("/scim/Users/1")).delete().build()).execute()) {
+            assertEquals(204, response.code());
+            assertEquals("", response.body().string());
+        }
+        try (Response response = client.newCall(new Request.Builder().url(server.url("/scim/Users/1")).head().build()).execute()) {
+            assertEquals(200, response.code());
+            assertEquals("gzip", response.header("Content-Encoding"));
+            assertEquals("", response.body().string());
+        }
+        try (Response response = client.newCall(new Request.Builder().url(server.url("/scim/Users")).build()).execute()) {
+            assertEquals(200, response.code());
+            assertEquals("0", response.header("Content-Length"));
+            assertEquals("", response.body().string());
+        }
+
+        assertEquals(0, metrics.get("http.bytes.compressed"));
+        assertEquals(0, metrics.get("http.bytes.uncompressed"));
+    }
+
+    @Test
+    void respectExplicitAcceptEncoding() throws Exception {
+        server.enqueue(new MockResponse().setBody("plain"));
+
+        Request request = new Request.Builder().url(server.url("/scim/Users"))
+                .header("Accept-Encoding", "identity")
+                .get()
+                .build();
+        try (Response response = client.newCall(request).execute()) {
+            assertEquals("plain", response.body().string());
+        }
+
+        assertEquals("identity", server.takeRequest(1, TimeUnit.SECONDS).getHeader("Accept-Encoding"));
+        assertTrue(metrics.isEmpty());
+    }
+}
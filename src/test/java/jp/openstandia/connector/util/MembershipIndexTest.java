@@ -0,0 +1,81 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MembershipIndexTest {
+
+    @Test
+    void shareIndexByKey() {
+        String key = "https://index.example.com|token";
+
+        SharedRegistry.Lease<MembershipIndex> lease1 = MembershipIndex.acquire(key, 60000);
+        SharedRegistry.Lease<MembershipIndex> lease2 = MembershipIndex.acquire(key, 60000);
+        SharedRegistry.Lease<MembershipIndex> other = MembershipIndex.acquire("https://index.example.com|other", 60000);
+
+        assertSame(lease1.get(), lease2.get());
+        assertNotSame(lease1.get(), other.get());
+        assertEquals(2, MembershipIndex.getRefCount(key, 60000));
+
+        lease1.release();
+        lease1.release();
+        assertEquals(1, MembershipIndex.getRefCount(key, 60000));
+
+        lease2.release();
+        other.release();
+        assertEquals(0, MembershipIndex.getRefCount(key, 60000));
+    }
+
+    @Test
+    void invalidateByAnyInstance() {
+        String key = "https://invalidate.example.com|token";
+        SharedRegistry.Lease<MembershipIndex> lease1 = MembershipIndex.acquire(key, 60000);
+        SharedRegistry.Lease<MembershipIndex> lease2 = MembershipIndex.acquire(key, 60000);
+
+        try {
+            AtomicInteger builds = new AtomicInteger();
+            MembershipIndex.Snapshot snapshot = lease1.get().get(builder -> {
+                builds.incrementAndGet();
+                builder.add("1", "a", Arrays.asList("user001", "user002"));
+                builder.add("2", "b", Collections.singletonList("user001"));
+            });
+            assertArrayEquals(new int[]{0, 1}, snapshot.findGroups(Collections.singletonList("user001")));
+
+            // The other instance uses the built index
+            lease2.get().get(builder -> builds.incrementAndGet());
+            assertEquals(1, builds.get());
+
+            // The change by one instance is visible to the other
+            lease1.get().invalidate();
+            snapshot = lease2.get().get(builder -> {
+                builds.incrementAndGet();
+                builder.add("1", "a", Collections.singletonList("user002"));
+            });
+            assertEquals(2, builds.get());
+            assertArrayEquals(new int[0], snapshot.findGroups(Collections.singletonList("user001")));
+        } finally {
+            lease1.release();
+            lease2.release();
+        }
+    }
+}
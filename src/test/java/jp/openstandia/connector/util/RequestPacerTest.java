@@ -0,0 +1,179 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import jp.openstandia.connector.atlassian.AtlassianGuardConfiguration;
+import jp.openstandia.connector.atlassian.AtlassianGuardRESTClient;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Request;
+import okhttp3.Response;
+import org.identityconnectors.common.security.GuardedString;
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestPacerTest {
+
+    private static Response response(int code, String... headers) {
+        Response.Builder builder = new Response.Builder()
+                .request(new Request.Builder().url("https://example.com/Users").build())
+                .protocol(Protocol.HTTP_1_1)
+                .code(code)
+                .message("");
+        for (int i = 0; i < headers.length; i += 2) {
+            builder.header(headers[i], headers[i + 1]);
+        }
+        return builder.build();
+    }
+
+    private static void assertAboutSeconds(long expectedSeconds, long actualNanos) {
+        long actualMillis = TimeUnit.NANOSECONDS.toMillis(actualNanos);
+        // Allow the clock to move while the test is running
+        assertTrue(actualMillis <= expectedSeconds * 1000 && actualMillis > (expectedSeconds - 2) * 1000,
+                "expected about " + expectedSeconds + "s, but " + actualMillis + "ms");
+    }
+
+    @Test
+    void parseRetryAfterSeconds() {
+        assertEquals(TimeUnit.SECONDS.toNanos(120), RequestPacer.parseRetryAfter("120"));
+        assertEquals(TimeUnit.SECONDS.toNanos(3), RequestPacer.parseRetryAfter(" 3 "));
+        assertEquals(0, RequestPacer.parseRetryAfter("-1"));
+    }
+
+    @Test
+    void parseRetryAfterHttpDate() {
+        String date = ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(30).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        assertAboutSeconds(30, RequestPacer.parseRetryAfter(date));
+
+        // Past date means no pause
+        String past = ZonedDateTime.now(ZoneOffset.UTC).minusMinutes(1).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        assertEquals(0, RequestPacer.parseRetryAfter(past));
+    }
+
+    @Test
+    void parseRetryAfterInvalid() {
+        assertEquals(-1, RequestPacer.parseRetryAfter(null));
+        assertEquals(-1, RequestPacer.parseRetryAfter(""));
+        assertEquals(-1, RequestPacer.parseRetryAfter("soon"));
+    }
+
+    @Test
+    void parseRateLimitReset() {
+        // Delta seconds
+        assertEquals(TimeUnit.SECONDS.toNanos(10), RequestPacer.parseReset("10"));
+
+        // Epoch seconds
+        long epoch = System.currentTimeMillis() / 1000 + 20;
+        assertAboutSeconds(20, RequestPacer.parseReset(String.valueOf(epoch)));
+
+        // ISO 8601
+        String iso = ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(40).format(DateTimeFormatter.ISO_OFFSET_DATE_TIME);
+        assertAboutSeconds(40, RequestPacer.parseReset(iso));
+
+        // HTTP-date
+        String httpDate = ZonedDateTime.now(ZoneOffset.UTC).plusSeconds(50).format(DateTimeFormatter.RFC_1123_DATE_TIME);
+        assertAboutSeconds(50, RequestPacer.parseReset(httpDate));
+
+        assertEquals(-1, RequestPacer.parseReset(null));
+        assertEquals(-1, RequestPacer.parseReset("later"));
+    }
+
+    @Test
+    void pauseByRetryAfter() {
+        RequestPacer pacer = new RequestPacer();
+        assertEquals(0, pacer.reserve());
+
+        pacer.onResponse(response(429, "Retry-After", "2"), true);
+
+        long wait = pacer.reserve();
+        assertTrue(wait > 1000 && wait <= 2000, "wait: " + wait);
+    }
+
+    @Test
+    void pauseByRateLimitRemaining() {
+        RequestPacer pacer = new RequestPacer();
+
+        // Remaining requests exist, no pause
+        pacer.onResponse(response(200, "X-RateLimit-Remaining", "10", "X-RateLimit-Reset", "3"), false);
+        assertEquals(0, pacer.reserve());
+
+        // No remaining requests, pause until the reset
+        pacer.onResponse(response(200, "X-RateLimit-Remaining", "0", "X-RateLimit-Reset", "3"), false);
+        long wait = pacer.reserve();
+        assertTrue(wait > 2000 && wait <= 3000, "wait: " + wait);
+    }
+
+    @Test
+    void pauseByDefaultWithoutHeaders() {
+        RequestPacer pacer = new RequestPacer();
+
+        pacer.onResponse(response(429), true);
+
+        long wait = pacer.reserve();
+        assertTrue(wait > 0 && wait <= TimeUnit.NANOSECONDS.toMillis(RequestPacer.DEFAULT_PAUSE_NANOS), "wait: " + wait);
+    }
+
+    @Test
+    void shareByKeyAndEvictWhenReleased() {
+        String key = "https://pacer.example.com";
+
+        SharedRegistry.Lease<RequestPacer> lease1 = RequestPacer.acquire(key);
+        SharedRegistry.Lease<RequestPacer> lease2 = RequestPacer.acquire(key);
+        SharedRegistry.Lease<RequestPacer> other = RequestPacer.acquire("https://other.example.com");
+
+        assertSame(lease1.get(), lease2.get());
+        assertNotSame(lease1.get(), other.get());
+        assertEquals(2, RequestPacer.getRefCount(key));
+
+        lease1.release();
+        lease1.release();
+        assertEquals(1, RequestPacer.getRefCount(key));
+
+        lease2.release();
+        other.release();
+        assertEquals(0, RequestPacer.getRefCount(key));
+
+        SharedRegistry.Lease<RequestPacer> lease3 = RequestPacer.acquire(key);
+        assertNotSame(lease1.get(), lease3.get());
+        lease3.release();
+    }
+
+    @Test
+    void releaseWhenClientIsClosed() {
+        AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+        conf.setBaseURL("https://close.example.com");
+        conf.setToken(new GuardedString("dummy".toCharArray()));
+
+        AtlassianGuardRESTClient client1 = new AtlassianGuardRESTClient();
+        client1.init("test1", conf, new OkHttpClient());
+        AtlassianGuardRESTClient client2 = new AtlassianGuardRESTClient();
+        client2.init("test2", conf, new OkHttpClient());
+        assertEquals(2, RequestPacer.getRefCount(conf.getBaseURL()));
+
+        client1.close();
+        client1.close();
+        assertEquals(1, RequestPacer.getRefCount(conf.getBaseURL()));
+
+        client2.close();
+        assertEquals(0, RequestPacer.getRefCount(conf.getBaseURL()));
+    }
+}
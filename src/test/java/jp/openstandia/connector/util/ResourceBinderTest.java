@@ -0,0 +1,215 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import org.identityconnectors.framework.common.objects.*;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.stream.Collectors;
+
+import static jp.openstandia.connector.util.ResourceBinder.readMultiValues;
+import static org.identityconnectors.framework.common.objects.AttributeInfo.Flags.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceBinderTest {
+
+    private static final JsonFactory FACTORY = new JsonFactory();
+    private static final Set<String> ALL_ATTRIBUTES = new HashSet<>(Arrays.asList(
+            OperationalAttributes.ENABLE_NAME, "active", "displayName", "count", "name.formatted", "meta.created", "tags", "groups"));
+
+    public static class Resource {
+        public String id;
+        public String userName;
+        public String displayName;
+        public Boolean active;
+        public Integer count;
+        public String formatted;
+        public String created;
+        public List<String> tags;
+        public List<String> groups;
+    }
+
+    private SchemaDefinition schema;
+    private ResourceBinder binder;
+
+    @BeforeEach
+    void before() {
+        SchemaDefinition.Builder<Resource, Resource, Resource> sb = SchemaDefinition.newBuilder(new ObjectClass("User"), Resource.class, Resource.class);
+        sb.addUid("userId",
+                SchemaDefinition.Types.UUID,
+                null,
+                (source) -> source.id,
+                "id",
+                NOT_CREATABLE, NOT_UPDATEABLE
+        );
+        sb.addName("userName",
+                SchemaDefinition.Types.STRING,
+                (source, dest) -> dest.userName = source,
+                (source) -> source.userName,
+                null,
+                REQUIRED
+        );
+        sb.add(OperationalAttributes.ENABLE_NAME,
+                SchemaDefinition.Types.BOOLEAN,
+                (source, dest) -> dest.active = source,
+                (source) -> source.active,
+                "active"
+        );
+        sb.add("active",
+                SchemaDefinition.Types.BOOLEAN,
+                (source, dest) -> dest.active = source,
+                (source) -> source.active,
+                null
+        );
+        sb.add("displayName",
+                SchemaDefinition.Types.STRING,
+                (source, dest) -> dest.displayName = source,
+                (source) -> source.displayName,
+                null
+        );
+        sb.add("count",
+                SchemaDefinition.Types.INTEGER,
+                (source, dest) -> dest.count = source,
+                (source) -> source.count,
+                null
+        );
+        sb.add("name.formatted",
+                SchemaDefinition.Types.STRING,
+                (source, dest) -> dest.formatted = source,
+                (source) -> source.formatted,
+                null
+        );
+        sb.add("meta.created",
+                SchemaDefinition.Types.DATETIME,
+                null,
+                (source) -> Utils.toZoneDateTimeForISO8601OffsetDateTime(source.created),
+                null,
+                NOT_CREATABLE, NOT_UPDATEABLE
+        );
+        sb.addAsMultiple("tags",
+                SchemaDefinition.Types.STRING,
+                (source, dest) -> dest.tags = source,
+                (source, dest) -> dest.tags = source,
+                (source, dest) -> dest.tags.removeAll(source),
+                (source) -> source.tags != null ? source.tags.stream() : null,
+                null
+        );
+        sb.addAsMultiple("groups",
+                SchemaDefinition.Types.UUID,
+                null,
+                null,
+                null,
+                (source) -> source.groups != null ? source.groups.stream() : null,
+                null,
+                NOT_CREATABLE, NOT_UPDATEABLE
+        );
+        schema = sb.build();
+
+        binder = ResourceBinder.newBuilder(schema)
+                .reader("groups", (parser) -> readMultiValues(parser).stream()
+                        .filter(x -> "Group".equals(x.type))
+                        .map(x -> x.value)
+                        .collect(Collectors.toList()))
+                .fallback(Name.NAME, Uid.NAME)
+                .build();
+    }
+
+    private ConnectorObject read(ResourceBinder.Binding binding, String json) throws IOException {
+        try (JsonParser parser = FACTORY.createParser(json)) {
+            parser.nextToken();
+            ConnectorObject object = binding.read(parser);
+
+            // The parser is at the end of the resource
+            assertEquals(JsonToken.END_OBJECT, parser.currentToken());
+            assertNull(parser.nextToken());
+            return object;
+        }
+    }
+
+    private Set<String> names(ConnectorObject object) {
+        return object.getAttributes().stream()
+                .map(Attribute::getName)
+                .collect(Collectors.toSet());
+    }
+
+    @Test
+    void readAll() throws IOException {
+        ResourceBinder.Binding binding = binder.compile(schema.compileProjectionPlan(ALL_ATTRIBUTES, false));
+
+        ConnectorObject object = read(binding, "{\"id\":\"1\",\"userName\":\"foo\",\"active\":true,\"displayName\":\"Foo\"," +
+                "\"count\":3,\"name\":{\"formatted\":\"Foo Bar\",\"givenName\":\"Foo\"}," +
+                "\"meta\":{\"resourceType\":\"User\",\"created\":\"2024-11-14T05:56:39.79755Z\"}," +
+                "\"tags\":[\"a\",null,\"b\"]," +
+                "\"groups\":[{\"value\":\"g1\",\"type\":\"Group\",\"$ref\":\"https://example.com/Groups/g1\"},{\"value\":\"x\",\"type\":\"Other\"}]}");
+
+        assertEquals(new Uid("1"), object.getUid());
+        assertEquals(new Name("foo"), object.getName());
+        assertEquals(Collections.singletonList(true), object.getAttributeByName(OperationalAttributes.ENABLE_NAME).getValue());
+        assertEquals(Collections.singletonList(true), object.getAttributeByName("active").getValue());
+        assertEquals(Collections.singletonList("Foo"), object.getAttributeByName("displayName").getValue());
+        assertEquals(Collections.singletonList(3), object.getAttributeByName("count").getValue());
+        assertEquals(Collections.singletonList("Foo Bar"), object.getAttributeByName("name.formatted").getValue());
+        assertEquals(Collections.singletonList(Utils.toZoneDateTimeForISO8601OffsetDateTime("2024-11-14T05:56:39.79755Z")),
+                object.getAttributeByName("meta.created").getValue());
+        assertEquals(Arrays.asList("a", "b"), object.getAttributeByName("tags").getValue());
+        assertEquals(Collections.singletonList("g1"), object.getAttributeByName("groups").getValue());
+    }
+
+    @Test
+    void readProjectedAttributes() throws IOException {
+        ResourceBinder.Binding binding = binder.compile(schema.compileProjectionPlan(
+                new HashSet<>(Arrays.asList("name.formatted", "groups")), false));
+
+        ConnectorObject object = read(binding, "{\"id\":\"1\",\"userName\":\"foo\",\"active\":true,\"displayName\":\"Foo\"," +
+                "\"name\":{\"formatted\":\"Foo Bar\"},\"meta\":{\"created\":\"2024-11-14T05:56:39.79755Z\"}," +
+                "\"groups\":[]}");
+
+        // The empty multi-valued attribute isn't returned
+        assertEquals(new HashSet<>(Arrays.asList(Uid.NAME, Name.NAME, "name.formatted")), names(object));
+    }
+
+    @Test
+    void skipUnexpectedValues() throws IOException {
+        ResourceBinder.Binding binding = binder.compile(schema.compileProjectionPlan(ALL_ATTRIBUTES, false));
+
+        ConnectorObject object = read(binding, "{\"id\":\"1\",\"userName\":\"foo\",\"unknown\":{\"a\":[1,{\"b\":null}]}," +
+                "\"active\":null,\"displayName\":{\"value\":\"Foo\"},\"count\":\"3\",\"name\":\"Foo Bar\",\"meta\":null," +
+                "\"tags\":\"a\",\"groups\":[\"g1\",{\"value\":\"g2\",\"type\":\"Group\"}]}");
+
+        assertEquals(new HashSet<>(Arrays.asList(Uid.NAME, Name.NAME)), names(object));
+    }
+
+    @Test
+    void fallback() throws IOException {
+        ResourceBinder.Binding binding = binder.compile(schema.compileProjectionPlan(Collections.emptySet(), false));
+
+        assertEquals(new Name("1"), read(binding, "{\"id\":\"1\"}").getName());
+        assertEquals(new Name("2"), read(binding, "{\"userName\":\"\",\"id\":\"2\"}").getName());
+        assertEquals(new Name("foo"), read(binding, "{\"userName\":\"foo\",\"id\":\"3\"}").getName());
+    }
+
+    @Test
+    void unknownReader() {
+        assertThrows(IllegalArgumentException.class,
+                () -> ResourceBinder.newBuilder(schema).reader("unknown", (parser) -> null));
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import jp.openstandia.connector.atlassian.AtlassianGuardConfiguration;
+import org.identityconnectors.common.security.GuardedString;
+import org.identityconnectors.framework.common.exceptions.ConfigurationException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RetryPolicyTest {
+
+    private static RetryPolicy policy(int maxRetries, long initial, long max, long maxElapsed, String... methods) {
+        return new RetryPolicy(maxRetries, initial, max, maxElapsed, new HashSet<>(Arrays.asList(methods)));
+    }
+
+    @Test
+    void backoffWithinJitterBounds() {
+        RetryPolicy policy = policy(10, 100, 1000, 0, "GET");
+
+        for (int i = 0; i < 1000; i++) {
+            long first = policy.backoff(0);
+            assertTrue(first >= 0 && first <= 100, "retried=0: " + first);
+
+            long third = policy.backoff(2);
+            assertTrue(third >= 0 && third <= 400, "retried=2: " + third);
+
+            // Capped by the max backoff
+            long capped = policy.backoff(5);
+            assertTrue(capped >= 0 && capped <= 1000, "retried=5: " + capped);
+
+            // No overflow by the large retry count
+            long overflow = policy.backoff(100);
+            assertTrue(overflow >= 0 && overflow <= 1000, "retried=100: " + overflow);
+        }
+    }
+
+    @Test
+    void noBackoff() {
+        RetryPolicy policy = policy(3, 0, 0, 0, "GET");
+
+        assertEquals(0, policy.backoff(0));
+        assertEquals(0, policy.nextDelay("GET", 2, System.nanoTime()));
+    }
+
+    @Test
+    void giveUpAfterMaxRetries() {
+        RetryPolicy policy = policy(2, 10, 100, 0, "GET");
+        long start = System.nanoTime();
+
+        assertTrue(policy.nextDelay("GET", 0, start) >= 0);
+        assertTrue(policy.nextDelay("GET", 1, start) >= 0);
+        assertEquals(-1, policy.nextDelay("GET", 2, start));
+
+        assertEquals(-1, RetryPolicy.none().nextDelay("GET", 0, start));
+    }
+
+    @Test
+    void giveUpAfterMaxElapsed() {
+        RetryPolicy policy = policy(10, 0, 0, 1000, "GET");
+
+        assertEquals(0, policy.nextDelay("GET", 0, System.nanoTime()));
+
+        long startedTwoSecondsAgo = System.nanoTime() - 2_000_000_000L;
+        assertEquals(-1, policy.nextDelay("GET", 0, startedTwoSecondsAgo));
+
+        // The delay itself must fit in the remaining time
+        RetryPolicy longBackoff = policy(10, 5000, 5000, 1000, "GET");
+        for (int i = 0; i < 100; i++) {
+            long delay = longBackoff.nextDelay("GET", 0, System.nanoTime());
+            assertTrue(delay == -1 || delay <= 1000, "delay: " + delay);
+        }
+    }
+
+    @Test
+    void retryOnlyAllowedMethods() {
+        RetryPolicy policy = policy(3, 0, 0, 0, "get", "PUT");
+        long start = System.nanoTime();
+
+        assertTrue(policy.isRetryable("GET"));
+        assertTrue(policy.isRetryable("put"));
+        assertFalse(policy.isRetryable("PATCH"));
+        assertFalse(policy.isRetryable("POST"));
+
+        assertEquals(0, policy.nextDelay("GET", 0, start));
+        assertEquals(-1, policy.nextDelay("POST", 0, start));
+        assertEquals(-1, policy.nextDelay("DELETE", 0, start));
+    }
+
+    @Test
+    void rejectPostInRetryMethods() {
+        AtlassianGuardConfiguration conf = new AtlassianGuardConfiguration();
+        conf.setBaseURL("https://example.com");
+        conf.setToken(new GuardedString("dummy".toCharArray()));
+
+        conf.setRetryMethods(new String[]{"GET", "put", "PATCH", "DELETE"});
+        conf.validate();
+
+        conf.setRetryMethods(new String[]{"GET", "POST"});
+        ConfigurationException e = assertThrows(ConfigurationException.class, conf::validate);
+        assertTrue(e.getMessage().contains("POST"), e.getMessage());
+
+        conf.setRetryMethods(new String[]{"post"});
+        assertThrows(ConfigurationException.class, conf::validate);
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import okhttp3.OkHttpClient;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedHttpClientRegistryTest {
+
+    @Test
+    void shareClientByKey() {
+        AtomicInteger created = new AtomicInteger();
+        SharedHttpClientRegistry.Key key = SharedHttpClientRegistry.Key.of("https://share.example.com", 1000);
+
+        SharedRegistry.Lease<OkHttpClient> lease1 = SharedHttpClientRegistry.acquire(key, () -> {
+            created.incrementAndGet();
+            return new OkHttpClient();
+        });
+        SharedRegistry.Lease<OkHttpClient> lease2 = SharedHttpClientRegistry.acquire(SharedHttpClientRegistry.Key.of("https://share.example.com", 1000), () -> {
+            created.incrementAndGet();
+            return new OkHttpClient();
+        });
+        SharedRegistry.Lease<OkHttpClient> other = SharedHttpClientRegistry.acquire(SharedHttpClientRegistry.Key.of("https://share.example.com", 2000), () -> {
+            created.incrementAndGet();
+            return new OkHttpClient();
+        });
+
+        try {
+            assertSame(lease1.get(), lease2.get());
+            assertNotSame(lease1.get(), other.get());
+            assertEquals(2, created.get());
+            assertEquals(2, SharedHttpClientRegistry.getRefCount(key));
+        } finally {
+            lease1.release();
+            lease2.release();
+            other.release();
+        }
+    }
+
+    @Test
+    void distinguishKeysWithSameString() {
+        // Both are "[https://string.example.com, 1000]" as the string
+        SharedHttpClientRegistry.Key key1 = SharedHttpClientRegistry.Key.of("https://string.example.com", 1000);
+        SharedHttpClientRegistry.Key key2 = SharedHttpClientRegistry.Key.of("https://string.example.com, 1000");
+
+        SharedRegistry.Lease<OkHttpClient> lease1 = SharedHttpClientRegistry.acquire(key1, OkHttpClient::new);
+        SharedRegistry.Lease<OkHttpClient> lease2 = SharedHttpClientRegistry.acquire(key2, OkHttpClient::new);
+        try {
+            assertEquals(key1.toString(), key2.toString());
+            assertNotSame(lease1.get(), lease2.get());
+            assertEquals(1, SharedHttpClientRegistry.getRefCount(key1));
+            assertEquals(1, SharedHttpClientRegistry.getRefCount(key2));
+        } finally {
+            lease1.release();
+            lease2.release();
+        }
+    }
+
+    @Test
+    void closeClientWhenLastLeaseIsReleased() {
+        SharedHttpClientRegistry.Key key = SharedHttpClientRegistry.Key.of("https://release.example.com");
+
+        SharedRegistry.Lease<OkHttpClient> lease1 = SharedHttpClientRegistry.acquire(key, OkHttpClient::new);
+        SharedRegistry.Lease<OkHttpClient> lease2 = SharedHttpClientRegistry.acquire(key, OkHttpClient::new);
+        OkHttpClient client = lease1.get();
+
+        lease1.release();
+        // Releasing twice is ignored
+        lease1.release();
+        assertEquals(1, SharedHttpClientRegistry.getRefCount(key));
+        assertFalse(client.dispatcher().executorService().isShutdown());
+
+        lease2.release();
+        assertEquals(0, SharedHttpClientRegistry.getRefCount(key));
+        assertTrue(client.dispatcher().executorService().isShutdown());
+
+        // A new client is created for the next acquisition
+        SharedRegistry.Lease<OkHttpClient> lease3 = SharedHttpClientRegistry.acquire(key, OkHttpClient::new);
+        try {
+            assertNotSame(client, lease3.get());
+        } finally {
+            lease3.release();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Copyright Nomura Research Institute, Ltd.
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+package jp.openstandia.connector.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TimestampCodecTest {
+
+    private static ZonedDateTime expected(String value) {
+        return ZonedDateTime.parse(value, DateTimeFormatter.ISO_OFFSET_DATE_TIME)
+                .withZoneSameInstant(ZoneId.systemDefault());
+    }
+
+    @Test
+    void parse() {
+        TimestampCodec codec = new TimestampCodec(0);
+
+        for (String value : new String[]{
+                "2023-01-31T02:13Z",
+                "2023-01-31T02:13:17Z",
+                "2023-01-31T02:13:17.541Z",
+                "2024-11-14T05:56:39.79755Z",
+                "2023-01-31T11:13:17+09:00",
+                "2023-01-31T02:13:17.123456789-05:30",
+                // Offset with seconds is parsed by the formatter
+                "2023-01-31T11:13:17+09:00:30",
+        }) {
+            assertEquals(expected(value), codec.parse(value), value);
+        }
+        assertNull(codec.parse(null));
+    }
+
+    @Test
+    void parseMalformed() {
+        TimestampCodec codec = new TimestampCodec(0);
+
+        for (String value : new String[]{
+                "",
+                "2023-01-31",
+                // Truncated seconds
+                "2023-01-31T02:13:",
+                "2023-01-31T02:13:5",
+                "2023-01-31T02:13:5Z",
+                // Truncated fraction
+                "2023-01-31T02:13:17.",
+                // Truncated or invalid offset
+                "2023-01-31T02:13:17",
+                "2023-01-31T02:13:17+",
+                "2023-01-31T02:13:17+09:",
+                "2023-01-31T02:13:17+09:0",
+                "2023-01-31T02:13:17+0900",
+                "2023-01-31T02:13:17+09:00Z",
+                "2023-01-31T02:13:17ZZ",
+                // Invalid fields
+                "2023-13-31T02:13:17Z",
+                "2023-02-30T02:13:17Z",
+                "2023-01-31T25:13:17Z",
+                "2023-01-31X02:13:17Z",
+                "2023-0a-31T02:13:17Z",
+        }) {
+            assertThrows(DateTimeParseException.class, () -> codec.parse(value), value);
+        }
+    }
+
+    @Test
+    void memoize() {
+        TimestampCodec codec = new TimestampCodec(4);
+
+        ZonedDateTime first = codec.parse("2023-01-31T02:13:17.541Z");
+        assertSame(first, codec.parse("2023-01-31T02:13:17.541Z"));
+        assertEquals(expected("2023-01-31T02:13:18Z"), codec.parse("2023-01-31T02:13:18Z"));
+
+        // The invalid value isn't memoized
+        assertThrows(DateTimeParseException.class, () -> codec.parse("2023-01-31T02:13:"));
+        assertThrows(DateTimeParseException.class, () -> codec.parse("2023-01-31T02:13:"));
+    }
+}